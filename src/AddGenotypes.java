@@ -1,14 +1,11 @@
 /*
  * Adds genotype information to a merged VCF file based on the genotypes of the original variants
  */
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Scanner;
 
 public class AddGenotypes {
 	
@@ -79,8 +76,8 @@ public class AddGenotypes {
 		}
 				
 		// Now scan through merged VCF and combine FORMAT fields as needed, printing the updated file at the same time
-		Scanner input = new Scanner(new FileInputStream(new File(inputFile)));
-		PrintWriter out = new PrintWriter(new File(outputFile));
+		LineReader input = new LineReader(inputFile);
+		PrintWriter out = PipelineManager.openOutput(outputFile);
 		VcfHeader header = new VcfHeader();
 		boolean headerPrinted = false;
 		while(input.hasNext())
@@ -130,7 +127,7 @@ public class AddGenotypes {
 				}
 				
 				// This is the per-variant merging and printing logic
-				VcfEntry entry = new VcfEntry(line);
+				VcfEntry entry = new VcfEntry(line, true);
 				String suppVec = entry.getInfo("SUPP_VEC");
 				if(suppVec.length() == 0)
 				{
@@ -158,10 +155,11 @@ public class AddGenotypes {
 					
 					// Merge all format fields together and print the resulting VCF entry
 					VariantFormatField merged = merge(toMerge, sampleCounts, suppVec);
-					for(int i = 0; i<8; i++)
+					for(int i = 0; i<7; i++)
 					{
 						out.print(entry.tabTokens[i] + "\t");
 					}
+					out.print(entry.getInfoString() + "\t");
 					out.println(merged);
 				}
 			}
@@ -351,18 +349,13 @@ public class AddGenotypes {
 			variantFormats = new ArrayList<VariantFormatField>();
 			idToVariantIndex = new HashMap<String, Integer>();
 			header = new VcfHeader();
-			Scanner input = new Scanner(new FileInputStream(new File(fileName)));
+			VcfRecordReader input = new VcfRecordReader(fileName);
 			boolean extractedSampleNames = false;
-			while(input.hasNext())
+			while(input.advance())
 			{
-				String line = input.nextLine();
-				if(line.length() == 0)
+				if(input.isHeader())
 				{
-					continue;
-				}
-				if(line.startsWith("#"))
-				{
-					header.addLine(line);
+					header.addLine(input.headerLine());
 				}
 				else
 				{
@@ -391,7 +384,7 @@ public class AddGenotypes {
 					}
 					
 					// Add this variant's format fields to the list
-					VcfEntry entry = new VcfEntry(line);
+					VcfEntry entry = input.rawEntry();
 					if(ids.contains(entry.getId()))
 					{
 						String oldId = entry.getId();
@@ -412,7 +405,7 @@ public class AddGenotypes {
 					}
 					ids.add(entry.getId());
 					idToVariantIndex.put(entry.getId(), variantFormats.size());
-					VariantFormatField vff = new VariantFormatField(line);
+					VariantFormatField vff = new VariantFormatField(entry);
 					if(reformat)
 					{
 						vff = reformatVariantFormat(vff, entry);
@@ -473,11 +466,19 @@ public class AddGenotypes {
 		}
 		
 		/*
-		 * Initialize the format fields from a VCF line
+		 * Initialize the format fields from a VCF entry, splitting out its sample columns if needed
 		 */
-		VariantFormatField(String line) throws Exception
+		VariantFormatField(VcfEntry entry) throws Exception
 		{
-			VcfEntry entry = new VcfEntry(line);
+			// Entries from BCF already have their values split up by sample and field
+			if(entry.formatKeys != null)
+			{
+				fieldNames = entry.formatKeys;
+				sampleFieldValues = entry.sampleFields;
+				return;
+			}
+			
+			entry.expandTail();
 			if(entry.tabTokens.length > 8)
 			{
 				sampleFieldValues = new String[entry.tabTokens.length - 9][];
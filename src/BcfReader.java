@@ -0,0 +1,757 @@
+/*
+ * A reader for BCF2 files, the binary version of VCF
+ * Each column of a record is decoded straight into its own string, so the text of the whole line never needs to be built and split.
+ *
+ * The file is BGZF-compressed (or occasionally uncompressed) and starts with the magic bytes "BCF\2\2" and the text header.
+ * Each record then has a block of site information (CHROM through INFO) and a block of per-sample FORMAT values.
+ * Strings like INFO keys, FILTER names, and contig names are stored as indices into dictionaries built from the header.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+public class BcfReader implements Closeable
+{
+	// The types of typed values
+	static final int TYPE_NULL = 0, TYPE_INT8 = 1, TYPE_INT16 = 2, TYPE_INT32 = 3, TYPE_FLOAT = 5, TYPE_CHAR = 7;
+	
+	// Special values marking missing values and the end of vectors which are shorter than their declared length
+	static final int INT8_MISSING = -128, INT8_END = -127;
+	static final int INT16_MISSING = -32768, INT16_END = -32767;
+	static final int INT32_MISSING = Integer.MIN_VALUE, INT32_END = Integer.MIN_VALUE + 1;
+	static final int FLOAT_MISSING = 0x7F800001, FLOAT_END = 0x7F800002;
+	
+	DataInputStream input;
+	
+	// The threads to decompress the file ahead of the reader on, or null to decompress it while reading
+	BgzfInputStream.DecompressionPool pool;
+	
+	// The header lines, with the IDX attributes BCF adds removed so they match the text version
+	ArrayList<String> headerLines;
+	
+	// The dictionary of INFO, FILTER, and FORMAT keys, and the dictionary of contig names
+	ArrayList<String> keys;
+	ArrayList<String> contigs;
+	
+	// Which INFO keys are flags
+	HashMap<String, Boolean> infoFlags;
+	
+	// The site and sample blocks of the current record
+	ByteBuffer shared, indiv;
+	
+	// The number of samples and FORMAT fields in the current record
+	int sampleCount, formatCount;
+	
+	BcfReader(String filename) throws IOException
+	{
+		this(filename, null);
+	}
+	
+	BcfReader(String filename, BgzfInputStream.DecompressionPool pool) throws IOException
+	{
+		this(Channels.newInputStream(LineReader.openFile(filename, pool)));
+		this.pool = pool;
+	}
+	
+	BcfReader(InputStream stream) throws IOException
+	{
+		input = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+		byte[] magic = new byte[5];
+		input.readFully(magic);
+		if(magic[0] != 'B' || magic[1] != 'C' || magic[2] != 'F' || magic[3] != 2)
+		{
+			throw new IOException("Not a BCF2 file");
+		}
+		byte[] text = new byte[readInt()];
+		input.readFully(text);
+		parseHeader(new String(text, StandardCharsets.UTF_8));
+		shared = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		indiv = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/*
+	 * Whether or not a file is BCF, compressed or not
+	 */
+	static boolean isBcf(String filename) throws IOException
+	{
+		InputStream file = Channels.newInputStream(FileChannel.open(Paths.get(filename), StandardOpenOption.READ));
+		BufferedInputStream stream = new BufferedInputStream(file, 1 << 16);
+		try
+		{
+			return isBcf(stream);
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+	
+	/*
+	 * Whether or not a stream which has not been decompressed yet holds BCF, with the stream left positioned at its start
+	 */
+	static boolean isBcf(BufferedInputStream stream) throws IOException
+	{
+		byte[] header = new byte[LineReader.MAGIC_LENGTH];
+		stream.mark(1 << 16);
+		int length = readUpTo(stream, header, header.length);
+		stream.reset();
+		if(!LineReader.isGzip(header, length))
+		{
+			return length >= 3 && header[0] == 'B' && header[1] == 'C' && header[2] == 'F';
+		}
+		
+		// The first gzip member is enough to see the magic bytes, and is small for BGZF
+		stream.mark(1 << 16);
+		try
+		{
+			return startsWithMagic(new GZIPInputStream(stream, 1 << 10));
+		}
+		catch(IOException e)
+		{
+			return false;
+		}
+		finally
+		{
+			stream.reset();
+		}
+	}
+	
+	/*
+	 * Whether or not the first bytes of an uncompressed stream are the BCF magic bytes
+	 */
+	private static boolean startsWithMagic(InputStream stream) throws IOException
+	{
+		byte[] magic = new byte[3];
+		return readUpTo(stream, magic, 3) == 3 && magic[0] == 'B' && magic[1] == 'C' && magic[2] == 'F';
+	}
+	
+	/*
+	 * Reads as many bytes as possible up to a limit, returning how many were read
+	 */
+	private static int readUpTo(InputStream stream, byte[] bytes, int limit) throws IOException
+	{
+		int length = 0;
+		while(length < limit)
+		{
+			int read = stream.read(bytes, length, limit - length);
+			if(read == -1)
+			{
+				break;
+			}
+			length += read;
+		}
+		return length;
+	}
+	
+	/*
+	 * Splits the header text into lines and builds the key and contig dictionaries
+	 * Keys are numbered in the order they first appear, with PASS always first, unless a line gives its own IDX
+	 */
+	void parseHeader(String text)
+	{
+		headerLines = new ArrayList<String>();
+		keys = new ArrayList<String>();
+		contigs = new ArrayList<String>();
+		infoFlags = new HashMap<String, Boolean>();
+		HashMap<String, Integer> keyIndex = new HashMap<String, Integer>();
+		keys.add("PASS");
+		keyIndex.put("PASS", 0);
+		
+		for(String line : text.split("\n"))
+		{
+			int end = line.length();
+			while(end > 0 && (line.charAt(end - 1) == '\0' || line.charAt(end - 1) == '\r'))
+			{
+				end--;
+			}
+			line = line.substring(0, end);
+			if(line.length() == 0)
+			{
+				continue;
+			}
+			
+			boolean isKey = line.startsWith("##INFO=<") || line.startsWith("##FILTER=<") || line.startsWith("##FORMAT=<");
+			boolean isContig = line.startsWith("##contig=<");
+			if(isKey || isContig)
+			{
+				String id = headerAttribute(line, "ID");
+				String idx = headerAttribute(line, "IDX");
+				ArrayList<String> dictionary = isKey ? keys : contigs;
+				if(idx != null)
+				{
+					int index = Integer.parseInt(idx);
+					while(dictionary.size() <= index)
+					{
+						dictionary.add(null);
+					}
+					dictionary.set(index, id);
+					if(isKey)
+					{
+						keyIndex.put(id, index);
+					}
+					line = removeHeaderAttribute(line, "IDX");
+				}
+				else if(isContig)
+				{
+					contigs.add(id);
+				}
+				else if(!keyIndex.containsKey(id))
+				{
+					keyIndex.put(id, keys.size());
+					keys.add(id);
+				}
+				if(line.startsWith("##INFO=<"))
+				{
+					infoFlags.put(id, "Flag".equals(headerAttribute(line, "Type")));
+				}
+			}
+			headerLines.add(line);
+		}
+	}
+	
+	/*
+	 * Gets the value of an attribute in a structured header line like ##INFO=<ID=...,Type=...>, or null if it's not there
+	 */
+	static String headerAttribute(String line, String key)
+	{
+		int[] bounds = findHeaderAttribute(line, key);
+		if(bounds == null)
+		{
+			return null;
+		}
+		return line.substring(bounds[1], bounds[2]);
+	}
+	
+	/*
+	 * Removes an attribute, along with the comma before it, from a structured header line
+	 */
+	static String removeHeaderAttribute(String line, String key)
+	{
+		int[] bounds = findHeaderAttribute(line, key);
+		if(bounds == null)
+		{
+			return line;
+		}
+		int start = bounds[0];
+		if(start > 0 && line.charAt(start - 1) == ',')
+		{
+			start--;
+		}
+		return line.substring(0, start) + line.substring(bounds[2]);
+	}
+	
+	/*
+	 * Finds the start of an attribute's key and the start and end of its value in a structured header line
+	 * Commas and angle brackets inside quoted values are skipped over
+	 */
+	private static int[] findHeaderAttribute(String line, String key)
+	{
+		int start = line.indexOf('<');
+		if(start == -1)
+		{
+			return null;
+		}
+		start++;
+		while(start < line.length())
+		{
+			int equalIndex = line.indexOf('=', start);
+			if(equalIndex == -1)
+			{
+				return null;
+			}
+			int valueEnd = equalIndex + 1;
+			boolean quoted = false;
+			while(valueEnd < line.length())
+			{
+				char c = line.charAt(valueEnd);
+				if(c == '"')
+				{
+					quoted = !quoted;
+				}
+				else if(!quoted && (c == ',' || c == '>'))
+				{
+					break;
+				}
+				valueEnd++;
+			}
+			if(line.substring(start, equalIndex).equals(key))
+			{
+				return new int[] {start, equalIndex + 1, valueEnd};
+			}
+			start = valueEnd + 1;
+		}
+		return null;
+	}
+	
+	/*
+	 * Reads the next record's two blocks without decoding them
+	 * Returns false if there are no more records
+	 */
+	boolean nextRecord() throws IOException
+	{
+		int first = input.read();
+		if(first == -1)
+		{
+			return false;
+		}
+		int sharedLength = first | (input.read() << 8) | (input.read() << 16) | (input.read() << 24);
+		int indivLength = readInt();
+		shared = readBlock(shared, sharedLength);
+		indiv = readBlock(indiv, indivLength);
+		return true;
+	}
+	
+	/*
+	 * Reads a block of a given length into a buffer, growing it if needed
+	 */
+	private ByteBuffer readBlock(ByteBuffer buf, int length) throws IOException
+	{
+		if(buf.capacity() < length)
+		{
+			buf = ByteBuffer.allocate(Math.max(length, 2 * buf.capacity())).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		input.readFully(buf.array(), 0, length);
+		buf.clear();
+		buf.limit(length);
+		return buf;
+	}
+	
+	/*
+	 * Reads a little-endian 32-bit integer from the file
+	 */
+	private int readInt() throws IOException
+	{
+		int b0 = input.read(), b1 = input.read(), b2 = input.read(), b3 = input.read();
+		if((b0 | b1 | b2 | b3) < 0)
+		{
+			throw new EOFException("Truncated BCF file");
+		}
+		return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+	}
+	
+	/*
+	 * The contig of the current record, without decoding anything else
+	 */
+	String recordContig() throws IOException
+	{
+		int chrom = shared.getInt(0);
+		if(chrom < 0 || chrom >= contigs.size())
+		{
+			throw new IOException("BCF record refers to a contig which is not in the header: " + chrom);
+		}
+		return contigs.get(chrom);
+	}
+	
+	/*
+	 * The 1-based position of the current record, without decoding anything else
+	 */
+	long recordPos()
+	{
+		return shared.getInt(4) + 1L;
+	}
+	
+	/*
+	 * Moves to a BGZF virtual offset in the file, as given by an index, so the next record read is the one there
+	 */
+	void seek(String filename, long virtualOffset) throws IOException
+	{
+		input.close();
+		input = new DataInputStream(new BufferedInputStream(BgzfInputStream.openAt(filename, virtualOffset, pool), 1 << 16));
+	}
+	
+	/*
+	 * Decodes CHROM through INFO of the current record into VCF columns
+	 */
+	String[] siteColumns() throws IOException
+	{
+		ByteBuffer buf = shared;
+		buf.position(0);
+		String[] columns = new String[8];
+		int chrom = buf.getInt();
+		if(chrom < 0 || chrom >= contigs.size() || contigs.get(chrom) == null)
+		{
+			throw new IOException("BCF record refers to a contig which is not in the header: " + chrom);
+		}
+		columns[0] = contigs.get(chrom);
+		columns[1] = (buf.getInt() + 1) + "";
+		buf.getInt(); // The length of the reference allele, which REF already gives
+		int qualBits = buf.getInt();
+		columns[5] = qualBits == FLOAT_MISSING ? "." : formatFloat(Float.intBitsToFloat(qualBits));
+		int alleleInfo = buf.getInt();
+		int infoCount = alleleInfo & 0xffff;
+		int alleleCount = alleleInfo >>> 16;
+		int formatSample = buf.getInt();
+		sampleCount = formatSample & 0xffffff;
+		formatCount = formatSample >>> 24;
+		
+		String id = readString(buf);
+		columns[2] = id.length() == 0 ? "." : id;
+		
+		StringBuilder alt = new StringBuilder();
+		columns[3] = alleleCount == 0 ? "." : readString(buf);
+		for(int i = 1; i<alleleCount; i++)
+		{
+			if(i > 1)
+			{
+				alt.append(',');
+			}
+			alt.append(readString(buf));
+		}
+		columns[4] = alleleCount <= 1 ? "." : alt.toString();
+		
+		// FILTER is a vector of key indices
+		int[] filters = readIntVector(buf);
+		if(filters.length == 0)
+		{
+			columns[6] = ".";
+		}
+		else
+		{
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; i<filters.length; i++)
+			{
+				if(i > 0)
+				{
+					sb.append(';');
+				}
+				sb.append(key(filters[i]));
+			}
+			columns[6] = sb.toString();
+		}
+		
+		StringBuilder info = new StringBuilder();
+		for(int i = 0; i<infoCount; i++)
+		{
+			if(i > 0)
+			{
+				info.append(';');
+			}
+			String key = key(readTypedInt(buf));
+			info.append(key);
+			int descriptor = buf.get() & 0xff;
+			int type = descriptor & 0xf;
+			int count = readCount(buf, descriptor);
+			if(type == TYPE_NULL || count == 0 || Boolean.TRUE.equals(infoFlags.get(key)))
+			{
+				skipValues(buf, type, count);
+				continue;
+			}
+			info.append('=');
+			appendValues(info, buf, type, count, false);
+		}
+		columns[7] = infoCount == 0 ? "." : info.toString();
+		return columns;
+	}
+	
+	/*
+	 * Decodes the FORMAT keys of the current record, along with each sample's values for them
+	 * as text, with sampleValues[sample][field] being the value of the field'th key in that sample
+	 */
+	String[] formatKeys(String[][] sampleValues) throws IOException
+	{
+		ByteBuffer buf = indiv;
+		buf.position(0);
+		String[] formatKeys = new String[formatCount];
+		StringBuilder sb = new StringBuilder();
+		for(int f = 0; f<formatCount; f++)
+		{
+			formatKeys[f] = key(readTypedInt(buf));
+			int descriptor = buf.get() & 0xff;
+			int type = descriptor & 0xf;
+			int count = readCount(buf, descriptor);
+			boolean genotype = formatKeys[f].equals("GT") && type != TYPE_CHAR;
+			for(int s = 0; s<sampleCount; s++)
+			{
+				sb.setLength(0);
+				appendValues(sb, buf, type, count, genotype);
+				sampleValues[s][f] = sb.toString();
+			}
+		}
+		return formatKeys;
+	}
+	
+	/*
+	 * Gets the key with a given index in the dictionary
+	 */
+	private String key(int index) throws IOException
+	{
+		if(index < 0 || index >= keys.size() || keys.get(index) == null)
+		{
+			throw new IOException("BCF record refers to a key which is not in the header: " + index);
+		}
+		return keys.get(index);
+	}
+	
+	/*
+	 * Reads the number of values from a type descriptor, which is stored as a separate typed integer if it's 15 or more
+	 */
+	private static int readCount(ByteBuffer buf, int descriptor)
+	{
+		int count = descriptor >> 4;
+		if(count == 15)
+		{
+			count = readTypedInt(buf);
+		}
+		return count;
+	}
+	
+	/*
+	 * Reads a single typed integer
+	 */
+	private static int readTypedInt(ByteBuffer buf)
+	{
+		int type = buf.get() & 0xf;
+		return readInt(buf, type);
+	}
+	
+	/*
+	 * Reads one integer of a given type
+	 */
+	private static int readInt(ByteBuffer buf, int type)
+	{
+		if(type == TYPE_INT8)
+		{
+			return buf.get();
+		}
+		else if(type == TYPE_INT16)
+		{
+			return buf.getShort();
+		}
+		return buf.getInt();
+	}
+	
+	/*
+	 * Reads a typed string, dropping any NUL padding
+	 */
+	private static String readString(ByteBuffer buf)
+	{
+		int descriptor = buf.get() & 0xff;
+		int count = readCount(buf, descriptor);
+		return readChars(buf, count);
+	}
+	
+	/*
+	 * Reads a given number of bytes as a string which ends at the first NUL
+	 */
+	private static String readChars(ByteBuffer buf, int count)
+	{
+		int start = buf.position();
+		int length = 0;
+		while(length < count && buf.get(start + length) != 0)
+		{
+			length++;
+		}
+		buf.position(start + count);
+		return new String(buf.array(), start, length, StandardCharsets.UTF_8);
+	}
+	
+	/*
+	 * Reads a typed vector of integers, leaving out missing values and vector padding
+	 */
+	private static int[] readIntVector(ByteBuffer buf)
+	{
+		int descriptor = buf.get() & 0xff;
+		int type = descriptor & 0xf;
+		int count = readCount(buf, descriptor);
+		int[] values = new int[count];
+		int length = 0;
+		for(int i = 0; i<count; i++)
+		{
+			int value = readInt(buf, type);
+			if(!isMissingOrEnd(value, type))
+			{
+				values[length++] = value;
+			}
+		}
+		return length == count ? values : Arrays.copyOf(values, length);
+	}
+	
+	/*
+	 * The width in bytes of a single value of a given type
+	 */
+	private static int width(int type)
+	{
+		switch(type)
+		{
+			case TYPE_INT8: case TYPE_CHAR: return 1;
+			case TYPE_INT16: return 2;
+			case TYPE_NULL: return 0;
+			default: return 4;
+		}
+	}
+	
+	/*
+	 * Skips over a given number of values
+	 */
+	private static void skipValues(ByteBuffer buf, int type, int count)
+	{
+		buf.position(buf.position() + width(type) * count);
+	}
+	
+	private static boolean isMissingOrEnd(int value, int type)
+	{
+		if(type == TYPE_INT8)
+		{
+			return value == INT8_MISSING || value == INT8_END;
+		}
+		else if(type == TYPE_INT16)
+		{
+			return value == INT16_MISSING || value == INT16_END;
+		}
+		return value == INT32_MISSING || value == INT32_END;
+	}
+	
+	private static boolean isEnd(int value, int type)
+	{
+		if(type == TYPE_INT8)
+		{
+			return value == INT8_END;
+		}
+		else if(type == TYPE_INT16)
+		{
+			return value == INT16_END;
+		}
+		return value == INT32_END;
+	}
+	
+	/*
+	 * Appends a vector of values in its VCF text form: comma-separated numbers with '.' for missing ones,
+	 * a string for characters, or alleles separated by '/' or '|' for genotypes
+	 */
+	private static void appendValues(StringBuilder sb, ByteBuffer buf, int type, int count, boolean genotype)
+	{
+		if(type == TYPE_CHAR)
+		{
+			sb.append(readChars(buf, count));
+			return;
+		}
+		int start = sb.length();
+		boolean ended = false;
+		for(int i = 0; i<count; i++)
+		{
+			String value = null;
+			if(type == TYPE_FLOAT)
+			{
+				int bits = buf.getInt();
+				ended |= bits == FLOAT_END;
+				value = bits == FLOAT_MISSING ? "." : formatFloat(Float.intBitsToFloat(bits));
+			}
+			else if(type == TYPE_NULL)
+			{
+				continue;
+			}
+			else
+			{
+				int v = readInt(buf, type);
+				ended |= isEnd(v, type);
+				if(ended)
+				{
+					continue;
+				}
+				if(genotype)
+				{
+					if(i > 0)
+					{
+						sb.append((v & 1) != 0 ? '|' : '/');
+					}
+					int allele = (v >> 1) - 1;
+					sb.append(allele < 0 || isMissingOrEnd(v, type) ? "." : (allele + ""));
+					continue;
+				}
+				value = isMissingOrEnd(v, type) ? "." : (v + "");
+			}
+			if(ended)
+			{
+				continue;
+			}
+			if(sb.length() > start)
+			{
+				sb.append(',');
+			}
+			sb.append(value);
+		}
+		if(sb.length() == start)
+		{
+			sb.append('.');
+		}
+	}
+	
+	/*
+	 * Formats a float the way htslib writes it, which is most likely how it was written in the text version:
+	 * without a decimal point if it's a whole number, and otherwise like printf's %g with as few significant digits
+	 * as it takes to give back the same float, so 0.0001 stays 0.0001 and 0.00001 becomes 1e-05
+	 */
+	static String formatFloat(float f)
+	{
+		if(f == Math.rint(f) && Math.abs(f) < 1e9)
+		{
+			return ((long)f) + "";
+		}
+		if(Float.isNaN(f) || Float.isInfinite(f))
+		{
+			return Float.toString(f);
+		}
+		
+		// The fewest significant digits which round back to the same float
+		BigDecimal exact = new BigDecimal((double)f);
+		BigDecimal value = exact;
+		for(int digits = 1; digits <= 9; digits++)
+		{
+			value = exact.round(new MathContext(digits, RoundingMode.HALF_EVEN));
+			if(value.floatValue() == f)
+			{
+				break;
+			}
+		}
+		value = value.stripTrailingZeros();
+		int digits = value.precision();
+		int exponent = digits - value.scale() - 1;
+		
+		// Like %g, use scientific notation for very small numbers and for numbers with more integer digits than precision
+		if(exponent < -4 || exponent >= Math.max(6, digits))
+		{
+			String mantissa = value.unscaledValue().abs().toString();
+			StringBuilder sb = new StringBuilder();
+			if(value.signum() < 0)
+			{
+				sb.append('-');
+			}
+			sb.append(mantissa.charAt(0));
+			if(mantissa.length() > 1)
+			{
+				sb.append('.').append(mantissa, 1, mantissa.length());
+			}
+			sb.append(exponent < 0 ? "e-" : "e+");
+			if(Math.abs(exponent) < 10)
+			{
+				sb.append('0');
+			}
+			sb.append(Math.abs(exponent));
+			return sb.toString();
+		}
+		return value.toPlainString();
+	}
+	
+	public void close() throws IOException
+	{
+		input.close();
+	}
+}
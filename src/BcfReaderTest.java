@@ -0,0 +1,59 @@
+/*
+ * Test to make sure reading a BCF file gives the same records as reading the equivalent text VCF
+ * The test files cover INFO flags, missing values, and multiple samples.
+ * Output should be the number of records compared, followed by "All tests passed".
+ */
+import java.util.ArrayList;
+
+public class BcfReaderTest {
+public static void main(String[] args) throws Exception
+{
+	String vcfFile = args.length > 0 ? args[0] : "test_data/bcf_test.vcf";
+	String bcfFile = args.length > 1 ? args[1] : "test_data/bcf_test.bcf";
+	
+	ArrayList<String> vcfRecords = readRecords(vcfFile), bcfRecords = readRecords(bcfFile);
+	int failures = 0;
+	if(vcfRecords.size() != bcfRecords.size())
+	{
+		System.out.println("Record counts differ: " + vcfRecords.size() + " " + bcfRecords.size());
+		failures++;
+	}
+	for(int i = 0; i<Math.min(vcfRecords.size(), bcfRecords.size()); i++)
+	{
+		if(!vcfRecords.get(i).equals(bcfRecords.get(i)))
+		{
+			System.out.println("Records differ:");
+			System.out.println(vcfRecords.get(i));
+			System.out.println(bcfRecords.get(i));
+			failures++;
+		}
+	}
+	System.out.println("Records compared: " + vcfRecords.size());
+	
+	System.out.println(failures == 0 ? "All tests passed" : (failures + " tests failed"));
+}
+
+/*
+ * Every record in a file, both as parsed normally and with no normalization, along with the fields looked up from it
+ */
+static ArrayList<String> readRecords(String filename) throws Exception
+{
+	ArrayList<String> res = new ArrayList<String>();
+	VcfRecordReader input = new VcfRecordReader(filename, null);
+	while(input.advance())
+	{
+		if(input.isHeader())
+		{
+			continue;
+		}
+		VcfEntry entry = input.entry();
+		VcfEntry raw = input.rawEntry();
+		VcfEntry site = input.siteEntry();
+		res.add(entry + "\n" + raw + "\n" + site.getChromosome() + " " + site.getPos() + " " + site.getType() + " "
+				+ site.getEnd() + " " + site.getLength() + " " + site.getStrand() + " " + site.hasInfoFlag("PRECISE")
+				+ " " + site.hasInfoFlag("IMPRECISE") + " " + site.getSeq());
+	}
+	input.close();
+	return res;
+}
+}
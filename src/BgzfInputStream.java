@@ -0,0 +1,344 @@
+/*
+ * A stream for reading BGZF files, the blocked gzip format used by bgzip and tabix
+ * Every BGZF block is an independent gzip member of at most 64 KB, so when the stream is given
+ * a pool of worker threads, blocks are read ahead from the file and decompressed on them while
+ * the caller is still consuming earlier blocks.  Without one, each block is decompressed on the
+ * calling thread when it is reached.  Blocks are always handed out in file order.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class BgzfInputStream extends InputStream
+{
+	// The length of the fixed part of a BGZF block header
+	static int HEADER_LENGTH = 12;
+	
+	// How many blocks to keep in flight per worker thread
+	static int BLOCKS_PER_THREAD = 4;
+	
+	// The worker threads to decompress blocks on, or null to decompress them on the calling thread
+	DecompressionPool pool;
+	
+	// The compressed file
+	DataInputStream raw;
+	
+	// Blocks which have been read from the file and are being (or have been) decompressed
+	ArrayDeque<Future<byte[]>> pending;
+	
+	// The maximum number of blocks in pending
+	int readAhead;
+	
+	// Whether or not the compressed file has been fully read
+	boolean rawDone;
+	
+	// The decompressed block currently being consumed
+	byte[] current;
+	int currentPos;
+	
+	BgzfInputStream(InputStream in)
+	{
+		this(in, null);
+	}
+	
+	/*
+	 * Reads a BGZF stream, decompressing blocks ahead of the caller on the given pool if it is not null
+	 * The pool belongs to the caller, which shuts it down once it is done reading.
+	 */
+	BgzfInputStream(InputStream in, DecompressionPool pool)
+	{
+		raw = new DataInputStream(in);
+		this.pool = pool;
+		pending = new ArrayDeque<Future<byte[]>>();
+		readAhead = pool == null ? 0 : BLOCKS_PER_THREAD * pool.threads;
+		rawDone = false;
+		current = new byte[0];
+		currentPos = 0;
+	}
+	
+	/*
+	 * Opens a BGZF file at a virtual offset: the offset of a block in the file in the upper 48 bits,
+	 * and the offset within that block once it is decompressed in the lower 16
+	 */
+	static BgzfInputStream openAt(String filename, long virtualOffset, DecompressionPool pool) throws IOException
+	{
+		FileChannel file = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		file.position(virtualOffset >>> 16);
+		BgzfInputStream res = new BgzfInputStream(new BufferedInputStream(Channels.newInputStream(file), 1 << 16), pool);
+		long toSkip = virtualOffset & 0xffff;
+		while(toSkip > 0)
+		{
+			if(res.read() == -1)
+			{
+				res.close();
+				throw new EOFException("Index points past the end of " + filename);
+			}
+			toSkip--;
+		}
+		return res;
+	}
+	
+	/*
+	 * Whether or not the start of a file looks like a BGZF block: a gzip header with the extra field set
+	 * and a "BC" subfield at the start of it
+	 */
+	static boolean isBgzf(byte[] header, int length)
+	{
+		return length >= 16 && (header[0] & 0xff) == 31 && (header[1] & 0xff) == 139
+				&& (header[3] & 4) != 0 && header[12] == 'B' && header[13] == 'C';
+	}
+	
+	/*
+	 * Reads the next raw block from the file, or returns null at the end of the file
+	 */
+	private byte[] readRawBlock() throws IOException
+	{
+		byte[] header = new byte[HEADER_LENGTH];
+		int first = raw.read();
+		if(first == -1)
+		{
+			return null;
+		}
+		header[0] = (byte)first;
+		raw.readFully(header, 1, HEADER_LENGTH - 1);
+		if((header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || (header[3] & 4) == 0)
+		{
+			throw new IOException("Invalid BGZF block header");
+		}
+		int extraLength = (header[10] & 0xff) | ((header[11] & 0xff) << 8);
+		byte[] extra = new byte[extraLength];
+		raw.readFully(extra);
+		
+		// Find the BSIZE subfield, which gives the total block size minus one
+		int blockSize = -1;
+		int offset = 0;
+		while(offset + 4 <= extraLength)
+		{
+			int subfieldLength = (extra[offset + 2] & 0xff) | ((extra[offset + 3] & 0xff) << 8);
+			if(extra[offset] == 'B' && extra[offset + 1] == 'C' && subfieldLength == 2)
+			{
+				blockSize = ((extra[offset + 4] & 0xff) | ((extra[offset + 5] & 0xff) << 8)) + 1;
+			}
+			offset += 4 + subfieldLength;
+		}
+		if(blockSize == -1)
+		{
+			throw new IOException("BGZF block is missing its BSIZE field");
+		}
+		
+		// The rest of the block is the compressed data plus the CRC and uncompressed size
+		byte[] rest = new byte[blockSize - HEADER_LENGTH - extraLength];
+		raw.readFully(rest);
+		return rest;
+	}
+	
+	/*
+	 * Reads blocks from the file and sends them off for decompression until enough are in flight
+	 */
+	private void fillPipeline() throws IOException
+	{
+		while(!rawDone && pending.size() < readAhead)
+		{
+			byte[] block = readRawBlock();
+			if(block == null)
+			{
+				rawDone = true;
+				break;
+			}
+			pending.add(pool.submit(new InflateTask(block)));
+		}
+	}
+	
+	/*
+	 * Moves on to the next non-empty decompressed block
+	 * Returns false at the end of the stream
+	 */
+	private boolean nextBlock() throws IOException
+	{
+		while(currentPos == current.length)
+		{
+			if(pool == null)
+			{
+				byte[] block = readRawBlock();
+				if(block == null)
+				{
+					return false;
+				}
+				current = new InflateTask(block).call();
+				currentPos = 0;
+				continue;
+			}
+			fillPipeline();
+			if(pending.isEmpty())
+			{
+				return false;
+			}
+			try
+			{
+				current = pending.poll().get();
+			}
+			catch(InterruptedException e)
+			{
+				throw new IOException(e);
+			}
+			catch(ExecutionException e)
+			{
+				throw new IOException(e.getCause());
+			}
+			currentPos = 0;
+		}
+		return true;
+	}
+	
+	public int read() throws IOException
+	{
+		if(!nextBlock())
+		{
+			return -1;
+		}
+		return current[currentPos++] & 0xff;
+	}
+	
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if(len == 0)
+		{
+			return 0;
+		}
+		if(!nextBlock())
+		{
+			return -1;
+		}
+		int count = Math.min(len, current.length - currentPos);
+		System.arraycopy(current, currentPos, b, off, count);
+		currentPos += count;
+		return count;
+	}
+	
+	public void close() throws IOException
+	{
+		for(Future<byte[]> f : pending)
+		{
+			f.cancel(false);
+		}
+		pending.clear();
+		raw.close();
+	}
+	
+	/*
+	 * Decompresses a single block and checks it against its CRC and size
+	 */
+	static class InflateTask implements Callable<byte[]>
+	{
+		byte[] block;
+		
+		InflateTask(byte[] block)
+		{
+			this.block = block;
+		}
+		
+		public byte[] call() throws IOException
+		{
+			int n = block.length;
+			if(n < 8)
+			{
+				throw new EOFException("Truncated BGZF block");
+			}
+			long expectedCrc = readInt(block, n - 8) & 0xffffffffL;
+			int uncompressedSize = readInt(block, n - 4);
+			byte[] res = new byte[uncompressedSize];
+			Inflater inflater = new Inflater(true);
+			try
+			{
+				inflater.setInput(block, 0, n - 8);
+				int done = 0;
+				while(done < uncompressedSize && !inflater.finished())
+				{
+					int got = inflater.inflate(res, done, uncompressedSize - done);
+					if(got == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					{
+						break;
+					}
+					done += got;
+				}
+				if(done != uncompressedSize)
+				{
+					throw new IOException("BGZF block decompressed to the wrong size");
+				}
+			}
+			catch(DataFormatException e)
+			{
+				throw new IOException("Invalid BGZF block", e);
+			}
+			finally
+			{
+				inflater.end();
+			}
+			CRC32 crc = new CRC32();
+			crc.update(res);
+			if(crc.getValue() != expectedCrc)
+			{
+				throw new IOException("BGZF block failed CRC check");
+			}
+			return res;
+		}
+		
+		static int readInt(byte[] b, int offset)
+		{
+			return (b[offset] & 0xff) | ((b[offset + 1] & 0xff) << 8)
+					| ((b[offset + 2] & 0xff) << 16) | ((b[offset + 3] & 0xff) << 24);
+		}
+	}
+	
+	/*
+	 * A fixed-size pool of daemon threads, so that open streams never keep the program alive
+	 * Each pool is owned by whatever reads through it, which sizes it from its own share of the threads
+	 * and shuts it down when it is finished.
+	 */
+	static class DecompressionPool extends ThreadPoolExecutor
+	{
+		int threads;
+		
+		/*
+		 * Makes a pool with the given number of threads, or returns null if there are none to spare,
+		 * in which case streams decompress on the threads reading them
+		 */
+		static DecompressionPool withThreads(int threads)
+		{
+			return threads < 1 ? null : new DecompressionPool(threads);
+		}
+		
+		DecompressionPool(int threads)
+		{
+			super(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread t = Executors.defaultThreadFactory().newThread(r);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			this.threads = threads;
+		}
+	}
+}
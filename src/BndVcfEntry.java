@@ -7,7 +7,18 @@ public class BndVcfEntry extends VcfEntry {
 	String[] altTokens;
 	public BndVcfEntry(String line) throws Exception
 	{
-		super(line);
+		this(line, false);
+	}
+	
+	public BndVcfEntry(String line, boolean projected) throws Exception
+	{
+		super(line, projected);
+		altTokens =  getAlt().split("[\\[\\]]");
+	}
+	
+	public BndVcfEntry(String[] columns) throws Exception
+	{
+		super(columns);
 		altTokens =  getAlt().split("[\\[\\]]");
 	}
 	
@@ -4,10 +4,8 @@
  */
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Scanner;
 
 public class DuplicationsToInsertions {
 	static String inputFile = "";
@@ -35,7 +33,7 @@ public class DuplicationsToInsertions {
 	 */
 	static void convertFile(String inputFile, String genomeFile, String outputFile) throws Exception
 	{
-		Scanner input = new Scanner(new FileInputStream(new File(inputFile)));
+		VcfRecordReader input = new VcfRecordReader(inputFile);
 		
 		GenomeQuery gq = new GenomeQuery(genomeFile);
 		
@@ -46,16 +44,15 @@ public class DuplicationsToInsertions {
 		
 		int countDup = 0;
 		
-		while(input.hasNext())
+		while(input.advance())
 		{
-			String line = input.nextLine();
-			if(line.startsWith("#"))
+			if(input.isHeader())
 			{
-				header.addLine(line);
+				header.addLine(input.headerLine());
 			}
-			else if(line.length() > 0)
+			else
 			{
-				VcfEntry ve = new VcfEntry(line);
+				VcfEntry ve = input.rawEntry();
 				if(ve.getType().equals("DUP") && ve.getLength() < Settings.MAX_DUP_LEN)
 				{
 					countDup++;
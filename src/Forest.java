@@ -14,13 +14,13 @@ public class Forest
 	long[][] sampleMask; // For each root node, a bitmask of which samples are present in its component
 	static int samplesPerMask = 63;
 	
-	public Forest(Variant[] data)
+	public Forest(VariantStore data)
 	{
-		int n = data.length;
+		int n = data.n;
 		int maxSample = 0;
 		for(int i = 0; i<n; i++)
 		{
-			maxSample = Math.max(maxSample, data[i].sample);
+			maxSample = Math.max(maxSample, data.sample[i]);
 		}
 		
 		// Each component may require multiple 64-bit integers to hold its bitset of sample IDs if there are many samples
@@ -30,8 +30,8 @@ public class Forest
 		sampleMask = new long[masksNeeded][n];
 		for(int i = 0; i<n; i++)
 		{
-			int maskId = data[i].sample / samplesPerMask;
-			int maskVal = data[i].sample % samplesPerMask;
+			int maskId = data.sample[i] / samplesPerMask;
+			int maskVal = data.sample[i] % samplesPerMask;
 			sampleMask[maskId][i] |= (1L << maskVal);
 		}
 		
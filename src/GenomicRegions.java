@@ -0,0 +1,189 @@
+/*
+ * A set of genomic regions which the input files can be restricted to
+ * The regions are given either as a single region like chr1:10000-20000 (1-based and inclusive, the same as samtools and
+ * bcftools use), or as a BED file (0-based and half-open).  A record is in the regions if its POS is, so every record is
+ * in or out no matter how long it is, and a record is never read twice when regions are next to each other.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+public class GenomicRegions
+{
+	// The chromosomes which have any regions, in the order they were first given
+	ArrayList<String> chromosomes;
+	
+	// For each chromosome, its regions as sorted, non-overlapping 1-based inclusive intervals, with starts and ends interleaved
+	HashMap<String, long[]> intervals;
+	
+	/*
+	 * Parses a region string or reads a BED file, depending on whether or not the argument names a file
+	 */
+	static GenomicRegions parse(String spec) throws Exception
+	{
+		if(new File(spec).isFile())
+		{
+			return fromBed(spec);
+		}
+		GenomicRegions res = new GenomicRegions();
+		res.addRegionString(spec);
+		res.finish();
+		return res;
+	}
+	
+	/*
+	 * Reads the regions in a BED file, ignoring comments and track/browser lines
+	 */
+	static GenomicRegions fromBed(String filename) throws Exception
+	{
+		GenomicRegions res = new GenomicRegions();
+		LineReader input = new LineReader(filename);
+		while(input.hasNext())
+		{
+			String line = input.nextLine();
+			if(line.length() == 0 || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser"))
+			{
+				continue;
+			}
+			String[] tokens = line.split("\\s+");
+			if(tokens.length < 3)
+			{
+				input.close();
+				throw new Exception("BED line does not have a chromosome, start, and end: " + line);
+			}
+			res.add(tokens[0], Long.parseLong(tokens[1]) + 1, Long.parseLong(tokens[2]));
+		}
+		input.close();
+		res.finish();
+		return res;
+	}
+	
+	private GenomicRegions()
+	{
+		chromosomes = new ArrayList<String>();
+		intervals = new HashMap<String, long[]>();
+	}
+	
+	/*
+	 * Adds a region written as chr, chr:start, or chr:start-end, where the numbers can have commas in them
+	 * Chromosome names can have colons in them too, so the part after the last colon is only taken as a range if it is one.
+	 */
+	private void addRegionString(String region) throws Exception
+	{
+		int colon = region.lastIndexOf(':');
+		if(colon != -1)
+		{
+			String range = region.substring(colon + 1).replace(",", "");
+			int dash = range.indexOf('-');
+			String startString = dash == -1 ? range : range.substring(0, dash);
+			String endString = dash == -1 ? "" : range.substring(dash + 1);
+			if(startString.matches("[0-9]+") && endString.matches("[0-9]*"))
+			{
+				long start = Long.parseLong(startString);
+				long end = endString.length() == 0 ? Long.MAX_VALUE : Long.parseLong(endString);
+				if(end < start)
+				{
+					throw new Exception("Region ends before it starts: " + region);
+				}
+				add(region.substring(0, colon), start, end);
+				return;
+			}
+		}
+		add(region, 1, Long.MAX_VALUE);
+	}
+	
+	/*
+	 * Adds the 1-based inclusive interval [start, end] on a chromosome
+	 */
+	private void add(String chrom, long start, long end)
+	{
+		long[] list = intervals.get(chrom);
+		if(list == null)
+		{
+			chromosomes.add(chrom);
+			list = new long[0];
+		}
+		list = Arrays.copyOf(list, list.length + 2);
+		list[list.length - 2] = Math.max(start, 1);
+		list[list.length - 1] = end;
+		intervals.put(chrom, list);
+	}
+	
+	/*
+	 * Sorts the intervals on each chromosome and merges any which overlap or touch
+	 */
+	private void finish()
+	{
+		for(String chrom : chromosomes)
+		{
+			long[] list = intervals.get(chrom);
+			long[][] pairs = new long[list.length / 2][];
+			for(int i = 0; i<pairs.length; i++)
+			{
+				pairs[i] = new long[] {list[2*i], list[2*i+1]};
+			}
+			Arrays.sort(pairs, new Comparator<long[]>()
+			{
+				public int compare(long[] a, long[] b)
+				{
+					return Long.compare(a[0], b[0]);
+				}
+			});
+			
+			long[] merged = new long[list.length];
+			int count = 0;
+			for(long[] pair : pairs)
+			{
+				if(count > 0 && pair[0] - 1 <= merged[count - 1])
+				{
+					merged[count - 1] = Math.max(merged[count - 1], pair[1]);
+				}
+				else
+				{
+					merged[count++] = pair[0];
+					merged[count++] = pair[1];
+				}
+			}
+			intervals.put(chrom, Arrays.copyOf(merged, count));
+		}
+	}
+	
+	/*
+	 * Whether or not a 1-based position on a chromosome is in any of the regions
+	 */
+	boolean contains(String chrom, long pos)
+	{
+		long[] list = intervals.get(chrom);
+		if(list == null)
+		{
+			return false;
+		}
+		
+		// Find the last interval which starts at or before the position
+		int lo = 0, hi = list.length / 2 - 1;
+		while(lo <= hi)
+		{
+			int mid = (lo + hi) / 2;
+			if(list[2*mid] <= pos)
+			{
+				lo = mid + 1;
+			}
+			else
+			{
+				hi = mid - 1;
+			}
+		}
+		return hi >= 0 && pos <= list[2*hi+1];
+	}
+	
+	/*
+	 * The intervals on a chromosome, as sorted, non-overlapping (start, end) pairs, or null if it has none
+	 */
+	long[] intervalsOn(String chrom)
+	{
+		return intervals.get(chrom);
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * A neighbor index which buckets the variants into a uniform grid of square cells over (start, end)
+ * The cells are one more than a high percentile of maxDist in the graph on each side, so the neighbors nearly every
+ * variant is asked about are in its own cell or one of the eight around it.  The few variants with a larger maxDist,
+ * such as very long SVs under a length-based threshold, look through a wider block of cells instead of making every
+ * cell large enough for them.  This does not depend on how the variants are spread out, so it holds up in dense
+ * clusters of near-identical calls where the other indexes do the most work per neighbor.
+ *
+ * The variants are stored sorted by cell column and then by cell row, so the cells of one column which a query needs
+ * are next to each other and each column only takes a pair of binary searches to find.
+ */
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+public class GridIndex implements NeighborIndex
+{
+	// The fraction of variants whose maxDist the cells are sized to cover with a 3x3 block of cells
+	static double CELL_PERCENTILE = 0.95;
+	
+	int n;
+	
+	// The length of each side of a cell
+	double cellSize;
+	
+	// The cell column and row, start and end, and index of each variant, in order of cell
+	long[] cellX, cellY;
+	double[] starts, ends;
+	int[] ids;
+	
+	// The variants being indexed
+	VariantStore store;
+	
+	GridIndex(VariantStore store)
+	{
+		this.store = store;
+		n = store.n;
+		
+		cellSize = cellSize(store.maxDist, n);
+		
+		final long[] columns = new long[n], rows = new long[n];
+		Integer[] order = new Integer[n];
+		for(int i = 0; i<n; i++)
+		{
+			columns[i] = cell(store.start[i]);
+			rows[i] = cell(store.end[i]);
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				if(columns[a] != columns[b]) return Long.compare(columns[a], columns[b]);
+				return Long.compare(rows[a], rows[b]);
+			}
+		});
+		
+		cellX = new long[n];
+		cellY = new long[n];
+		starts = new double[n];
+		ends = new double[n];
+		ids = new int[n];
+		for(int i = 0; i<n; i++)
+		{
+			ids[i] = order[i];
+			cellX[i] = columns[ids[i]];
+			cellY[i] = rows[ids[i]];
+			starts[i] = store.start[ids[i]];
+			ends[i] = store.end[ids[i]];
+		}
+	}
+	
+	/*
+	 * The side length of the cells for a set of distance thresholds: one more than their CELL_PERCENTILE percentile,
+	 * so that one very long SV does not make every cell span most of the graph
+	 */
+	static double cellSize(int[] maxDist, int n)
+	{
+		if(n == 0)
+		{
+			return 1.0;
+		}
+		int[] sorted = Arrays.copyOf(maxDist, n);
+		Arrays.sort(sorted);
+		return sorted[Math.min(n - 1, (int)(CELL_PERCENTILE * n))] + 1.0;
+	}
+	
+	/*
+	 * The column or row of the cells which a coordinate falls in
+	 */
+	long cell(double coordinate)
+	{
+		return (long)Math.floor(coordinate / cellSize);
+	}
+	
+	/*
+	 * How many cells away from a point's cell another point within a radius of it can be
+	 * This is 1 for the radii of most variants, so it looks at 3x3 cells, and more for the few with a larger maxDist.
+	 */
+	long span(double radius)
+	{
+		return (long)Math.min(1L << 40, Math.ceil((radius + 1e-9) / cellSize));
+	}
+	
+	/*
+	 * The first position whose cell is not before (column, row), comparing by column and then by row
+	 */
+	int lowerBound(long column, long row)
+	{
+		int lo = 0, hi = n;
+		while(lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if(cellX[mid] < column || (cellX[mid] == column && cellY[mid] < row))
+			{
+				lo = mid + 1;
+			}
+			else
+			{
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	public int nearestWithin(int p, int k, double radius, int[] res)
+	{
+		double x = store.start[p], y = store.end[p];
+		long cx = cell(x), cy = cell(y), span = span(radius);
+		int count = 0;
+		int i = lowerBound(cx - span, Long.MIN_VALUE);
+		while(i < n && cellX[i] <= cx + span)
+		{
+			long column = cellX[i];
+			int end = lowerBound(column, cy + span + 1);
+			for(i = lowerBound(column, cy - span); i < end; i++)
+			{
+				double dist = VariantStore.pointDistance(starts[i] - x, ends[i] - y);
+				if(dist > radius + 1e-9)
+				{
+					continue;
+				}
+				count = store.addNeighbor(res, count, k, ids[i], dist, x, y);
+			}
+			i = lowerBound(column + 1, Long.MIN_VALUE);
+		}
+		return count;
+	}
+	
+	public NeighborCursor neighborsWithin(int p, double radius, boolean mutual)
+	{
+		return new Cursor(p, radius, mutual);
+	}
+	
+	/*
+	 * A cursor which finds every neighbor in the nearby cells all at once, and then hands them out in order
+	 */
+	class Cursor extends NeighborCursor
+	{
+		Cursor(int p, double radius, boolean mutual)
+		{
+			super(GridIndex.this.store, GridIndex.this.store.start[p], GridIndex.this.store.end[p]);
+			long cx = cell(x), cy = cell(y), span = span(radius);
+			int i = lowerBound(cx - span, Long.MIN_VALUE);
+			while(i < n && cellX[i] <= cx + span)
+			{
+				long column = cellX[i];
+				int end = lowerBound(column, cy + span + 1);
+				for(i = lowerBound(column, cy - span); i < end; i++)
+				{
+					double dist = VariantStore.pointDistance(starts[i] - x, ends[i] - y);
+					if(dist > radius + 1e-9 || (mutual && dist > store.maxDist[ids[i]] + 1e-9))
+					{
+						continue;
+					}
+					pushCandidate(ids[i], dist);
+				}
+				i = lowerBound(column + 1, Long.MIN_VALUE);
+			}
+		}
+		
+		boolean findNext()
+		{
+			return candidateCount > 0;
+		}
+	}
+}
@@ -249,7 +249,7 @@ public class IgvScreenshotMaker {
 					}
 				}
 				
-				if(PRECISE && !entry.tabTokens[7].startsWith("PRECISE;") && !entry.tabTokens[7].contains(";PRECISE;"))
+				if(PRECISE && !entry.hasInfoFlag("PRECISE"))
 				{
 					passesFilters = false;
 				}
@@ -3,10 +3,7 @@
  * Usage: java InsertionsToDuplications input_vcf output_vcf
  */
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.PrintWriter;
-import java.util.Scanner;
 
 public class InsertionsToDuplications {
 	static String inputFile = "";
@@ -31,9 +28,9 @@ public class InsertionsToDuplications {
 	 */
 	static void convertFile(String inputFile, String outputFile) throws Exception
 	{
-		Scanner input = new Scanner(new FileInputStream(new File(inputFile)));
+		LineReader input = new LineReader(inputFile);
 		
-		PrintWriter out = new PrintWriter(new File(outputFile));
+		PrintWriter out = PipelineManager.openOutput(outputFile);
 		
 		VcfHeader header = new VcfHeader();
 		
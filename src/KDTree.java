@@ -2,294 +2,639 @@
  * Data structure for fast k-nearest neighbor queries in variant sets
  * For a given query, the k closest points to it in the dataset will be reported,
  * breaking ties by variant ID to ensure deterministic behavior.
- * 
+ *
  * We assume variants are 2-D points; nearness is based on Euclidean distance or its generalizations.
- * 
- * Uses algorithm described here: 
+ *
+ * Uses algorithm described here:
  * https://courses.cs.washington.edu/courses/cse599c1/13wi/slides/lsh-hashkernels-annotated.pdf
+ *
+ * The tree is stored implicitly in flat arrays rather than as node objects.  The points are rearranged so that every
+ * subtree is a contiguous range of them, split at its median along start or end in turn, and the splitting stops once a
+ * range is small enough to be a leaf bucket which queries scan straight through.  Internal node i has its children at
+ * 2i+1 and 2i+2, and since a range is always split at its middle, the range a node covers never has to be stored.
  */
 
-import java.util.ArrayDeque;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.PriorityQueue;
-import java.util.Stack;
+import java.util.Arrays;
 
-public class KDTree 
+public class KDTree implements NeighborIndex
 {
-	Node root;
-	Node search;
-	PriorityQueue<Candidate> best;
-	int cnt;
-	int querySize;
+	// The most points a leaf can have
+	static final int BUCKET_SIZE = 16;
+	
 	int K;
 	
 	int n;
 	
+	// The coordinates and variant indices of the points, in the order of the leaves they are in
+	double[] xs, ys;
+	int[] ids;
+	
+	// For each internal node, the value along its dimension which it splits its points at
+	double[] splits;
+	
+	// For every node, leaves included, the largest maxDist of any variant in its subtree
+	int[] reach;
+	
+	// The variants in the tree, which the points refer to by index
+	VariantStore store;
+	
+	// When the tree was built from Variant objects, the objects themselves so that queries can return them
+	Variant[] source;
+	
 	/*
 	 * Initializes a KD-tree from a list of variants
 	 */
-	public KDTree(Variant[] p) 
+	public KDTree(Variant[] p)
 	{
-		n = p.length;
-		K = 2;
-		LinkedList<Node> list = new LinkedList<Node>();
-		for (Variant q : p) list.add(new Node(q));
-		root = build(list, 0);//buildNonrecursive(list, 0).get(0);
+		this(new VariantStore(p));
+		source = p;
 	}
 	
-	public KDTree(Variant[] p, boolean recursive) 
+	/*
+	 * Initializes a balanced KD-tree over all of the variants in a store
+	 * Each subtree is split at the median of its variants along start or end in turn, so the depth is logarithmic
+	 * no matter what order the variants come in.
+	 */
+	public KDTree(VariantStore store)
 	{
-		n = p.length;
+		this.store = store;
+		n = store.n;
 		K = 2;
-		LinkedList<Node> list = new LinkedList<Node>();
-		for (Variant q : p) list.add(new Node(q));
-		root = recursive ? build(list, 0) : buildNonrecursive(list).get(0);
+		build();
 	}
 	
-	private Node build(LinkedList<Node> p, int depth) 
+	/*
+	 * Whether or not a range of points is small enough to be a leaf instead of being split
+	 */
+	private static boolean isLeaf(int lo, int hi)
 	{
-		if (p.size() == 0) return null;
-		Node pivot = p.remove();
-		
-		// Sort the points into left and right subtrees based on current split dimension
-		LinkedList<Node> left = new LinkedList<Node>();
-		LinkedList<Node> right = new LinkedList<Node>();
-		while (!p.isEmpty()) 
-		{
-			if (p.peek().planes[depth % K] < pivot.planes[depth % K])
-				left.add(p.remove());
-			else
-				right.add(p.remove());
-		}
-		pivot.children[0] = build(left, depth + 1);
-		pivot.children[1] = build(right, depth + 1);
-		
-		return pivot;
+		return hi - lo <= BUCKET_SIZE;
 	}
 	
 	/*
-	 * Build the data structure from a list of points without recursion
-	 * This avoids stack overflow issues caused by larger datasets
+	 * Builds the tree by repeatedly selecting medians in place in an array of variant indices
+	 * The ranges waiting to be split are kept on an explicit stack, which never holds more than one range per level.
 	 */
-	private ArrayList<Node> buildNonrecursive(LinkedList<Node> p) 
+	private void build()
 	{
-		ArrayList<Node> nodeList = new ArrayList<Node>();
-		if(p.size() == 0)
+		// Ranges at depth d have at most ceil(n / 2^d) points, so this is the deepest any leaf can be
+		int levels = 0;
+		while(n > 0 && !isLeaf(0, ((n - 1) >> levels) + 1))
 		{
-			return null;
+			levels++;
 		}
+		splits = new double[(1 << levels) - 1];
 		
-		// The stack of node lists to process (in place of recursive calls)
-		ArrayDeque<LinkedList<Node>> toProcess = new ArrayDeque<LinkedList<Node>>();
-		ArrayDeque<Integer> parents = new ArrayDeque<Integer>();
-		ArrayDeque<Integer> depths = new ArrayDeque<Integer>();
-		ArrayDeque<Integer> parentsides = new ArrayDeque<Integer>();
+		int[] order = new int[n];
+		for(int i = 0; i<n; i++)
+		{
+			order[i] = i;
+		}
 		
-		// Initialize root to null to be filled 
-		//nodeList.add(res);
-		toProcess.addFirst(p);
-		parents.addFirst(-1); // This is not actually the parent of the root, but it will be ignored anyways
-		depths.addFirst(0);
-		parentsides.addFirst(-1);
+		// Each range [lo, hi) waiting to be split, along with its node and depth
+		int capacity = levels + 1;
+		int[] los = new int[capacity], his = new int[capacity], nodes = new int[capacity], depths = new int[capacity];
+		int size = 0;
+		los[size] = 0;
+		his[size] = n;
+		nodes[size] = 0;
+		depths[size] = 0;
+		size++;
 		
-		while(!toProcess.isEmpty())
+		while(size > 0)
 		{
-			// Get information for processing this node from stacks
-			LinkedList<Node> pcur = toProcess.pollFirst();
-			int parentcur = parents.pollFirst();
-			int depthcur = depths.pollFirst();
-			int parentsidecur = parentsides.pollFirst();
-			
-			// Get pivot as the first point in the list
-			Node pivot = pcur.remove();
-			
-			// Separate this point into points left of the pivot vs. right of the pivot
-			LinkedList<Node> left = new LinkedList<Node>();
-			LinkedList<Node> right = new LinkedList<Node>();
-			while (!pcur.isEmpty()) 
-			{
-				Node check = pcur.pollFirst();
-				if (check.planes[depthcur % K] < pivot.planes[depthcur % K])
-					left.add(check);
-				else
-					right.add(check);
-			}
-			
-			//pcur.clear();
-			
-			// Update this node's parent's child-pointer to this node.
-			if(parentsidecur != -1)
+			size--;
+			int lo = los[size], hi = his[size], node = nodes[size], depth = depths[size];
+			if(isLeaf(lo, hi))
 			{
-				nodeList.get(parentcur).children[parentsidecur] = pivot;
+				continue;
 			}
 			
-			pivot.children[0] = null;
-			pivot.children[1] = null;
-			nodeList.add(pivot);
-			
-			// Add right child to processing stack
-			if(right.size() > 0)
-			{
-				toProcess.addFirst(right);
-				parents.addFirst(nodeList.size() - 1);
-				parentsides.addFirst(1);
-				depths.addFirst(depthcur + 1);
-			}
+			int mid = (lo + hi) >>> 1;
+			int dim = depth % K;
+			select(order, lo, hi, mid, dim);
+			splits[node] = dim == 0 ? store.start[order[mid]] : store.end[order[mid]];
 			
-			// Add left child to processing stack
-			if(left.size() > 0)
-			{
-				toProcess.addFirst(left);
-				parents.addFirst(nodeList.size() - 1);
-				parentsides.addFirst(0);
-				depths.addFirst(depthcur + 1);
-			}
+			los[size] = mid;
+			his[size] = hi;
+			nodes[size] = 2 * node + 2;
+			depths[size] = depth + 1;
+			size++;
+			los[size] = lo;
+			his[size] = mid;
+			nodes[size] = 2 * node + 1;
+			depths[size] = depth + 1;
+			size++;
+		}
+		
+		xs = new double[n];
+		ys = new double[n];
+		ids = order;
+		for(int i = 0; i<n; i++)
+		{
+			xs[i] = store.start[order[i]];
+			ys[i] = store.end[order[i]];
 		}
 		
-		return nodeList;
+		reach = new int[2 * splits.length + 1];
+		fillReach(0, 0, n);
 	}
 	
 	/*
-	 * Used to make sure two KD-trees are the same
+	 * Fills in the largest maxDist in the subtree covering points [lo, hi) and all of the subtrees below it
+	 * The tree is balanced, so the recursion is only as deep as the number of levels.
 	 */
-	static boolean compare(String pref, Node a, Node b)
+	private int fillReach(int node, int lo, int hi)
 	{
-		if(a == null && b != null)
-		{
-			System.out.println(pref + " only a is null");
-			return true;
-		}
-		if(b == null && a != null)
+		int res = 0;
+		if(isLeaf(lo, hi))
 		{
-			System.out.println(pref + " only b is null");
-			return true;
-		}
-		if(a == null && b == null)
-		{
-			return false;
-		}
-		if(a.planes[0] != b.planes[0] || a.planes[1] != b.planes[1])
-		{
-			System.out.println(pref + " diff value: " + a.planes[0] + " " + a.planes[1] + " " + b.planes[0] + " " + b.planes[1]);
-			return true;
+			for(int i = lo; i<hi; i++)
+			{
+				res = Math.max(res, store.maxDist[ids[i]]);
+			}
 		}
-		
-		boolean leftDiff = compare(pref + "L", a.children[0], b.children[0]);
-		if(leftDiff)
+		else
 		{
-			return true;
+			int mid = (lo + hi) >>> 1;
+			res = Math.max(fillReach(2 * node + 1, lo, mid), fillReach(2 * node + 2, mid, hi));
 		}
-		else
+		reach[node] = res;
+		return res;
+	}
+	
+	/*
+	 * Rearranges order[lo, hi) so that the variant with the k-th smallest value along a dimension is at index k,
+	 * with no larger values before it and no smaller values after it
+	 * Partitioning is three-way, so ranges with many equal values (such as repeated calls of the same variant) stay linear.
+	 */
+	private void select(int[] order, int lo, int hi, int k, int dim)
+	{
+		double[] coords = dim == 0 ? store.start : store.end;
+		hi--;
+		while(hi > lo)
 		{
-			return compare(pref + "R", a.children[1], b.children[1]);
+			double a = coords[order[lo]], b = coords[order[(lo + hi) >>> 1]], c = coords[order[hi]];
+			double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+			
+			// Afterwards [lo, lt) is below the pivot, [lt, gt] is equal to it, and (gt, hi] is above it
+			int lt = lo, i = lo, gt = hi;
+			while(i <= gt)
+			{
+				double value = coords[order[i]];
+				if(value < pivot)
+				{
+					swap(order, lt++, i++);
+				}
+				else if(value > pivot)
+				{
+					swap(order, i, gt--);
+				}
+				else
+				{
+					i++;
+				}
+			}
+			if(k < lt)
+			{
+				hi = lt - 1;
+			}
+			else if(k > gt)
+			{
+				lo = gt + 1;
+			}
+			else
+			{
+				return;
+			}
 		}
-		
+	}
+	
+	private static void swap(int[] order, int i, int j)
+	{
+		int tmp = order[i];
+		order[i] = order[j];
+		order[j] = tmp;
 	}
 	
 	/*
 	 * Gets the k nearest neighbors for a query variant
+	 * This is only available for trees built from Variant objects
 	 */
 	public Variant[] kNearestNeighbor(Variant p, int k) {
-		search = new Node(p);
-		best = new PriorityQueue<Candidate>();
-		querySize = k;
-		search(root, 0);
-		Variant[] res = new Variant[best.size()];
-		int idx = res.length - 1;
-		while(!best.isEmpty())
+		int[] indices = kNearestNeighbor(p.start, p.end, k);
+		Variant[] res = new Variant[indices.length];
+		for(int i = 0; i<indices.length; i++)
 		{
-			res[idx--] = best.poll().v;
+			res[i] = source[indices[i]];
 		}
 		return res;
 	}
 	
 	/*
-	 * Search the subtree rooted at cur for candidate points in the set of query's k-nearest neighbors
+	 * Gets the indices of the k nearest neighbors of the variant at a given index
 	 */
-	private void search(Node ocur, int odepth) {
-		Stack<Node> curs = new Stack<Node>();
-		Stack<Integer> depths = new Stack<Integer>();
-		Stack<Boolean> processedBest = new Stack<Boolean>();
-		curs.add(ocur);
-		depths.add(odepth);
-		processedBest.push(false);
-		while(!curs.isEmpty())
+	public int[] kNearestNeighbor(int p, int k) {
+		return kNearestNeighbor(store.start[p], store.end[p], k);
+	}
+	
+	/*
+	 * Gets the indices of the k nearest neighbors of a point, from nearest to farthest
+	 */
+	int[] kNearestNeighbor(double x, double y, int k) {
+		int[] res = new int[Math.max(0, Math.min(k, n))];
+		kNearestNeighbor(x, y, k, res);
+		return res;
+	}
+	
+	/*
+	 * Writes the indices of the k nearest neighbors of a point into the start of an array, from nearest to farthest,
+	 * and returns how many there are
+	 * The array must have room for min(k, n) of them.  Nothing is allocated once the calling thread's search buffers
+	 * are big enough, so this can be called over and over while merging without making any garbage.
+	 */
+	int kNearestNeighbor(double x, double y, int k, int[] res) {
+		return kNearestNeighbor(x, y, k, Double.POSITIVE_INFINITY, res);
+	}
+	
+	public int nearestWithin(int p, int k, double radius, int[] res)
+	{
+		return kNearestNeighbor(store.start[p], store.end[p], k, radius, res);
+	}
+	
+	/*
+	 * Writes the indices of the k nearest neighbors of a point which are within a radius of it into the start of an array,
+	 * from nearest to farthest, and returns how many there are
+	 */
+	int kNearestNeighbor(double x, double y, int k, double radius, int[] res) {
+		k = Math.min(k, n);
+		if(k <= 0)
 		{
-			Node cur = curs.pop();
-			int depth = depths.pop();
-			boolean bestDone = processedBest.pop();
-			
-			if(cur == null) continue;
-			
-			int betterChild = (int) Math.signum(search.planes[depth % K] - cur.planes[depth % K]) < 0 ? 0 : 1;
+			return 0;
+		}
+		Searcher s = SEARCHERS.get();
+		s.tree = this;
+		s.ensureCapacity(splits.length, k);
+		int[] nodes = s.nodes, los = s.los, his = s.his, depths = s.depths;
+		double[] bounds = s.bounds;
+		s.heapSize = 0;
+		
+		int size = 0;
+		nodes[size] = 0;
+		los[size] = 0;
+		his[size] = n;
+		depths[size] = 0;
+		bounds[size] = 0;
+		size++;
+		
+		while(size > 0)
+		{
+			size--;
+			int node = nodes[size], lo = los[size], hi = his[size], depth = depths[size];
+			double bound = bounds[size];
 			
-			if(!bestDone)
+			// Points on the other side of a plane can be as close as the plane, and one exactly as far as the current
+			// k-th nearest can still win the tie-break, so a subtree is only skipped if its plane is strictly farther
+			// The tree older releases searched skipped it once the plane was as far as the k-th nearest, so the merger
+			// goes back to that search (LegacyKDTree) whenever the k-th nearest is tied with the next one.
+			if(bound > radius + 1e-9 || (s.heapSize == k && bound > s.heapDists[0] + 1e-9))
 			{
-				curs.add(cur);
-				depths.add(depth);
-				processedBest.add(true);
-				curs.add(cur.children[betterChild]);
-				depths.add(depth+1);
-				processedBest.add(false);
 				continue;
 			}
-			Candidate toAdd = new Candidate(cur.p, cur.p.distance(search.p));
-			if (best == null || best.size() < querySize || toAdd.compareTo(best.peek()) > 0) 
+			
+			// Walk down to the leaf on the query's side, leaving the farther child of each node to be searched afterwards
+			while(!isLeaf(lo, hi))
 			{
-				if(best.size() == querySize)
+				int mid = (lo + hi) >>> 1;
+				double diff = (depth % K == 0 ? x : y) - splits[node];
+				depth++;
+				if(diff < 0)
 				{
-					best.poll();
+					nodes[size] = 2 * node + 2;
+					los[size] = mid;
+					his[size] = hi;
+					node = 2 * node + 1;
+					hi = mid;
 				}
-				best.add(toAdd);
+				else
+				{
+					nodes[size] = 2 * node + 1;
+					los[size] = lo;
+					his[size] = mid;
+					node = 2 * node + 2;
+					lo = mid;
+				}
+				depths[size] = depth;
+				bounds[size] = Math.max(bound, Math.abs(diff));
+				size++;
 			}
-			if (best.size() < querySize || Math.abs(search.planes[depth % K] - cur.planes[depth % K]) < best.peek().dist)
+			
+			for(int i = lo; i<hi; i++)
 			{
-				curs.add(cur.children[1 - betterChild]);
-				depths.add(depth+1);
-				processedBest.add(false);
+				double dist = VariantStore.pointDistance(xs[i] - x, ys[i] - y);
+				if(dist > radius + 1e-9)
+				{
+					continue;
+				}
+				if(s.heapSize < k)
+				{
+					s.offer(ids[i], dist);
+				}
+				else if(store.compareNeighbors(ids[i], dist, s.heapIds[0], s.heapDists[0]) > 0)
+				{
+					s.poll();
+					s.offer(ids[i], dist);
+				}
 			}
 		}
+		
+		int count = s.heapSize;
+		for(int i = count - 1; i >= 0; i--)
+		{
+			res[i] = s.heapIds[0];
+			s.poll();
+		}
+		return count;
+	}
+	
+	/*
+	 * Starts iterating from nearest to farthest over the variants within a radius of the variant at a given index
+	 * If mutual is set, variants which are farther than their own maxDist from it are left out as well, and whole
+	 * subtrees are skipped once they are farther than any maxDist in them.
+	 */
+	public NeighborCursor neighborsWithin(int p, double radius, boolean mutual)
+	{
+		return new Cursor(store.start[p], store.end[p], radius, mutual);
 	}
 	
 	/*
-	 * A node of the KD tree
-	 * Each node has a variant, storing alongside it its values along the split planes, as well as two (possibly null) children
+	 * A cursor which searches the tree best-first for as many neighbors as are needed, without knowing how many that is
+	 * ahead of time
+	 * Subtrees waiting to be searched are kept in a heap by how close their points can be to the query, and a candidate
+	 * is only handed out once every subtree which could still hold a nearer one has been searched.  This frontier is kept
+	 * between calls, so the work done for each neighbor is never repeated.
 	 */
-	private class Node {
-		Node[] children;
-		Variant p;
-		double[] planes;
-		public Node(Variant pp) 
+	class Cursor extends NeighborCursor
+	{
+		// How far away the variants handed out can be, and whether they also have to be within their own maxDist
+		double radius;
+		boolean mutual;
+		
+		// A heap of the subtrees not yet searched, with the one whose points can be nearest at the top
+		int[] nodes, los, his;
+		double[] bounds;
+		int nodeCount;
+		
+		Cursor(double x, double y, double radius, boolean mutual)
+		{
+			super(KDTree.this.store, x, y);
+			this.radius = radius;
+			this.mutual = mutual;
+			nodes = new int[16];
+			los = new int[16];
+			his = new int[16];
+			bounds = new double[16];
+			if(n > 0)
+			{
+				pushNode(0, 0, n, 0);
+			}
+		}
+		
+		/*
+		 * Whether or not a subtree whose points are at least a given distance away can be left out entirely
+		 */
+		private boolean canSkip(int node, double bound)
+		{
+			return bound > radius + 1e-9 || (mutual && bound > reach[node] + 1e-9);
+		}
+		
+		boolean findNext()
 		{
-			p = pp;
-			planes = new double[K];
-			planes[0] = p.start;
-			planes[1] = p.end; // add additional dimensions as necessary
-			children = new Node[2];
-			children[0] = null;
-			children[1] = null;
+			while(true)
+			{
+				// Subtrees no more than 1e-9 farther than the best candidate could still hold a point which wins the tie-break
+				if(candidateCount > 0 && (nodeCount == 0 || bounds[0] > dists[0] + 1e-9))
+				{
+					return true;
+				}
+				if(nodeCount == 0)
+				{
+					return false;
+				}
+				
+				int node = nodes[0], lo = los[0], hi = his[0];
+				double bound = bounds[0];
+				pollNode();
+				
+				// Walk down to the leaf on the query's side, leaving the farther child of each node for later
+				int depth = 31 - Integer.numberOfLeadingZeros(node + 1);
+				boolean skipped = false;
+				while(!isLeaf(lo, hi) && !skipped)
+				{
+					int mid = (lo + hi) >>> 1;
+					double diff = (depth % K == 0 ? x : y) - splits[node];
+					double farBound = Math.max(bound, Math.abs(diff));
+					depth++;
+					if(diff < 0)
+					{
+						pushNode(2 * node + 2, mid, hi, farBound);
+						node = 2 * node + 1;
+						hi = mid;
+					}
+					else
+					{
+						pushNode(2 * node + 1, lo, mid, farBound);
+						node = 2 * node + 2;
+						lo = mid;
+					}
+					skipped = mutual && canSkip(node, bound);
+				}
+				if(skipped)
+				{
+					continue;
+				}
+				for(int i = lo; i<hi; i++)
+				{
+					double dist = VariantStore.pointDistance(xs[i] - x, ys[i] - y);
+					if(dist > radius + 1e-9 || (mutual && dist > store.maxDist[ids[i]] + 1e-9))
+					{
+						continue;
+					}
+					pushCandidate(ids[i], dist);
+				}
+			}
+		}
+		
+		private void pushNode(int node, int lo, int hi, double bound)
+		{
+			if(canSkip(node, bound))
+			{
+				return;
+			}
+			if(nodeCount == nodes.length)
+			{
+				nodes = Arrays.copyOf(nodes, 2 * nodeCount);
+				los = Arrays.copyOf(los, 2 * nodeCount);
+				his = Arrays.copyOf(his, 2 * nodeCount);
+				bounds = Arrays.copyOf(bounds, 2 * nodeCount);
+			}
+			int i = nodeCount++;
+			while(i > 0)
+			{
+				int parent = (i - 1) >>> 1;
+				if(bounds[parent] <= bound)
+				{
+					break;
+				}
+				moveNode(parent, i);
+				i = parent;
+			}
+			nodes[i] = node;
+			los[i] = lo;
+			his[i] = hi;
+			bounds[i] = bound;
+		}
+		
+		private void pollNode()
+		{
+			int lastIndex = --nodeCount;
+			double bound = bounds[lastIndex];
+			int i = 0, half = lastIndex >>> 1;
+			while(i < half)
+			{
+				int child = 2 * i + 1;
+				if(child + 1 < lastIndex && bounds[child + 1] < bounds[child])
+				{
+					child++;
+				}
+				if(bound <= bounds[child])
+				{
+					break;
+				}
+				moveNode(child, i);
+				i = child;
+			}
+			moveNode(lastIndex, i);
+		}
+		
+		private void moveNode(int from, int to)
+		{
+			nodes[to] = nodes[from];
+			los[to] = los[from];
+			his[to] = his[from];
+			bounds[to] = bounds[from];
 		}
 	}
 	
+	// The search buffers of each thread, which are shared by all of the trees that thread queries
+	private static final ThreadLocal<Searcher> SEARCHERS = new ThreadLocal<Searcher>()
+	{
+		protected Searcher initialValue()
+		{
+			return new Searcher();
+		}
+	};
+	
 	/*
-	 * Candidate k-nearest neighbor of the current query point
+	 * The reusable state of a k-nearest neighbor search: a stack of subtrees still to visit, and a heap of the
+	 * best candidates found so far with the farthest one at the top
+	 * The heap is sifted the same way as java.util.PriorityQueue so that candidates come out in exactly the same order.
 	 */
-	private static class Candidate implements Comparable<Candidate>
+	private static class Searcher
 	{
-		Variant v;
-		double dist;
-		Candidate(Variant v, double dist)
+		// The tree being searched, which candidates are compared by
+		KDTree tree;
+		
+		// For each subtree on the stack, its node, range of points, depth, and how close its points can be to the query
+		int[] nodes, los, his, depths;
+		double[] bounds;
+		
+		int[] heapIds;
+		double[] heapDists;
+		int heapSize;
+		
+		Searcher()
 		{
-			this.v = v;
-			this.dist = dist;
+			nodes = los = his = depths = new int[0];
+			bounds = new double[0];
+			heapIds = new int[0];
+			heapDists = new double[0];
 		}
-		public int compareTo(Candidate o)
+		
+		/*
+		 * Makes sure the stack can hold a search of a tree with a given number of internal nodes, and the heap can hold k candidates
+		 */
+		void ensureCapacity(int internalNodes, int k)
 		{
-			if(Math.abs(dist - o.dist) > 1e-9) return Double.compare(o.dist, dist);
-			if(v.hash != o.v.hash) return o.v.hash - v.hash;
-			return o.v.id.compareTo(v.id);
-			
+			// A search never has more than one subtree per level waiting
+			int levels = 32 - Integer.numberOfLeadingZeros(internalNodes);
+			if(nodes.length < levels + 1)
+			{
+				int capacity = Math.max(levels + 1, 2 * nodes.length);
+				nodes = new int[capacity];
+				los = new int[capacity];
+				his = new int[capacity];
+				depths = new int[capacity];
+				bounds = new double[capacity];
+			}
+			if(heapIds.length < k)
+			{
+				int capacity = Math.max(k, 2 * heapIds.length);
+				heapIds = new int[capacity];
+				heapDists = new double[capacity];
+			}
+		}
+		
+		/*
+		 * Adds a candidate to the heap, which must have room for it
+		 */
+		void offer(int v, double dist)
+		{
+			int i = heapSize++;
+			while(i > 0)
+			{
+				int parent = (i - 1) >>> 1;
+				if(tree.store.compareNeighbors(v, dist, heapIds[parent], heapDists[parent]) >= 0)
+				{
+					break;
+				}
+				heapIds[i] = heapIds[parent];
+				heapDists[i] = heapDists[parent];
+				i = parent;
+			}
+			heapIds[i] = v;
+			heapDists[i] = dist;
+		}
+		
+		/*
+		 * Removes the farthest candidate from the top of the heap
+		 */
+		void poll()
+		{
+			int last = --heapSize;
+			int v = heapIds[last];
+			double dist = heapDists[last];
+			int i = 0, half = last >>> 1;
+			while(i < half)
+			{
+				int child = 2 * i + 1;
+				if(child + 1 < last && tree.store.compareNeighbors(heapIds[child], heapDists[child], heapIds[child + 1], heapDists[child + 1]) > 0)
+				{
+					child++;
+				}
+				if(tree.store.compareNeighbors(v, dist, heapIds[child], heapDists[child]) <= 0)
+				{
+					break;
+				}
+				heapIds[i] = heapIds[child];
+				heapDists[i] = heapDists[child];
+				i = child;
+			}
+			if(last > 0)
+			{
+				heapIds[i] = v;
+				heapDists[i] = dist;
+			}
 		}
 	}
 }
@@ -0,0 +1,174 @@
+/*
+ * The KD-tree which the merger used to find nearest neighbors with in older releases, kept so that merges can still
+ * come out exactly the way they used to
+ *
+ * The tree is built over the variants in the order they are stored in: the first variant of a list becomes the node
+ * splitting it, and the rest go left if they are strictly below it along start or end in turn, and right otherwise.
+ * A search visits the child on the query's side of a split first, and only crosses to the other side while the split
+ * is strictly nearer than the k-th best candidate so far.  Because of that, when several variants are tied with the
+ * k-th nearest one, which of them are reported depends on the shape of the tree rather than on the tie-breaking rule.
+ * The faster indexes always report the ones the tie-breaking rule prefers, so this is only used for queries where such
+ * a tie exists.
+ *
+ * The nodes are variant indices, with the children of each kept in flat arrays rather than in node objects.
+ */
+
+import java.util.Arrays;
+
+public class LegacyKDTree
+{
+	int K;
+
+	int n;
+
+	// The variant at the root of the tree, or -1 if there are no variants
+	int root;
+
+	// For each variant, the variants at the roots of its left and right subtrees, or -1 where a subtree is empty
+	int[] left, right;
+
+	// The variants in the tree
+	VariantStore store;
+
+	/*
+	 * Builds the tree over all of the variants in a store without recursion, since it may be very deep
+	 */
+	public LegacyKDTree(VariantStore store)
+	{
+		this.store = store;
+		n = store.n;
+		K = 2;
+		left = new int[n];
+		right = new int[n];
+		Arrays.fill(left, -1);
+		Arrays.fill(right, -1);
+		root = n == 0 ? -1 : 0;
+
+		// The lists waiting to be split are kept as ranges of an array of variant indices, on an explicit stack
+		int[] order = new int[n];
+		int[] scratch = new int[n];
+		for(int i = 0; i<n; i++)
+		{
+			order[i] = i;
+		}
+		int[] los = new int[16], his = new int[16], depths = new int[16];
+		int top = 0;
+		if(n > 0)
+		{
+			los[0] = 0;
+			his[0] = n;
+			depths[0] = 0;
+			top = 1;
+		}
+		while(top > 0)
+		{
+			top--;
+			int lo = los[top], hi = his[top], depth = depths[top];
+			int pivot = order[lo];
+			double split = plane(pivot, depth);
+
+			// Split the rest of the list around the pivot, keeping the order within each side
+			int leftCount = 0, rightCount = 0;
+			for(int i = lo + 1; i<hi; i++)
+			{
+				int v = order[i];
+				if(plane(v, depth) < split)
+				{
+					order[lo + 1 + leftCount++] = v;
+				}
+				else
+				{
+					scratch[rightCount++] = v;
+				}
+			}
+			System.arraycopy(scratch, 0, order, lo + 1 + leftCount, rightCount);
+
+			if(top + 2 > los.length)
+			{
+				los = Arrays.copyOf(los, los.length * 2);
+				his = Arrays.copyOf(his, his.length * 2);
+				depths = Arrays.copyOf(depths, depths.length * 2);
+			}
+			if(leftCount > 0)
+			{
+				left[pivot] = order[lo + 1];
+				los[top] = lo + 1;
+				his[top] = lo + 1 + leftCount;
+				depths[top++] = depth + 1;
+			}
+			if(rightCount > 0)
+			{
+				right[pivot] = order[lo + 1 + leftCount];
+				los[top] = lo + 1 + leftCount;
+				his[top] = hi;
+				depths[top++] = depth + 1;
+			}
+		}
+	}
+
+	/*
+	 * The value of a variant along the dimension which nodes at a given depth split on
+	 */
+	double plane(int v, int depth)
+	{
+		return depth % K == 0 ? store.start[v] : store.end[v];
+	}
+
+	/*
+	 * Gets the k nearest neighbors of the variant at index p, from nearest to farthest, as the older releases found them
+	 */
+	int[] kNearestNeighbor(int p, int k)
+	{
+		double x = store.start[p], y = store.end[p];
+		int[] best = new int[Math.min(k, n)];
+		int count = 0;
+
+		// The nodes still to visit, along with their depths and whether the child nearer the query has been visited yet
+		int[] nodes = new int[16], depths = new int[16];
+		boolean[] nearDone = new boolean[16];
+		int top = 0;
+		if(root != -1)
+		{
+			nodes[0] = root;
+			depths[0] = 0;
+			nearDone[0] = false;
+			top = 1;
+		}
+		while(top > 0)
+		{
+			top--;
+			int cur = nodes[top], depth = depths[top];
+			boolean done = nearDone[top];
+			if(top + 2 > nodes.length)
+			{
+				nodes = Arrays.copyOf(nodes, nodes.length * 2);
+				depths = Arrays.copyOf(depths, depths.length * 2);
+				nearDone = Arrays.copyOf(nearDone, nearDone.length * 2);
+			}
+			double diff = (depth % K == 0 ? x : y) - plane(cur, depth);
+			int nearChild = diff < 0 ? left[cur] : right[cur];
+			int farChild = diff < 0 ? right[cur] : left[cur];
+			if(!done)
+			{
+				nodes[top] = cur;
+				depths[top] = depth;
+				nearDone[top++] = true;
+				if(nearChild != -1)
+				{
+					nodes[top] = nearChild;
+					depths[top] = depth + 1;
+					nearDone[top++] = false;
+				}
+				continue;
+			}
+			count = store.addNeighbor(best, count, best.length, cur, store.distFromPoint(cur, x, y), x, y);
+			if(farChild != -1 && (count < best.length || Math.abs(diff) < store.distFromPoint(best[count - 1], x, y)))
+			{
+				nodes[top] = farChild;
+				depths[top] = depth + 1;
+				nearDone[top++] = false;
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,430 @@
+/*
+ * A fast reader for line-based text files such as VCFs and BEDs
+ * The file is read through NIO in large chunks, and each line is found by scanning the raw bytes,
+ * so there is none of the regex matching or per-character decoding that Scanner does.
+ *
+ * Lines can be returned as Strings or as CharSequence views over the underlying bytes, which
+ * lets callers check things like header lines without allocating anything.
+ * The hasNext() method follows Scanner's semantics so that it can be used as a drop-in replacement.
+ *
+ * Gzipped input is detected from its first bytes and decompressed on the fly.  BGZF files, which are
+ * what bgzip produces, have their blocks decompressed in parallel.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+public class LineReader implements Closeable
+{
+	// The number of bytes read from the file at a time
+	static int CHUNK_SIZE = 1 << 22;
+	
+	// The number of bytes needed to tell gzip and BGZF files apart from plain text
+	static int MAGIC_LENGTH = 16;
+	
+	// Where the bytes come from
+	ReadableByteChannel channel;
+	
+	// The bytes read so far which have not been handed out yet are buf[pos, limit)
+	byte[] buf;
+	int pos, limit;
+	
+	// Whether or not the underlying channel has been exhausted
+	boolean eof;
+	
+	// How many more bytes may be read from the channel, for readers covering part of a file
+	long remaining;
+	
+	// A reusable view of the most recent line
+	ByteSlice view;
+	
+	// The offset in the (decompressed) input of buf[0]
+	long bufferOffset;
+	
+	/*
+	 * Opens a reader on a file
+	 */
+	public LineReader(String filename) throws IOException
+	{
+		this(openFile(filename));
+	}
+	
+	/*
+	 * Opens a reader on an arbitrary stream, such as standard input
+	 */
+	public LineReader(InputStream stream) throws IOException
+	{
+		this(Channels.newChannel(decompress(stream)));
+	}
+	
+	/*
+	 * Opens a reader on the byte range [start, end) of a plain text file
+	 * The range should begin at the start of a line and end just after a line terminator
+	 */
+	public LineReader(String filename, long start, long end) throws IOException
+	{
+		this(FileChannel.open(Paths.get(filename), StandardOpenOption.READ).position(start));
+		remaining = end - start;
+		bufferOffset = start;
+	}
+	
+	LineReader(ReadableByteChannel channel)
+	{
+		this.channel = channel;
+		buf = new byte[CHUNK_SIZE];
+		pos = 0;
+		limit = 0;
+		eof = false;
+		remaining = Long.MAX_VALUE;
+		view = new ByteSlice();
+		bufferOffset = 0;
+	}
+	
+	/*
+	 * Whether or not a file is an uncompressed regular file, which can be read in independent byte ranges
+	 */
+	static boolean isPlainFile(String filename) throws IOException
+	{
+		if(!Files.isRegularFile(Paths.get(filename)))
+		{
+			return false;
+		}
+		FileChannel file = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		try
+		{
+			ByteBuffer header = ByteBuffer.allocate(2);
+			while(header.hasRemaining() && file.read(header, header.position()) > 0);
+			return !isGzip(header.array(), header.position());
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+	
+	/*
+	 * Splits a plain text file into the given number of byte ranges, each of which starts at the beginning of a line
+	 * Returns the boundaries, so that range i is [res[i], res[i+1]); ranges may be empty
+	 */
+	static long[] lineAlignedRanges(String filename, int count) throws IOException
+	{
+		FileChannel file = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		try
+		{
+			long size = file.size();
+			long[] res = new long[count + 1];
+			res[count] = size;
+			ByteBuffer probe = ByteBuffer.allocate(1 << 16);
+			for(int i = 1; i<count; i++)
+			{
+				// Move to just after the first newline at or after the byte before the nominal boundary,
+				// so a boundary which already starts a line stays where it is
+				long scan = Math.max(res[i-1], size * i / count) - 1;
+				if(scan < 0)
+				{
+					continue;
+				}
+				long found = size;
+				while(scan < size)
+				{
+					probe.clear();
+					int read = file.read(probe, scan);
+					if(read <= 0)
+					{
+						break;
+					}
+					int j = 0;
+					while(j < read && probe.get(j) != '\n')
+					{
+						j++;
+					}
+					if(j < read)
+					{
+						found = scan + j + 1;
+						break;
+					}
+					scan += read;
+				}
+				res[i] = found;
+			}
+			return res;
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+	
+	/*
+	 * Opens a file, reading it directly if it is plain text and through a decompressing stream otherwise
+	 */
+	static ReadableByteChannel openFile(String filename) throws IOException
+	{
+		return openFile(filename, null);
+	}
+	
+	/*
+	 * Opens a file, decompressing it ahead of the reader on the given pool if it is BGZF and the pool is not null
+	 */
+	static ReadableByteChannel openFile(String filename, BgzfInputStream.DecompressionPool pool) throws IOException
+	{
+		FileChannel file = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		ByteBuffer header = ByteBuffer.allocate(MAGIC_LENGTH);
+		while(header.hasRemaining() && file.read(header, header.position()) > 0);
+		if(!isGzip(header.array(), header.position()))
+		{
+			return file;
+		}
+		InputStream stream = new BufferedInputStream(Channels.newInputStream(file), 1 << 16);
+		return Channels.newChannel(decompressor(stream, header.array(), header.position(), pool));
+	}
+	
+	/*
+	 * Wraps a stream in a decompressing stream if it starts with a gzip header
+	 */
+	static InputStream decompress(InputStream stream) throws IOException
+	{
+		BufferedInputStream buffered = new BufferedInputStream(stream, 1 << 16);
+		byte[] header = new byte[MAGIC_LENGTH];
+		buffered.mark(MAGIC_LENGTH);
+		int length = 0;
+		while(length < MAGIC_LENGTH)
+		{
+			int read = buffered.read(header, length, MAGIC_LENGTH - length);
+			if(read == -1)
+			{
+				break;
+			}
+			length += read;
+		}
+		buffered.reset();
+		if(!isGzip(header, length))
+		{
+			return buffered;
+		}
+		return decompressor(buffered, header, length, null);
+	}
+	
+	/*
+	 * Whether or not the first bytes of a file are the gzip magic number
+	 */
+	static boolean isGzip(byte[] header, int length)
+	{
+		return length >= 2 && (header[0] & 0xff) == 31 && (header[1] & 0xff) == 139;
+	}
+	
+	/*
+	 * Gets the right decompressing stream for a gzipped stream based on its header
+	 */
+	static InputStream decompressor(InputStream stream, byte[] header, int length, BgzfInputStream.DecompressionPool pool) throws IOException
+	{
+		if(BgzfInputStream.isBgzf(header, length))
+		{
+			return new BgzfInputStream(stream, pool);
+		}
+		return new GZIPInputStream(stream, 1 << 16);
+	}
+	
+	/*
+	 * Reads more bytes from the channel, keeping the unread ones at the front of the buffer
+	 * Returns false if there is nothing left to read
+	 */
+	private boolean fill() throws IOException
+	{
+		if(eof)
+		{
+			return false;
+		}
+		if(pos > 0)
+		{
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			bufferOffset += pos;
+			pos = 0;
+		}
+		
+		// Grow the buffer if a single line is too long to fit in it
+		if(limit == buf.length)
+		{
+			byte[] newBuf = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, newBuf, 0, limit);
+			buf = newBuf;
+		}
+		
+		int toRead = (int)Math.min(buf.length - limit, remaining);
+		int read = toRead == 0 ? -1 : channel.read(ByteBuffer.wrap(buf, limit, toRead));
+		if(read == -1)
+		{
+			eof = true;
+			return false;
+		}
+		limit += read;
+		remaining -= read;
+		return true;
+	}
+	
+	/*
+	 * Whether or not a byte is whitespace in the sense used by Scanner
+	 */
+	private static boolean isWhitespace(byte b)
+	{
+		return b == ' ' || (b >= 9 && b <= 13) || (b >= 28 && b <= 31);
+	}
+	
+	/*
+	 * Whether or not there is any non-whitespace text left in the file
+	 * Like Scanner, this means blank lines at the end of a file are never returned
+	 */
+	public boolean hasNext() throws IOException
+	{
+		int i = pos;
+		while(true)
+		{
+			for(; i < limit; i++)
+			{
+				if(!isWhitespace(buf[i]))
+				{
+					return true;
+				}
+			}
+			int offset = i - pos;
+			if(!fill())
+			{
+				return false;
+			}
+			i = pos + offset;
+		}
+	}
+	
+	/*
+	 * Advances past the next line and sets the view to cover it
+	 * Handles \n, \r\n, and \r line endings
+	 * Returns false if there are no more lines
+	 */
+	private boolean advance() throws IOException
+	{
+		int i = pos;
+		while(true)
+		{
+			for(; i < limit; i++)
+			{
+				byte b = buf[i];
+				if(b == '\n' || b == '\r')
+				{
+					// A \r at the end of the buffer may be followed by a \n which hasn't been read yet
+					if(b == '\r' && i + 1 == limit && !eof)
+					{
+						break;
+					}
+					view.set(pos, i - pos);
+					pos = i + 1;
+					if(b == '\r' && pos < limit && buf[pos] == '\n')
+					{
+						pos++;
+					}
+					return true;
+				}
+			}
+			int offset = i - pos;
+			boolean readMore = fill();
+			i = pos + offset;
+			if(!readMore && i == limit)
+			{
+				// The last line may not end with a newline
+				if(pos < limit)
+				{
+					view.set(pos, limit - pos);
+					pos = limit;
+					return true;
+				}
+				return false;
+			}
+		}
+	}
+	
+	/*
+	 * Gets the next line as a String, without the line terminator
+	 */
+	public String nextLine() throws IOException
+	{
+		if(!advance())
+		{
+			throw new NoSuchElementException("No line found");
+		}
+		return view.toString();
+	}
+	
+	/*
+	 * Gets a view of the next line without copying it
+	 * The view is reused, so it is only valid until the next call to the reader
+	 */
+	public CharSequence nextLineView() throws IOException
+	{
+		if(!advance())
+		{
+			throw new NoSuchElementException("No line found");
+		}
+		return view;
+	}
+	
+	/*
+	 * The offset in the input of the start of the most recent line, which for a plain text file is its byte offset in the file
+	 */
+	long lineOffset()
+	{
+		return bufferOffset + view.start;
+	}
+	
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+	
+	/*
+	 * A window into the reader's buffer
+	 * charAt() and length() work on bytes, which is exact for the ASCII text VCF files are made of,
+	 * while toString() decodes the bytes as UTF-8 to match what Scanner would have produced
+	 */
+	class ByteSlice implements CharSequence
+	{
+		int start, length;
+		
+		void set(int start, int length)
+		{
+			this.start = start;
+			this.length = length;
+		}
+		
+		public int length()
+		{
+			return length;
+		}
+		
+		public char charAt(int index)
+		{
+			return (char)(buf[start + index] & 0xff);
+		}
+		
+		public CharSequence subSequence(int from, int to)
+		{
+			return toString().substring(from, to);
+		}
+		
+		public String toString()
+		{
+			return new String(buf, start, length, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -16,12 +16,15 @@ public static void main(String[] args) throws Exception
 	if(Settings.USING_FILE_LIST)
 	{
 		File f = new File(currentInputFile);
-		if(!f.exists())
+		if(!f.exists() && !currentInputFile.equals("-"))
 		{
 			System.out.println("Warning: Input file list " + currentInputFile + " does not exist.");
 		}
 	}
 	
+	// Inputs coming from standard input or pipes need to be saved since they get read more than once
+	currentInputFile = PipelineManager.spoolStreamingInputs(currentInputFile);
+	
 	if(!Settings.POSTPROCESS_ONLY)
 	{
 		currentInputFile = preprocess(currentInputFile);
@@ -68,10 +71,10 @@ static String preprocess(String currentInputFile) throws Exception
 static void runJasmine(String currentInputFile) throws Exception
 {
 	// Get the variants and bin them into individual graphs
-	TreeMap<String, ArrayList<Variant>> allVariants = VariantInput.readAllFiles(currentInputFile);
+	TreeMap<String, VariantStore> allVariants = VariantInput.readAllFiles(currentInputFile);
 		
 	// Initialize data structure for outputting merged variants
-	VariantOutput output = new VariantOutput();
+	VariantOutput output = new VariantOutput(allVariants);
 		
 	// Get the number of samples to know the length of the SUPP_VEC field
 	int sampleCount = VariantInput.countFiles(currentInputFile);
@@ -83,7 +86,7 @@ static void runJasmine(String currentInputFile) throws Exception
 	System.out.println("Merging complete - outputting results");
 		
 	// Print the merged variants to a file if they have enough support
-	output.writeMergedVariants(currentInputFile, Settings.OUT_FILE);
+	output.writeMergedVariants(currentInputFile, PipelineManager.outputFor(Settings.CONVERT_DUPLICATIONS, Settings.OUTPUT_GENOTYPES));
 		
 	System.out.println("Number of sets with multiple variants: " + pm.totalMerged.get()); 
 }
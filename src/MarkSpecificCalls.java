@@ -4,10 +4,8 @@
  */
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Scanner;
 
 public class MarkSpecificCalls {
 public static void main(String[] args) throws Exception
@@ -38,26 +36,21 @@ public static void main(String[] args) throws Exception
  */
 static void convertFile(String inputFile, String outputFile, int minReadSupport, int minLength) throws Exception
 {
-	Scanner input = new Scanner(new FileInputStream(new File(inputFile)));
+	VcfRecordReader input = new VcfRecordReader(inputFile);
 	PrintWriter out = new PrintWriter(new File(outputFile));
 	
 	VcfHeader header = new VcfHeader();
 	ArrayList<VcfEntry> entries = new ArrayList<VcfEntry>();
 	
-	while(input.hasNext())
+	while(input.advance())
 	{
-		String line = input.nextLine();
-		if(line.length() == 0)
+		if(input.isHeader())
 		{
-			continue;
-		}
-		if(line.startsWith("#"))
-		{
-			header.addLine(line);
+			header.addLine(input.headerLine());
 		}
 		else
 		{
-			VcfEntry entry = VcfEntry.fromLine(line);
+			VcfEntry entry = input.entry();
 			boolean inSpecific = false;
 			int readSupport = entry.getReadSupport();
 			
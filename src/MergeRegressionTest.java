@@ -0,0 +1,122 @@
+/*
+ * End-to-end test which merges the files in test_data with several sets of options and compares each merged VCF with
+ * the expected output checked in under test_data/expected, so that changes to parsing, neighbor search, or merging
+ * which change the output are caught
+ * Each merge runs Jasmine in its own process, since the settings are global.  Passing "update" as the first argument
+ * rewrites the expected files from the current output instead of checking them.
+ * A case may also have a <name>.before.vcf with the output of an older release whose behavior was changed on purpose,
+ * and its output then has to differ from that, so that the case keeps covering the change.
+ * Output should be one line per case, followed by "All tests passed".
+ */
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+public class MergeRegressionTest {
+
+// The name of each case, followed by the input files and the options it is run with
+static String[][] CASES = new String[][] {
+	{"small_default", "a.vcf,b.vcf,c.vcf", ""},
+	{"default", "merge_test_0.vcf,merge_test_1.vcf,merge_test_2.vcf", ""},
+	{"ignore_type", "merge_test_0.vcf,merge_test_1.vcf,merge_test_2.vcf", "--ignore_type --ignore_strand min_seq_id=0.5 --output_genotypes threads=4"},
+	{"clique", "merge_test_0.vcf,merge_test_1.vcf,merge_test_2.vcf", "--clique_merging max_dist=500 kd_tree_norm=1 neighbor_search=sweep"},
+	{"centroid", "merge_test_0.vcf,merge_test_1.vcf,merge_test_2.vcf", "--centroid_merging --use_end --non_mutual_distance neighbor_search=grid"},
+	{"edit_distance", "merge_test_0.vcf,merge_test_1.vcf,merge_test_2.vcf", "--use_edit_dist min_seq_id=0.3 --allow_intrasample --normalize_type"},
+	{"ties", "merge_ties_0.vcf,merge_ties_1.vcf,merge_ties_2.vcf", ""},
+	{"ties_clique", "merge_ties_0.vcf,merge_ties_1.vcf,merge_ties_2.vcf", "--clique_merging kd_tree_norm=1 neighbor_search=grid"},
+	{"kd_ties", "merge_kd_ties_0.vcf,merge_kd_ties_1.vcf,merge_kd_ties_2.vcf", "--ignore_strand"},
+	{"kd_ties_exact", "merge_kd_ties_0.vcf,merge_kd_ties_1.vcf,merge_kd_ties_2.vcf", "--ignore_strand --exact_ties"}
+};
+
+public static void main(String[] args) throws Exception
+{
+	boolean update = args.length > 0 && args[0].equals("update");
+	String dir = "test_data";
+	File tmp = Files.createTempDirectory("jasmine_merge_test").toFile();
+	int failures = 0;
+	for(String[] testCase : CASES)
+	{
+		String name = testCase[0];
+		String[] files = testCase[1].split(",");
+		for(int i = 0; i<files.length; i++)
+		{
+			files[i] = dir + "/" + files[i];
+		}
+		String outFile = tmp + "/" + name + ".vcf";
+		String expectedFile = dir + "/expected/" + name + ".vcf";
+		
+		String[] command = new String[] {
+				System.getProperty("java.home") + "/bin/java", "-cp", System.getProperty("java.class.path"), "Main",
+				"file_list=" + String.join(",", files), "--comma_filelist", "out_file=" + outFile, "out_dir=" + tmp + "/" + name
+		};
+		if(testCase[2].length() > 0)
+		{
+			List<String> options = Arrays.asList(testCase[2].split(" "));
+			String[] withOptions = Arrays.copyOf(command, command.length + options.size());
+			for(int i = 0; i<options.size(); i++)
+			{
+				withOptions[command.length + i] = options.get(i);
+			}
+			command = withOptions;
+		}
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(new File(tmp + "/" + name + ".log")).start();
+		if(process.waitFor() != 0 || !new File(outFile).isFile())
+		{
+			System.out.println(name + ": Jasmine failed, see " + tmp + "/" + name + ".log");
+			failures++;
+			continue;
+		}
+		
+		List<String> actual = Files.readAllLines(new File(outFile).toPath());
+		if(update)
+		{
+			Files.write(new File(expectedFile).toPath(), actual);
+			System.out.println(name + ": updated " + expectedFile);
+			continue;
+		}
+		List<String> expected = Files.readAllLines(new File(expectedFile).toPath());
+		if(!actual.equals(expected))
+		{
+			int line = 0;
+			while(line < Math.min(actual.size(), expected.size()) && actual.get(line).equals(expected.get(line)))
+			{
+				line++;
+			}
+			System.out.println(name + ": output differs from " + expectedFile + " at line " + (line + 1) + ", see " + outFile);
+			failures++;
+			continue;
+		}
+		File beforeFile = new File(dir + "/expected/" + name + ".before.vcf");
+		if(beforeFile.isFile() && actual.equals(Files.readAllLines(beforeFile.toPath())))
+		{
+			System.out.println(name + ": output is the same as " + beforeFile + ", so the case no longer covers the change");
+			failures++;
+			continue;
+		}
+		System.out.println(name + ": " + actual.size() + " lines match");
+	}
+	
+	if(failures == 0)
+	{
+		deleteAll(tmp);
+	}
+	System.out.println(failures == 0 ? "All tests passed" : (failures + " tests failed"));
+}
+
+/*
+ * Deletes a file, or a directory and everything in it
+ */
+static void deleteAll(File f)
+{
+	File[] children = f.listFiles();
+	if(children != null)
+	{
+		for(File child : children)
+		{
+			deleteAll(child);
+		}
+	}
+	f.delete();
+}
+}
@@ -0,0 +1,129 @@
+/*
+ * An iterator over the variants near a point, in the same order that k-nearest neighbor queries report them:
+ * from nearest to farthest, treating distances within 1e-9 of each other as equal and breaking ties by variant ID
+ * Each kind of neighbor index finds candidates its own way and adds them to a heap here, and a candidate is only
+ * handed out once the index is sure nothing it has not found yet could come before it.
+ */
+
+import java.util.Arrays;
+
+public abstract class NeighborCursor
+{
+	// The variants being searched, and the point they are being searched around
+	VariantStore store;
+	double x, y;
+	
+	// A heap of the candidates found but not handed out yet, with the nearest one at the top
+	int[] candidates;
+	double[] dists;
+	int candidateCount;
+	
+	// How many neighbors have been handed out, and the most recent one
+	int count;
+	int last;
+	
+	// Unless it is -1, the cursor is skipping over every neighbor up to and including this one
+	int skipThrough;
+	double skipDist;
+	
+	NeighborCursor(VariantStore store, double x, double y)
+	{
+		this.store = store;
+		this.x = x;
+		this.y = y;
+		candidates = new int[32];
+		dists = new double[32];
+		last = -1;
+		skipThrough = -1;
+	}
+	
+	/*
+	 * Finds candidates until the top of the heap is the next neighbor in order
+	 * Returns false if there are no neighbors left at all.
+	 */
+	abstract boolean findNext();
+	
+	/*
+	 * Moves on to the next nearest variant and returns its index, or returns -1 if every neighbor has been handed out
+	 */
+	int next()
+	{
+		while(findNext())
+		{
+			int v = candidates[0];
+			double dist = dists[0];
+			pollCandidate();
+			if(skipThrough != -1)
+			{
+				if(store.compareNeighbors(v, dist, skipThrough, skipDist) >= 0)
+				{
+					continue;
+				}
+				skipThrough = -1;
+			}
+			last = v;
+			count++;
+			return last;
+		}
+		last = -1;
+		return -1;
+	}
+	
+	/*
+	 * Makes the cursor leave out every neighbor up to and including a given one, such as ones already found by a
+	 * k-nearest neighbor query, so it carries on from there
+	 */
+	void skipThrough(int v)
+	{
+		skipThrough = v;
+		skipDist = store.distFromPoint(v, x, y);
+	}
+	
+	void pushCandidate(int v, double dist)
+	{
+		if(candidateCount == candidates.length)
+		{
+			candidates = Arrays.copyOf(candidates, 2 * candidateCount);
+			dists = Arrays.copyOf(dists, 2 * candidateCount);
+		}
+		int i = candidateCount++;
+		while(i > 0)
+		{
+			int parent = (i - 1) >>> 1;
+			if(store.compareNeighbors(candidates[parent], dists[parent], v, dist) >= 0)
+			{
+				break;
+			}
+			candidates[i] = candidates[parent];
+			dists[i] = dists[parent];
+			i = parent;
+		}
+		candidates[i] = v;
+		dists[i] = dist;
+	}
+	
+	void pollCandidate()
+	{
+		int lastIndex = --candidateCount;
+		int v = candidates[lastIndex];
+		double dist = dists[lastIndex];
+		int i = 0, half = lastIndex >>> 1;
+		while(i < half)
+		{
+			int child = 2 * i + 1;
+			if(child + 1 < lastIndex && store.compareNeighbors(candidates[child + 1], dists[child + 1], candidates[child], dists[child]) > 0)
+			{
+				child++;
+			}
+			if(store.compareNeighbors(v, dist, candidates[child], dists[child]) >= 0)
+			{
+				break;
+			}
+			candidates[i] = candidates[child];
+			dists[i] = dists[child];
+			i = child;
+		}
+		candidates[i] = v;
+		dists[i] = dist;
+	}
+}
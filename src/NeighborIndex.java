@@ -0,0 +1,21 @@
+/*
+ * A structure over the variants in a graph for finding each variant's nearest neighbors, which is what the merger uses
+ * to decide which pairs of variants to consider merging
+ * Every kind of index must hand out neighbors in exactly the same order, so the choice of index never changes the
+ * merged groups, only how long it takes to find them.
+ */
+
+public interface NeighborIndex
+{
+	/*
+	 * Writes the indices of the k nearest neighbors of the variant at index p which are within a radius of it into the
+	 * start of an array, from nearest to farthest, and returns how many there are
+	 */
+	int nearestWithin(int p, int k, double radius, int[] res);
+	
+	/*
+	 * Starts iterating from nearest to farthest over the variants within a radius of the variant at index p
+	 * If mutual is set, variants which are farther than their own maxDist from it are left out as well.
+	 */
+	NeighborCursor neighborsWithin(int p, double radius, boolean mutual);
+}
@@ -0,0 +1,135 @@
+/*
+ * Randomized test for making sure every kind of neighbor index hands out exactly the same neighbors in the same order
+ * The variants are packed into small ranges of coordinates and hashes so that there are lots of exact ties.  Each index
+ * is checked on k-nearest neighbor queries and on cursors which carry on from them, with and without requiring mutual
+ * distance, and then whole graphs are merged with each index, with and without exact ties, to make sure the groups come
+ * out the same.
+ * Output should be the number of queries and merges checked, followed by "All tests passed".
+ */
+import java.util.Arrays;
+import java.util.Random;
+
+public class NeighborIndexTest {
+public static void main(String[] args)
+{
+	String[] kinds = new String[] {"kd_tree", "sweep", "grid"};
+	Random rand = new Random(24);
+	int failures = 0, queries = 0, merges = 0;
+	for(int norm = 1; norm <= 3; norm++)
+	{
+		Settings.KD_TREE_NORM = norm;
+		for(int trial = 0; trial<40; trial++)
+		{
+			VariantStore store = randomStore(rand, trial);
+			NeighborIndex[] indexes = new NeighborIndex[kinds.length];
+			for(int i = 0; i<kinds.length; i++)
+			{
+				Settings.NEIGHBOR_SEARCH = kinds[i];
+				indexes[i] = VariantMerger.buildIndex(store);
+			}
+			
+			for(int q = 0; q<store.n; q++)
+			{
+				int k = 1 + rand.nextInt(6);
+				double radius = rand.nextInt(60);
+				boolean mutual = rand.nextBoolean();
+				String expected = null;
+				for(int i = 0; i<kinds.length; i++)
+				{
+					String found = neighbors(indexes[i], q, k, radius, mutual);
+					if(expected == null)
+					{
+						expected = found;
+					}
+					else if(!found.equals(expected))
+					{
+						System.out.println("Neighbors from " + kinds[i] + " differ for norm " + norm + ", trial " + trial + ", query " + q);
+						failures++;
+					}
+				}
+				queries++;
+			}
+			
+			for(int mode = 0; mode < 4; mode++)
+			{
+				Settings.REQUIRE_MUTUAL_DISTANCE = mode % 2 == 1;
+				Settings.EXACT_TIES = mode >= 2;
+				int[] expected = null;
+				for(int i = 0; i<kinds.length; i++)
+				{
+					Settings.NEIGHBOR_SEARCH = kinds[i];
+					VariantMerger merger = new VariantMerger(randomStore(new Random(trial), trial));
+					merger.runMerging();
+					int[] groups = merger.getGroupOf();
+					if(expected == null)
+					{
+						expected = groups;
+					}
+					else if(!Arrays.equals(groups, expected))
+					{
+						System.out.println("Merging with " + kinds[i] + " differs for norm " + norm + ", trial " + trial + ", mutual " + Settings.REQUIRE_MUTUAL_DISTANCE + ", exact ties " + Settings.EXACT_TIES);
+						failures++;
+					}
+				}
+				merges++;
+			}
+		}
+	}
+	Settings.NEIGHBOR_SEARCH = "kd_tree";
+	Settings.REQUIRE_MUTUAL_DISTANCE = true;
+	Settings.EXACT_TIES = false;
+	System.out.println("Queries checked: " + queries);
+	System.out.println("Merges checked: " + merges);
+	
+	System.out.println(failures == 0 ? "All tests passed" : (failures + " tests failed"));
+}
+
+/*
+ * The k nearest neighbors of a variant within a radius, followed by the rest of the neighbors in that radius from a
+ * cursor which carries on from the last of them
+ */
+static String neighbors(NeighborIndex index, int q, int k, double radius, boolean mutual)
+{
+	StringBuilder sb = new StringBuilder();
+	int[] res = new int[k];
+	int count = index.nearestWithin(q, k, radius, res);
+	for(int i = 0; i<count; i++)
+	{
+		sb.append(res[i] + ",");
+	}
+	sb.append(";");
+	NeighborCursor cursor = index.neighborsWithin(q, radius, mutual);
+	if(count > 0)
+	{
+		cursor.skipThrough(res[count - 1]);
+	}
+	for(int v = cursor.next(); v != -1; v = cursor.next())
+	{
+		sb.append(v + ",");
+	}
+	return sb.toString();
+}
+
+/*
+ * A store of random variants from several samples, many of which are at exactly the same distance from each other
+ */
+static VariantStore randomStore(Random rand, int trial)
+{
+	int n = 1 + rand.nextInt(trial % 2 == 0 ? 60 : 300);
+	int range = 1 + rand.nextInt(80);
+	VariantStore store = new VariantStore("test", n);
+	for(int i = 0; i<n; i++)
+	{
+		store.start[i] = rand.nextInt(range) - 20;
+		store.end[i] = rand.nextInt(range) - 30;
+		store.id[i] = "var" + rand.nextInt(2 * n);
+		store.sample[i] = rand.nextInt(5);
+		store.hash[i] = rand.nextInt(5);
+		store.maxDist[i] = rand.nextInt(30);
+		store.intervalStart[i] = Double.NaN;
+		store.intervalEnd[i] = Double.NaN;
+	}
+	store.rankIds();
+	return store;
+}
+}
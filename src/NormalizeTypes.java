@@ -1,8 +1,6 @@
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Scanner;
 
 public class NormalizeTypes {
 	static String inputFile = "";
@@ -28,23 +26,22 @@ public class NormalizeTypes {
 	 */
 	static void convertFile(String inputFile, String outputFile) throws Exception
 	{
-		Scanner input = new Scanner(new FileInputStream(new File(inputFile)));
+		VcfRecordReader input = new VcfRecordReader(inputFile);
 				
 		PrintWriter out = new PrintWriter(new File(outputFile));
 		
 		VcfHeader header = new VcfHeader();
 		ArrayList<VcfEntry> entries = new ArrayList<VcfEntry>();
 				
-		while(input.hasNext())
+		while(input.advance())
 		{
-			String line = input.nextLine();
-			if(line.startsWith("#"))
+			if(input.isHeader())
 			{
-				header.addLine(line);
+				header.addLine(input.headerLine());
 			}
-			else if(line.length() > 0)
+			else
 			{
-				VcfEntry ve = VcfEntry.fromLine(line);
+				VcfEntry ve = input.entry();
 				ve.normalizeType();
 				entries.add(ve);
 			}
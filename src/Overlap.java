@@ -2,13 +2,11 @@
  * A program for filtering variants based on their overlap with a list of regions.
  */
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Scanner;
 import java.util.TreeSet;
 
 public class Overlap
@@ -93,7 +91,7 @@ public class Overlap
 	
 	static ArrayList<Event> getBedEvents() throws Exception
 	{
-		Scanner input = new Scanner(new FileInputStream(new File(bedFn)));
+		LineReader input = new LineReader(bedFn);
 		
 		ArrayList<Event> events = new ArrayList<Event>();
 		int idNum = 0;
@@ -126,7 +124,7 @@ public class Overlap
 	 */
 	static ArrayList<Event> getVcfEvents() throws Exception
 	{
-		Scanner input = new Scanner(new FileInputStream(new File(vcfFn)));
+		LineReader input = new LineReader(vcfFn);
 		
 		ArrayList<Event> events = new ArrayList<Event>();
 		while(input.hasNext())
@@ -328,7 +326,7 @@ public class Overlap
 		HashMap<String, HashSet<String>> overlaps = getOverlaps(bedEvents, vcfEvents);
 		System.err.println("Found " + overlaps.size() + " variants with at least one overlap");
 		System.err.println("Filtering variants");
-		Scanner input = new Scanner(new FileInputStream(new File(vcfFn)));
+		LineReader input = new LineReader(vcfFn);
 		PrintWriter out = new PrintWriter(new File(ofn));
 		VcfHeader header = new VcfHeader();
 		boolean printedHeader = false;
@@ -3,23 +3,20 @@
  * Since each chromosome (and possibly type and strand) is its own graph,
  * the algorithm can be parallelized pretty naturally.
  * 
- * The graphs that need to be processed are stored in a queue, and each thread
- * processes one graph at a time, querying the queue for the next graph to process
+ * Each graph is merged as its own task on a single pool with the number of threads from the settings, and large graphs
+ * split their seed queries into more tasks on the same pool, so no more threads than that are ever busy at once.
  */
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.TreeMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ParallelMerger {
 	
-	// IDs of graphs left to process
-	ConcurrentLinkedQueue<String> todo;
-	
 	// the variant graphs on which merging will be performed
-	TreeMap<String, ArrayList<Variant>> allVariants;
+	TreeMap<String, VariantStore> allVariants;
 	
 	// A data structure for holding merged variants to output
 	VariantOutput output;
@@ -27,80 +24,107 @@ public class ParallelMerger {
 	// The number of threads to use
 	int numThreads;
 	
+	// The pool which every graph's merging and seed queries run on during a run, sized to the number of threads
+	ForkJoinPool pool;
+	
 	// The total number of samples 
 	int sampleCount;
 	
 	AtomicInteger totalMerged = new AtomicInteger(0);
 	
-	ParallelMerger(TreeMap<String, ArrayList<Variant>> allVariants, VariantOutput output, int sampleCount)
+	ParallelMerger(TreeMap<String, VariantStore> allVariants, VariantOutput output, int sampleCount)
 	{
 		this.allVariants = allVariants;
 		this.output = output;
 		this.numThreads = Settings.THREADS;
 		System.out.println("Number of threads: " + numThreads);
 		this.sampleCount = sampleCount;
-		todo = new ConcurrentLinkedQueue<String>();
-		for(String s : allVariants.keySet())
-		{
-			todo.add(s);
-		}
 	}
 	
 	/*
-	 * Start merging in parallel, initializing all threads
+	 * Start merging in parallel, with every graph as a task on the pool
 	 */
 	void run() throws Exception
 	{
-		// The last thread in the array is the main thread, so it calls
-		// run() instead of start() and doesn't get joined below
-		MyThread[] threads = new MyThread[numThreads];
-		for(int i = 0; i<numThreads; i++)
+		if(numThreads <= 1)
 		{
-			threads[i] = new MyThread();
-			if(i == numThreads - 1)
+			for(String graphID : allVariants.keySet())
 			{
-				threads[i].run();
-			}
-			else
-			{
-				threads[i].start();
+				mergeGraph(graphID);
 			}
+			return;
+		}
+		pool = new ForkJoinPool(numThreads);
+		try
+		{
+			pool.invoke(new MergeAll());
 		}
-		for(int i = 0; i<numThreads-1; i++)
+		finally
 		{
-			threads[i].join();
+			pool.shutdown();
+			pool = null;
 		}
 	}
-
+	
+	/*
+	 * Merges the variants in a single graph and adds the groups to the output
+	 */
+	void mergeGraph(String graphID)
+	{
+		System.out.println("Merging graph ID: " + graphID);
+		VariantStore store = allVariants.get(graphID);
+		store.sort();
+		VariantMerger vm = new VariantMerger(store);
+		vm.seedPool = pool;
+		vm.runMerging();
+		int[] groupOf = vm.getGroupOf();
+		output.addGraph(store, groupOf, sampleCount);
+		int[] groupSizes = new int[store.n];
+		int merges = 0;
+		for(int group : groupOf)
+		{
+			groupSizes[group]++;
+			if(groupSizes[group] == 2)
+			{
+				merges++;
+			}
+		}
+		totalMerged.addAndGet(merges);
+	}
+	
 	/*
-	 * A single thread performing variant merging
+	 * Merging every graph, each as its own task
 	 */
-	public class MyThread extends Thread {
-			
-		public void run()
+	@SuppressWarnings("serial")
+	class MergeAll extends RecursiveAction
+	{
+		protected void compute()
 		{
-			while(!todo.isEmpty())
+			ArrayList<GraphTask> tasks = new ArrayList<GraphTask>();
+			for(String graphID : allVariants.keySet())
 			{
-				String graphID = todo.poll();
-				System.out.println("Merging graph ID: " + graphID);
-				ArrayList<Variant> variantList = allVariants.get(graphID);
-				Collections.sort(variantList);
-				VariantMerger vm = new VariantMerger(variantList);
-				vm.runMerging();
-				ArrayList<Variant>[] res = vm.getGroups();
-				output.addGraph(graphID, res, sampleCount);
-				int merges = 0;
-				for(ArrayList<Variant> list : res)
-				{
-					if(list.size() > 1)
-					{
-						merges++;
-					}
-				}
-				totalMerged.addAndGet(merges);
+				tasks.add(new GraphTask(graphID));
 			}
-			
+			invokeAll(tasks);
 		}
+	}
+	
+	/*
+	 * Merging a single graph
+	 */
+	@SuppressWarnings("serial")
+	class GraphTask extends RecursiveAction
+	{
+		String graphID;
 		
+		GraphTask(String graphID)
+		{
+			this.graphID = graphID;
+		}
+		
+		protected void compute()
+		{
+			mergeGraph(graphID);
+		}
 	}
 }
@@ -5,17 +5,135 @@
  * list of updated files instead of the original ones
  */
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Scanner;
 
 public class PipelineManager {
 	
+/*
+ * Copies any inputs which can only be read once, such as standard input or named pipes, into a temporary directory
+ * Every input is read more than once (to count and parse its variants, to write the merged output, and to add genotypes),
+ * and any of its records can end up being printed, so each stream is spooled whole, in whatever format it arrived in.
+ * The copies go under java.io.tmpdir rather than the output directory, which may be on a shared disk, and are deleted
+ * when Jasmine exits.  The file list itself is spooled too if it is a stream.  Returns the file list to use from then on,
+ * which is the same one if nothing needed to be spooled.
+ */
+static String spoolStreamingInputs(String fileList) throws Exception
+{
+	boolean listStreamed = Settings.USING_FILE_LIST && isStream(fileList);
+	ArrayList<String> vcfFiles = getFilesFromList(fileList);
+	ArrayList<String> newVcfFiles = new ArrayList<String>();
+	
+	HashSet<String> basenames = new HashSet<String>();
+	
+	// Whether or not standard input has been used up already
+	boolean stdinRead = listStreamed && fileList.equals("-");
+	
+	// Made the first time a stream needs spooling
+	Path spoolDir = null;
+	
+	boolean anySpooled = false;
+	for(int i = 0; i<vcfFiles.size(); i++)
+	{
+		String vcfFile = vcfFiles.get(i);
+		if(!isStream(vcfFile))
+		{
+			newVcfFiles.add(vcfFile);
+			continue;
+		}
+		
+		InputStream stream;
+		String basename;
+		if(vcfFile.equals("-"))
+		{
+			if(stdinRead)
+			{
+				throw new Exception("standard input can only be used for one input: " + vcfFile);
+			}
+			stdinRead = true;
+			stream = System.in;
+			basename = "stdin";
+		}
+		else
+		{
+			stream = Files.newInputStream(Paths.get(vcfFile));
+			basename = StringUtils.fileBaseName(vcfFile);
+		}
+		while(basenames.contains(basename))
+		{
+			basename = i + "_" + basename;
+		}
+		
+		if(spoolDir == null)
+		{
+			spoolDir = Files.createTempDirectory("jasmine_spool");
+			deleteOnExit(spoolDir.toFile());
+		}
+		
+		// The stream is copied as it is, so the copy keeps its name and extension in case it is compressed
+		String newVcfFile = spoolDir.resolve(basename).toString();
+		newVcfFiles.add(newVcfFile);
+		System.out.println("Spooling " + vcfFile + " to " + newVcfFile);
+		Files.copy(stream, Paths.get(newVcfFile), StandardCopyOption.REPLACE_EXISTING);
+		stream.close();
+		
+		basenames.add(basename);
+		anySpooled = true;
+	}
+	
+	if(!anySpooled && !listStreamed)
+	{
+		return fileList;
+	}
+	return buildUpdatedFileList(fileList.equals("-") ? "stdin_filelist.txt" : fileList, "spooled", newVcfFiles);
+}
+
+/*
+ * Deletes a directory and everything in it when Jasmine exits, including files such as indexes made after this is called
+ */
+static void deleteOnExit(final File dir)
+{
+	Runtime.getRuntime().addShutdownHook(new Thread()
+	{
+		public void run()
+		{
+			File[] files = dir.listFiles();
+			if(files != null)
+			{
+				for(File f : files)
+				{
+					f.delete();
+				}
+			}
+			dir.delete();
+		}
+	});
+}
+
+/*
+ * Whether or not a path is a stream which can only be read once: either "-" for standard input, or something like a named pipe
+ */
+static boolean isStream(String filename)
+{
+	if(filename.equals("-"))
+	{
+		return true;
+	}
+	Path path = Paths.get(filename);
+	return Files.exists(path) && !Files.isRegularFile(path) && !Files.isDirectory(path);
+}
+
 /*
  * Convert duplications to insertions for all VCF files and update filelist
  * Returns a path to the new filelist
@@ -202,14 +320,9 @@ static String buildUpdatedFileList(String oldFileList, String suffix, ArrayList<
  */
 static void convertInsertionsBackToDuplications() throws Exception
 {
-	String unconvertedOutput = Settings.OUT_DIR + "/" + StringUtils.addDescriptor(StringUtils.fileBaseName(Settings.OUT_FILE), "dupToIns");
-	File f;
-	if((f = new File(unconvertedOutput)).exists())
-	{
-		f.delete();
-	}
-	Files.move(Paths.get(Settings.OUT_FILE), Paths.get(unconvertedOutput));
-	InsertionsToDuplications.convertFile(unconvertedOutput, Settings.OUT_FILE);
+	String unconvertedOutput = stagedOutput("dupToIns");
+	moveOutputAside(unconvertedOutput);
+	InsertionsToDuplications.convertFile(unconvertedOutput, outputFor(false, Settings.OUTPUT_GENOTYPES));
 }
 
 /*
@@ -218,14 +331,69 @@ static void convertInsertionsBackToDuplications() throws Exception
  */
 static void addGenotypes(String fileList) throws Exception
 {
-	String unconvertedOutput = Settings.OUT_DIR + "/" + StringUtils.addDescriptor(StringUtils.fileBaseName(Settings.OUT_FILE), "noGenotypes");
+	String unconvertedOutput = stagedOutput("noGenotypes");
+	moveOutputAside(unconvertedOutput);
+	AddGenotypes.addGenotypes(unconvertedOutput, fileList, outputFor(false, false));
+}
+
+/*
+ * The file in the output directory which a post-processing step moves the merged output to before rewriting it
+ */
+static String stagedOutput(String descriptor)
+{
+	String basename = Settings.STREAM_OUTPUT ? "stdout.vcf" : StringUtils.fileBaseName(Settings.OUT_FILE);
+	return Settings.OUT_DIR + "/" + StringUtils.addDescriptor(basename, descriptor);
+}
+
+/*
+ * Moves the merged output to where a post-processing step will read it from
+ * When the output is being streamed, the previous step already wrote it there, so there is nothing to move.
+ */
+static void moveOutputAside(String stagedFile) throws Exception
+{
+	if(Settings.STREAM_OUTPUT)
+	{
+		return;
+	}
 	File f;
-	if((f = new File(unconvertedOutput)).exists())
+	if((f = new File(stagedFile)).exists())
 	{
 		f.delete();
 	}
-	Files.move(Paths.get(Settings.OUT_FILE), Paths.get(unconvertedOutput));
-	AddGenotypes.addGenotypes(unconvertedOutput, fileList, Settings.OUT_FILE);
+	Files.move(Paths.get(Settings.OUT_FILE), Paths.get(stagedFile));
+}
+
+/*
+ * Gets the file a step should write the merged variants to, given which post-processing steps are still to come
+ * This is the output file, except when that is standard output and a later step still has to rewrite the variants,
+ * in which case they are written straight to the file in the output directory that the next step reads from.
+ */
+static String outputFor(boolean convertingDuplicationsLater, boolean addingGenotypesLater)
+{
+	if(Settings.STREAM_OUTPUT)
+	{
+		if(convertingDuplicationsLater)
+		{
+			return stagedOutput("dupToIns");
+		}
+		if(addingGenotypesLater)
+		{
+			return stagedOutput("noGenotypes");
+		}
+	}
+	return Settings.OUT_FILE;
+}
+
+/*
+ * Opens a file to write a VCF to, where "-" means standard output
+ */
+static PrintWriter openOutput(String filename) throws Exception
+{
+	if(filename.equals("-"))
+	{
+		return new PrintWriter(new BufferedWriter(new OutputStreamWriter(Settings.STANDARD_OUTPUT), 1 << 16));
+	}
+	return new PrintWriter(new File(filename));
 }
 
 /*
@@ -242,10 +410,18 @@ static ArrayList<String> getFilesFromList(String fileList) throws Exception
 		return res;
 	}
 	
-	if(new File(fileList).exists())
+	Scanner vcfListInput = null;
+	if(fileList.equals("-"))
+	{
+		vcfListInput = new Scanner(System.in);
+	}
+	else if(new File(fileList).exists())
+	{
+		vcfListInput = new Scanner(new FileInputStream(new File(fileList)));
+	}
+	
+	if(vcfListInput != null)
 	{
-		Scanner vcfListInput = new Scanner(new FileInputStream(new File(fileList)));
-				
 		while(vcfListInput.hasNext())
 		{
 			String line = vcfListInput.nextLine();
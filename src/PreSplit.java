@@ -1,12 +1,10 @@
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Scanner;
 
 public class PreSplit
 {
@@ -122,7 +120,7 @@ public class PreSplit
 		for(int i = 0; i<n; i++)
 		{
 			VcfHeader header = new VcfHeader();
-			Scanner input = new Scanner(new FileInputStream(new File(vcfFiles.get(i))));
+			LineReader input = new LineReader(vcfFiles.get(i));
 			while(input.hasNext())
 			{
 				String line = input.nextLine();
@@ -177,7 +175,7 @@ public class PreSplit
 	static HashMap<String, String> convertFile(String inputFile, String outputPrefix, int segmentLength) throws Exception
 	{
 		VcfHeader header = new VcfHeader();
-		Scanner input = new Scanner(new FileInputStream(new File(inputFile)));
+		LineReader input = new LineReader(inputFile);
 		HashMap<String, String> res = new HashMap<String, String>();
 		HashMap<String, PrintWriter> writerMap = new HashMap<String, PrintWriter>();
 		while(input.hasNext())
@@ -192,7 +190,7 @@ public class PreSplit
 				header.addLine(line);
 				continue;
 			}
-			VcfEntry entry = VcfEntry.fromLine(line);
+			VcfEntry entry = VcfEntry.fromLine(line, true);
 			String graphId = VariantInput.fromVcfEntry(entry, 0).graphID;
 			if(segmentLength != -1 && !entry.getNormalizedType().equals("TRA"))
 			{
@@ -0,0 +1,114 @@
+/*
+ * Test to make sure the packed sequences in a variant store reproduce their original sequence exactly and that the
+ * similarity scores computed on them match the ones computed on the original strings
+ * Output should be a count of sequences and pairs checked, followed by "All tests passed".
+ */
+import java.util.Random;
+
+public class SequencePoolTest {
+public static void main(String[] args)
+{
+	Random rand = new Random(12345);
+	String alphabet = "ACGTACGTACGTacgtNnRY*";
+	int failures = 0;
+	
+	// Every sequence must unpack to exactly what was packed, including ones sharing the pool with many others
+	String[] fixed = new String[] {"", "A", "acgt", "NNNN", "ACGTNacgtn", "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAT"};
+	int count = 1000 + fixed.length;
+	String[] seqs = new String[count];
+	VariantStore store = new VariantStore("test", count + 1);
+	for(int i = 0; i<count; i++)
+	{
+		seqs[i] = i < fixed.length ? fixed[i] : randomSequence(rand, rand.nextInt(4) == 0 ? "ACGT" : alphabet, rand.nextInt(300));
+		store.setSeq(i, seqs[i]);
+	}
+	store.trimSequences();
+	int sequencesChecked = 0;
+	for(int i = 0; i<count; i++)
+	{
+		if(store.seqLength[i] != seqs[i].length() || !seqs[i].equals(store.getSeq(i)))
+		{
+			System.out.println("Round trip failed for " + seqs[i]);
+			failures++;
+		}
+		sequencesChecked++;
+	}
+	if(store.getSeq(count) != null)
+	{
+		System.out.println("Variant without a sequence has one");
+		failures++;
+	}
+	System.out.println("Sequences checked: " + sequencesChecked);
+	
+	// The packed similarity scores must be the same as the String ones, including for similar pairs, and whether or
+	// not the sequences are all uppercase bases
+	int pairsChecked = 0;
+	for(int trial = 0; trial<1000; trial++)
+	{
+		Settings.K_JACCARD = 1 + rand.nextInt(12);
+		String trialAlphabet = rand.nextBoolean() ? "ACGT" : alphabet;
+		String s = randomSequence(rand, trialAlphabet, rand.nextInt(200));
+		String t = rand.nextBoolean() ? mutate(rand, s, trialAlphabet) : randomSequence(rand, trialAlphabet, rand.nextInt(200));
+		VariantStore pair = new VariantStore("test", 2);
+		pair.setSeq(0, s);
+		pair.setSeq(1, t);
+		if(StringUtils.jaccardSimilarity(pair, 0, 1) != StringUtils.jaccardSimilarity(s, t))
+		{
+			System.out.println("Jaccard similarity differs for " + s + " " + t + " with k = " + Settings.K_JACCARD);
+			failures++;
+		}
+		if(s.length() > 0 || t.length() > 0)
+		{
+			if(StringUtils.editDistanceSimilarity(pair, 0, 1) != StringUtils.editDistanceSimilarity(s, t))
+			{
+				System.out.println("Edit distance similarity differs for " + s + " " + t);
+				failures++;
+			}
+		}
+		pairsChecked++;
+	}
+	System.out.println("Pairs checked: " + pairsChecked);
+	
+	System.out.println(failures == 0 ? "All tests passed" : (failures + " tests failed"));
+}
+
+/*
+ * A random sequence of a given length made up of characters from an alphabet
+ */
+static String randomSequence(Random rand, String alphabet, int length)
+{
+	StringBuilder sb = new StringBuilder();
+	for(int i = 0; i<length; i++)
+	{
+		sb.append(alphabet.charAt(rand.nextInt(alphabet.length())));
+	}
+	return sb.toString();
+}
+
+/*
+ * A copy of a sequence with a few random substitutions, insertions, and deletions
+ */
+static String mutate(Random rand, String s, String alphabet)
+{
+	StringBuilder sb = new StringBuilder(s);
+	int edits = rand.nextInt(10);
+	for(int i = 0; i<edits; i++)
+	{
+		int type = rand.nextInt(3);
+		char c = alphabet.charAt(rand.nextInt(alphabet.length()));
+		if(type == 0 || sb.length() == 0)
+		{
+			sb.insert(rand.nextInt(sb.length() + 1), c);
+		}
+		else if(type == 1)
+		{
+			sb.setCharAt(rand.nextInt(sb.length()), c);
+		}
+		else
+		{
+			sb.deleteCharAt(rand.nextInt(sb.length()));
+		}
+	}
+	return sb.toString();
+}
+}
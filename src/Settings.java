@@ -3,6 +3,7 @@
  */
 
 import java.io.File;
+import java.io.PrintStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -16,6 +17,7 @@ public class Settings {
 	static boolean USE_TYPE = true;
 	static String FILE_LIST = "";
 	static String OUT_FILE = "";
+	static boolean STREAM_OUTPUT = false;
 	static int MAX_DIST = 1000;
 	static double MAX_DIST_LINEAR = 0.5;
 	static int MIN_SUPPORT = 1;
@@ -24,6 +26,7 @@ public class Settings {
 	static int K_JACCARD = 9;
 	static int MAX_DUP_LEN = 10000;
 	static int KD_TREE_NORM = 2;
+	static String NEIGHBOR_SEARCH = "kd_tree";
 	static boolean CHANGE_VAR_IDS = true;
 	static boolean USE_END = false;
 	static boolean MAX_DIST_SET = false;
@@ -59,6 +62,9 @@ public class Settings {
 	static boolean CENTROID_MERGE = false;
 	static boolean CLIQUE_MERGE = false;
 	
+	// The real standard output, which the merged VCF goes to if out_file is "-" while log messages go to standard error instead
+	static PrintStream STANDARD_OUTPUT = System.out;
+	
 	static boolean ALLOW_INTRASAMPLE = false;
 	static boolean NORMALIZE_TYPE = false;
 	static boolean REQUIRE_FIRST_SAMPLE = false;
@@ -68,10 +74,20 @@ public class Settings {
 	static String PER_SAMPLE_DIST_FILE = "";
 	static int[] PER_SAMPLE_DISTS;
 	
+	// The regions the inputs are restricted to, or null if every variant is used
+	static String REGION = "";
+	static GenomicRegions REGIONS;
+	
 	static boolean REQUIRE_MUTUAL_DISTANCE = true;
 	
 	static double OVERLAP_REQUIRED = 0.0;
 	
+	static boolean USE_PARSE_CACHE = false;
+	
+	static boolean SAVE_INDEX = false;
+	
+	static boolean EXACT_TIES = false;
+	
 	/*
 	 * Print the usage menu
 	 */
@@ -83,14 +99,17 @@ public class Settings {
 		System.out.println("  Example: jasmine file_list=filelist.txt out_file=out.vcf");
 		System.out.println();
 		System.out.println("Required args:");
-		System.out.println("  file_list (String) - a file listing paths to unzipped VCF files to merge (on separate lines)");
-		System.out.println("  out_file  (String) - the name of the file to output the merged variants to");
+		System.out.println("  file_list (String) - a file listing paths to VCF files (plain, gzipped, or bgzipped) or BCF files to merge (on separate lines)");
+		System.out.println("                       entries can be - for standard input, or named pipes, which are spooled to a temporary directory");
+		System.out.println("  out_file  (String) - the name of the file to output the merged variants to, or - for standard output");
 		System.out.println();
 		System.out.println("Optional args:");
 		System.out.println("  max_dist_linear (float)  [0.5]      - the proportion of the length of each variant to set distance threshold to");
 		System.out.println("  max_dist        (int)    [inf]      - the maximum distance variants can be apart when being merged");
 		System.out.println("  min_dist        (int)    [100]      - the minimum distance threshold a variant can have when using max_dist_linear");
 		System.out.println("  kd_tree_norm    (int)    [2]        - the power to use in kd-tree distances (1 is Manhattan, 2 is Euclidean, etc.)");
+		System.out.println("  neighbor_search (String) [kd_tree]  - how to find nearby variants: kd_tree, sweep (faster for sparse variants),");
+		System.out.println("                                        or grid (faster for dense clusters of similar variants)");
 		System.out.println("  min_seq_id      (float)  [0]        - the minimum sequence identity for two insertions to be merged");
 		System.out.println("  k_jaccard       (int)    [9]        - the kmer size to use when computing Jaccard similarity of insertions");
 		System.out.println("  max_dup_length  (int)    [10k]      - the maximum length of duplication that can be converted to an insertion");
@@ -106,6 +125,8 @@ public class Settings {
 		System.out.println("  chr_norm_file   (String) []         - the path to a file containing chromosome name mappings, if they are being normalized");
 		System.out.println("  sample_dists    (String) []         - the path to a file containing distance thresholds for each sample, one per line");
 		System.out.println("  min_overlap     (float)  [0]        - the minimum reciprocal overlap for DEL/INV/DUP SVs");
+		System.out.println("  region          (String) []         - only merge variants with POS in a region (chr:start-end) or in the regions of a BED file");
+		System.out.println("                                        inputs with a .tbi/.csi index, and plain text VCFs, are read only where the regions are");
 		System.out.println("  --ignore_strand                     - allow variants with different strands to be merged");
 		System.out.println("  --ignore_type                       - allow variants with different types to be merged");
 		System.out.println("  --dup_to_ins                        - convert duplications to insertions for SV merging and then convert them back");
@@ -130,6 +151,9 @@ public class Settings {
 		System.out.println("  --non_mutual_distance               - no longer require a pair of points to be within both of their distance thresholds");
 		System.out.println("  --default_zero_genotype             - marks genotype as 0|0 instead of ./. for any samples in which a merged variant is absent");
 		System.out.println("  --nonlinear_dist                    - disable distance threshold depending on variant length and use max_dist instead");
+		System.out.println("  --parse_cache                       - save parsed variants next to each input as <vcf>.jasmine.bin and reuse them in later runs");
+		System.out.println("  --save_index                        - save the index built for reading regions of a plain text VCF next to it as <vcf>.jasmine.idx");
+		System.out.println("  --exact_ties                        - consider equally distant neighbors strictly by the tie-break on hash and ID (can change merges)");
 
 
 		System.out.println();
@@ -293,6 +317,18 @@ public class Settings {
 				{
 					USE_LINEAR_THRESHOLD = false;
 				}
+				else if(args[i].endsWith("parse_cache"))
+				{
+					USE_PARSE_CACHE = true;
+				}
+				else if(args[i].endsWith("save_index"))
+				{
+					SAVE_INDEX = true;
+				}
+				else if(args[i].endsWith("exact_ties"))
+				{
+					EXACT_TIES = true;
+				}
 				continue;
 			}
 			int equalIdx = args[i].indexOf('=');
@@ -317,6 +353,9 @@ public class Settings {
 				case "kd_tree_norm":
 					KD_TREE_NORM = parseInt(val);
 					break;
+				case "neighbor_search":
+					NEIGHBOR_SEARCH = val;
+					break;
 				case "min_seq_id":
 					MIN_SEQUENCE_SIMILARITY = Double.parseDouble(val);
 					break;
@@ -360,6 +399,9 @@ public class Settings {
 				case "out_dir":
 					OUT_DIR = val;
 					break;
+				case "region":
+					REGION = val;
+					break;
 				case "samtools_path":
 					SAMTOOLS_PATH = val;
 					break;
@@ -379,6 +421,13 @@ public class Settings {
 			}
 		}
 		
+		// Keep standard output free for the merged VCF if it is being streamed there
+		if(OUT_FILE.equals("-"))
+		{
+			STREAM_OUTPUT = true;
+			System.setOut(System.err);
+		}
+		
 		if(FILE_LIST.length() == 0 && !POSTPROCESS_ONLY)
 		{
 			System.out.println("Error: No list of VCFs specified");
@@ -395,6 +444,22 @@ public class Settings {
 			System.exit(0);
 		}
 		
+		if(!NEIGHBOR_SEARCH.equals("kd_tree") && !NEIGHBOR_SEARCH.equals("sweep") && !NEIGHBOR_SEARCH.equals("grid"))
+		{
+			System.out.println("Error: Unknown neighbor search: " + NEIGHBOR_SEARCH);
+			System.out.println();
+			usage();
+			System.exit(0);
+		}
+		
+		if(STREAM_OUTPUT && POSTPROCESS_ONLY)
+		{
+			System.out.println("Error: Cannot post-process an output which is streamed to standard output");
+			System.out.println();
+			usage();
+			System.exit(0);
+		}
+		
 		if(GENOME_FILE.length() == 0 && !POSTPROCESS_ONLY && RUN_IRIS)
 		{
 			System.out.println("Error: Cannot run Iris without a genome file specified");
@@ -419,6 +484,11 @@ public class Settings {
 			System.exit(0);
 		}
 		
+		if(REGION.length() > 0)
+		{
+			REGIONS = GenomicRegions.parse(REGION);
+		}
+		
 		if(PER_SAMPLE_DIST_FILE.length() > 0)
 		{
 			try 
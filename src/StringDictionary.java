@@ -0,0 +1,70 @@
+/*
+ * A thread-safe dictionary giving each distinct string a dense integer code
+ * Codes are handed out in the order strings are first seen, starting from 0, so they can be used as array indices.
+ * Every string maps to a single canonical instance, so repeated strings like graph IDs only take up memory once.
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class StringDictionary
+{
+	// The code of each string seen so far
+	ConcurrentHashMap<String, Integer> codes;
+	
+	// The canonical instance of each string, indexed by code
+	ArrayList<String> strings;
+	
+	StringDictionary()
+	{
+		codes = new ConcurrentHashMap<String, Integer>();
+		strings = new ArrayList<String>();
+	}
+	
+	/*
+	 * Gets the code for a string, adding it to the dictionary if it is new
+	 */
+	int getCode(String s)
+	{
+		Integer code = codes.get(s);
+		if(code != null)
+		{
+			return code;
+		}
+		synchronized(this)
+		{
+			code = codes.get(s);
+			if(code == null)
+			{
+				code = strings.size();
+				strings.add(s);
+				codes.put(s, code);
+			}
+			return code;
+		}
+	}
+	
+	/*
+	 * Gets the string with a given code
+	 */
+	synchronized String get(int code)
+	{
+		return strings.get(code);
+	}
+	
+	/*
+	 * Gets the canonical instance of a string, adding it to the dictionary if it is new
+	 */
+	String intern(String s)
+	{
+		return get(getCode(s));
+	}
+	
+	/*
+	 * The number of distinct strings in the dictionary
+	 */
+	synchronized int size()
+	{
+		return strings.size();
+	}
+}
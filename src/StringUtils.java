@@ -1,3 +1,4 @@
+import java.util.Arrays;
 import java.util.HashMap;
 
 /*
@@ -28,6 +29,63 @@ public class StringUtils {
 		return 1.0 * editDistance[n][m] / Math.max(n, m);
 	}
 
+	/*
+	 * The sequence identity of two variants' insertion sequences in a store based on their edit distance
+	 * This gives the same result as the String version, but only keeps two rows of the table at a time, in buffers kept
+	 * by each thread.  When both sequences are all uppercase bases, which they nearly always are, the 2-bit codes are
+	 * compared straight from the packed words.
+	 */
+	static double editDistanceSimilarity(VariantStore store, int a, int b)
+	{
+		int n = store.seqLength[a], m = store.seqLength[b];
+		Scratch scratch = SCRATCH.get();
+		int[] prev = scratch.row(0, m+1), cur = scratch.row(1, m+1);
+		boolean plain = store.isPlainSeq(a) && store.isPlainSeq(b);
+		int[] sSymbols = null, tSymbols = null;
+		if(!plain)
+		{
+			sSymbols = scratch.row(2, n);
+			tSymbols = scratch.row(3, m);
+			store.seqSymbols(a, sSymbols);
+			store.seqSymbols(b, tSymbols);
+		}
+		long[] pool = store.seqPool;
+		int tStart = store.seqStart[b];
+		for(int i = 0; i<=m; i++) prev[i] = i;
+		for(int i = 1; i<=n; i++)
+		{
+			cur[0] = i;
+			int sChar = plain ? store.rawCode(a, i-1) : sSymbols[i-1];
+			long word = 0;
+			for(int j = 1; j<=m; j++)
+			{
+				int tChar;
+				if(plain)
+				{
+					if(((j-1) & 31) == 0)
+					{
+						word = pool[tStart + ((j-1) >> 5)];
+					}
+					tChar = (int)word & 3;
+					word >>>= 2;
+				}
+				else
+				{
+					tChar = tSymbols[j-1];
+				}
+				boolean sameChar = sChar == tChar;
+				int bestDistance = prev[j-1] + (sameChar ? 0 : 1);
+				bestDistance = Math.min(bestDistance, 1 + prev[j]);
+				bestDistance = Math.min(bestDistance, 1 + cur[j-1]);
+				cur[j] = bestDistance;
+			}
+			int[] tmp = prev;
+			prev = cur;
+			cur = tmp;
+		}
+		return 1.0 * prev[m] / Math.max(n, m);
+	}
+	
 	/*
 	 * Gets the frequency of each k-mer in a string, skipping over non-base characters
 	 */
@@ -125,11 +183,149 @@ public class StringUtils {
 		
 	}
 	
+	/*
+	 * Writes every k-mer in a variant's insertion sequence into the start of an array in sorted order, skipping over
+	 * non-base characters, and returns how many there are
+	 * The codes are the same as those used by countKmers(), and each k-mer appears as many times as it occurs.
+	 */
+	static int sortedKmers(VariantStore store, int v, int k, int[] res)
+	{
+		int length = store.seqLength[v];
+		int count = 0;
+		
+		// The number of basepair characters (ACGT) we have seen so far
+		int baseCount = 0;
+		
+		// The encoded (2 bits per character) value of the current kmer so far
+		int kmer = 0;
+		
+		// The next non-base character, which is skipped over without decoding every position
+		int nextException = 0;
+		int numExceptions = store.exceptionCount(v);
+		int nextExceptionPosition = numExceptions == 0 ? -1 : store.exceptionPosition(v, 0);
+		
+		for(int i = 0; i<length; i++)
+		{
+			if(i == nextExceptionPosition)
+			{
+				nextException++;
+				nextExceptionPosition = nextException < numExceptions ? store.exceptionPosition(v, nextException) : -1;
+				continue;
+			}
+			int allButTwoHighest = ((1 << (2*k-2)) - 1) & kmer;
+			kmer = (allButTwoHighest << 2) | store.rawCode(v, i);
+			baseCount++;
+			if(baseCount >= k)
+			{
+				res[count++] = kmer;
+			}
+		}
+		Arrays.sort(res, 0, count);
+		return count;
+	}
+	
+	/*
+	 * The sequence identity of two variants' insertion sequences in a store based on their kmer Jaccard distance
+	 * This gives the same result as the String version, but compares sorted k-mer lists, kept in buffers for each thread,
+	 * instead of building maps
+	 */
+	static double jaccardSimilarity(VariantStore store, int a, int b)
+	{
+		int k = Settings.K_JACCARD;
+		Scratch scratch = SCRATCH.get();
+		
+		int[] sKmers = scratch.row(0, store.seqLength[a]);
+		int sCount = sortedKmers(store, a, k, sKmers);
+		if(sCount == 0)
+		{
+			return 1.0;
+		}
+		
+		int[] tKmers = scratch.row(1, store.seqLength[b]);
+		int tCount = sortedKmers(store, b, k, tKmers);
+		if(tCount == 0)
+		{
+			return 1.0;
+		}
+		
+		// Walk through both lists at once, getting the frequency of each kmer in both
+		int intersection = 0, union = 0;
+		int i = 0, j = 0;
+		while(i < sCount || j < tCount)
+		{
+			int kmer;
+			if(j == tCount || (i < sCount && sKmers[i] <= tKmers[j]))
+			{
+				kmer = sKmers[i];
+			}
+			else
+			{
+				kmer = tKmers[j];
+			}
+			int sFrequency = 0, tFrequency = 0;
+			while(i < sCount && sKmers[i] == kmer)
+			{
+				sFrequency++;
+				i++;
+			}
+			while(j < tCount && tKmers[j] == kmer)
+			{
+				tFrequency++;
+				j++;
+			}
+			intersection += Math.min(sFrequency, tFrequency);
+			union += Math.max(sFrequency, tFrequency);
+		}
+		
+		return 1.0 * intersection / union;
+	}
+	
+	// The buffers of each thread for comparing sequences, which are reused from one pair to the next
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>()
+	{
+		protected Scratch initialValue()
+		{
+			return new Scratch();
+		}
+	};
+	
+	/*
+	 * A few int arrays which only grow, so comparing sequences makes no garbage once they are big enough
+	 */
+	private static class Scratch
+	{
+		int[][] rows = new int[4][0];
+		
+		/*
+		 * Gets the buffer with a given number, making sure it can hold at least a given number of values
+		 */
+		int[] row(int which, int size)
+		{
+			if(rows[which].length < size)
+			{
+				rows[which] = new int[Math.max(size, 2 * rows[which].length)];
+			}
+			return rows[which];
+		}
+	}
+	
 	/*
 	 * Assumes input is a filename, and adds "_<desc>" right before the file extension
+	 * The files named this way are always written as plain text, so a compression extension like .gz is dropped
+	 * and a .bcf extension becomes .vcf, giving x_desc.vcf for x.vcf.gz or x.bcf.
 	 */
 	static String addDescriptor(String input, String desc)
 	{
+		String lower = input.toLowerCase();
+		if(lower.endsWith(".gz") || lower.endsWith(".bgz"))
+		{
+			input = input.substring(0, input.lastIndexOf('.'));
+		}
+		else if(lower.endsWith(".bcf"))
+		{
+			input = input.substring(0, input.length() - 4) + ".vcf";
+		}
+		
 		int idx = input.lastIndexOf(".");
 		if(idx == -1)
 		{
@@ -0,0 +1,119 @@
+/*
+ * A neighbor index which sweeps over the variants in order of start instead of building a tree
+ * Every supported distance is at least the difference in start, so the neighbors within a radius of a variant are all
+ * in the window of variants whose starts are within that radius of its start, which is found by binary search.
+ * This is much cheaper to build than a KD-tree and fast for sparse graphs, but a window can hold many variants which
+ * are not neighbors when lots of variants have similar starts and different ends.
+ */
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+public class SweepIndex implements NeighborIndex
+{
+	int n;
+	
+	// The starts and ends of the variants, and their indices, all in order of start
+	double[] starts, ends;
+	int[] ids;
+	
+	// The variants being indexed
+	VariantStore store;
+	
+	SweepIndex(VariantStore store)
+	{
+		this.store = store;
+		n = store.n;
+		
+		Integer[] order = new Integer[n];
+		for(int i = 0; i<n; i++)
+		{
+			order[i] = i;
+		}
+		final double[] start = store.start;
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				return Double.compare(start[a], start[b]);
+			}
+		});
+		
+		starts = new double[n];
+		ends = new double[n];
+		ids = new int[n];
+		for(int i = 0; i<n; i++)
+		{
+			ids[i] = order[i];
+			starts[i] = store.start[ids[i]];
+			ends[i] = store.end[ids[i]];
+		}
+	}
+	
+	/*
+	 * The first position in the sweep order whose start is at least a given value
+	 */
+	int lowerBound(double value)
+	{
+		int lo = 0, hi = n;
+		while(lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if(starts[mid] < value)
+			{
+				lo = mid + 1;
+			}
+			else
+			{
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	public int nearestWithin(int p, int k, double radius, int[] res)
+	{
+		double x = store.start[p], y = store.end[p];
+		int count = 0;
+		for(int i = lowerBound(x - radius - 1e-9); i < n && starts[i] <= x + radius + 1e-9; i++)
+		{
+			double dist = VariantStore.pointDistance(starts[i] - x, ends[i] - y);
+			if(dist > radius + 1e-9)
+			{
+				continue;
+			}
+			count = store.addNeighbor(res, count, k, ids[i], dist, x, y);
+		}
+		return count;
+	}
+	
+	public NeighborCursor neighborsWithin(int p, double radius, boolean mutual)
+	{
+		return new Cursor(p, radius, mutual);
+	}
+	
+	/*
+	 * A cursor which finds every neighbor in the window all at once, and then hands them out in order
+	 */
+	class Cursor extends NeighborCursor
+	{
+		Cursor(int p, double radius, boolean mutual)
+		{
+			super(SweepIndex.this.store, SweepIndex.this.store.start[p], SweepIndex.this.store.end[p]);
+			for(int i = lowerBound(x - radius - 1e-9); i < n && starts[i] <= x + radius + 1e-9; i++)
+			{
+				double dist = VariantStore.pointDistance(starts[i] - x, ends[i] - y);
+				if(dist > radius + 1e-9 || (mutual && dist > store.maxDist[ids[i]] + 1e-9))
+				{
+					continue;
+				}
+				pushCandidate(ids[i], dist);
+			}
+		}
+		
+		boolean findNext()
+		{
+			return candidateCount > 0;
+		}
+	}
+}
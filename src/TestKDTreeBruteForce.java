@@ -0,0 +1,102 @@
+/*
+ * Randomized test for making sure KD tree queries find exactly the same neighbors, in the same order, as checking
+ * every variant by brute force
+ * The variants are packed into small ranges of coordinates and hashes so that there are lots of exact ties, which the
+ * tree has to break the same way no matter which side of a split the tied variants ended up on.
+ * Output should be the number of queries checked, followed by "All tests passed".
+ */
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+public class TestKDTreeBruteForce {
+public static void main(String[] args)
+{
+	Random rand = new Random(18);
+	int failures = 0, queries = 0;
+	for(int norm = 1; norm <= 3; norm++)
+	{
+		Settings.KD_TREE_NORM = norm;
+		for(int trial = 0; trial<100; trial++)
+		{
+			VariantStore store = randomStore(rand, trial);
+			KDTree tree = new KDTree(store);
+			int[] res = new int[store.n];
+			for(int q = 0; q<store.n; q++)
+			{
+				int k = 1 + rand.nextInt(12);
+				double radius = rand.nextBoolean() ? Double.POSITIVE_INFINITY : rand.nextInt(20);
+				Integer[] expected = byDistance(store, q);
+				
+				// Every variant in range, nearest first, up to k of them
+				int expectedCount = 0;
+				while(expectedCount < Math.min(k, store.n) && store.distance(q, expected[expectedCount]) <= radius + 1e-9)
+				{
+					expectedCount++;
+				}
+				
+				int[] nearest = tree.kNearestNeighbor(q, k);
+				int count = tree.nearestWithin(q, k, radius, res);
+				boolean same = nearest.length == Math.min(k, store.n) && count == expectedCount;
+				for(int i = 0; same && i<nearest.length; i++)
+				{
+					same = nearest[i] == expected[i];
+				}
+				for(int i = 0; same && i<count; i++)
+				{
+					same = res[i] == expected[i];
+				}
+				if(!same)
+				{
+					System.out.println("Neighbors differ from brute force for norm " + norm + ", trial " + trial + ", query " + q);
+					failures++;
+				}
+				queries++;
+			}
+		}
+	}
+	System.out.println("Queries checked: " + queries);
+	
+	System.out.println(failures == 0 ? "All tests passed" : (failures + " tests failed"));
+}
+
+/*
+ * A store of random variants, many of which are at exactly the same distance from each other
+ */
+static VariantStore randomStore(Random rand, int trial)
+{
+	int n = 1 + rand.nextInt(300);
+	int range = 1 + rand.nextInt(trial % 3 == 0 ? 5 : 100);
+	VariantStore store = new VariantStore("test", n);
+	for(int i = 0; i<n; i++)
+	{
+		store.start[i] = rand.nextInt(range);
+		store.end[i] = trial % 4 == 0 ? store.start[i] : rand.nextInt(range);
+		store.id[i] = "var" + i;
+		store.hash[i] = rand.nextInt(5);
+		store.maxDist[i] = rand.nextInt(30);
+	}
+	store.rankIds();
+	return store;
+}
+
+/*
+ * Every variant in a store sorted by distance from one of them, breaking ties the same way the tree does
+ */
+static Integer[] byDistance(final VariantStore store, final int q)
+{
+	Integer[] res = new Integer[store.n];
+	for(int i = 0; i<store.n; i++)
+	{
+		res[i] = i;
+	}
+	Arrays.sort(res, new Comparator<Integer>()
+	{
+		public int compare(Integer a, Integer b)
+		{
+			return store.compareNeighbors(b, store.distance(q, b), a, store.distance(q, a));
+		}
+	});
+	return res;
+}
+}
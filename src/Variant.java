@@ -19,6 +19,9 @@ public class Variant implements Comparable<Variant>
 	// This is initialized and used internally for bookkeeping and does not come from VCF
 	int index;
 	
+	// The position of the variant among the records of its file, which together with the sample identifies it
+	int ordinal;
+	
 	// For insertions, the sequence being inserted, or null otherwise
 	String seq;
 	
@@ -32,16 +35,27 @@ public class Variant implements Comparable<Variant>
 	double[] interval;
 	
 	int hash;
+	
+	/*
+	 * A polynomial hash of an INFO field modulo 1e9+7
+	 * The remainder is only taken once the running value gets close to overflowing rather than after every character,
+	 * which gives the same result since everything is done modulo the same number.
+	 */
 	static int hash(String infoString)
 	{
 		long res = 0;
 		int mod = (int)(1e9+7);
-		char[] cs = infoString.toCharArray();
-		for(char c : cs)
+		long limit = Long.MAX_VALUE / 17 - Character.MAX_VALUE;
+		int length = infoString.length();
+		for(int i = 0; i<length; i++)
 		{
-			res = ((res * 17) + c)%mod;
+			res = res * 17 + infoString.charAt(i);
+			if(res >= limit)
+			{
+				res %= mod;
+			}
 		}
-		return (int)res;
+		return (int)(res % mod);
 	}
 	
 	/*
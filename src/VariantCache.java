@@ -0,0 +1,452 @@
+/*
+ * A binary cache of the variants parsed from a VCF file, stored next to it as <vcf>.jasmine.bin
+ * Rerunning on the same inputs can then map the cache into memory instead of parsing the text again.
+ *
+ * The cache is only used if the VCF has the same size and modification time as when the cache was written,
+ * and if every setting which affects how variants are parsed is the same.  Variants are stored in columns,
+ * one block per graph ID, and IDs are stored without the sample prefix so the same cache works no matter
+ * where the file appears in the file list.  A table of how many variants are in each graph comes before
+ * the blocks, so the counts can be read on their own when sizing the graph stores.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class VariantCache
+{
+	// The suffix added to a VCF filename to get its cache
+	static String SUFFIX = ".jasmine.bin";
+	
+	// Written at the start of every cache, and changed whenever the layout changes
+	static String MAGIC = "JASMINE_VARIANT_CACHE";
+	static int VERSION = 3;
+	
+	// The largest cache which can be mapped into memory as a single buffer
+	static long MAX_SIZE = Integer.MAX_VALUE;
+	
+	/*
+	 * Gets the name of the cache for a VCF file
+	 */
+	static String cacheFile(String filename)
+	{
+		return filename + SUFFIX;
+	}
+	
+	/*
+	 * Describes all of the settings which change the variants produced from a file, so that a cache
+	 * written with different settings is never used
+	 */
+	static String settingsKey(int sample)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("type=" + Settings.USE_TYPE);
+		sb.append(";strand=" + Settings.USE_STRAND);
+		sb.append(";end=" + Settings.USE_END);
+		sb.append(";normalize_type=" + Settings.NORMALIZE_TYPE);
+		sb.append(";max_dist=" + Settings.MAX_DIST + "," + Settings.MAX_DIST_SET);
+		sb.append(";max_dist_linear=" + Settings.MAX_DIST_LINEAR + "," + Settings.USE_LINEAR_THRESHOLD);
+		sb.append(";min_dist=" + Settings.MIN_DIST);
+		int sampleDist = -1;
+		if(Settings.PER_SAMPLE_DISTS != null && Settings.PER_SAMPLE_DISTS.length > sample)
+		{
+			sampleDist = Settings.PER_SAMPLE_DISTS[sample];
+		}
+		sb.append(";sample_dist=" + sampleDist);
+		sb.append(";min_seq_id=" + Settings.MIN_SEQUENCE_SIMILARITY);
+		sb.append(";min_overlap=" + Settings.OVERLAP_REQUIRED);
+		sb.append(";normalize_chrs=" + Settings.DEFAULT_CHR_NORM);
+		sb.append(";chr_norm_file=" + Settings.CHR_NORM_FILE);
+		if(Settings.CHR_NORM_FILE.length() > 0)
+		{
+			File chrNormFile = new File(Settings.CHR_NORM_FILE);
+			sb.append("," + chrNormFile.length() + "," + chrNormFile.lastModified());
+		}
+		sb.append(";region=" + Settings.REGION);
+		if(Settings.REGION.length() > 0 && new File(Settings.REGION).isFile())
+		{
+			File regionFile = new File(Settings.REGION);
+			sb.append("," + regionFile.length() + "," + regionFile.lastModified());
+		}
+		return sb.toString();
+	}
+	
+	/*
+	 * Maps the cache for a file into memory and reads its header, leaving the buffer positioned at the graph table
+	 * Returns null if there is no cache or if it is out of date, in which case the file needs to be parsed
+	 */
+	static MappedByteBuffer open(String filename, int sample) throws Exception
+	{
+		File vcf = new File(filename);
+		File cache = new File(cacheFile(filename));
+		if(!vcf.isFile() || !cache.isFile() || cache.length() > MAX_SIZE)
+		{
+			return null;
+		}
+		FileChannel channel = FileChannel.open(Paths.get(cache.getPath()), StandardOpenOption.READ);
+		MappedByteBuffer buf;
+		try
+		{
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			channel.close();
+		}
+		
+		if(!MAGIC.equals(getString(buf)) || buf.getInt() != VERSION)
+		{
+			return null;
+		}
+		if(buf.getLong() != vcf.length() || buf.getLong() != vcf.lastModified())
+		{
+			return null;
+		}
+		if(!settingsKey(sample).equals(getString(buf)))
+		{
+			return null;
+		}
+		return buf;
+	}
+	
+	/*
+	 * Gets the number of variants in each graph for a file from the table at the start of its cache,
+	 * without reading any of the variants themselves
+	 * Returns null if there is no usable cache
+	 */
+	static VariantInput.GraphCounts loadCounts(String filename, int sample)
+	{
+		try
+		{
+			MappedByteBuffer buf = open(filename, sample);
+			if(buf == null)
+			{
+				return null;
+			}
+			int graphCount = buf.getInt();
+			VariantInput.GraphCounts res = new VariantInput.GraphCounts();
+			for(int g = 0; g<graphCount; g++)
+			{
+				int graphCode = VariantInput.graphIds.getCode(getString(buf));
+				res.add(graphCode, buf.getInt());
+			}
+			return res;
+		}
+		catch(Exception e)
+		{
+			// A damaged or truncated cache is treated the same as a missing one
+			return null;
+		}
+	}
+	
+	/*
+	 * Reads the variants for a file from its cache straight into the graph stores, with this sample's
+	 * variants in each graph starting at the given offset (indexed by graph code)
+	 * The number of variants the cache has in each graph must be exactly what the stores were sized for, so that
+	 * nothing is written outside of this sample's slots and none of them are left empty.
+	 * Returns false if the cache can no longer be used
+	 */
+	static boolean fill(String filename, int sample, VariantStore[] stores, int[] offsets, VariantInput.GraphCounts expected)
+	{
+		try
+		{
+			MappedByteBuffer buf = open(filename, sample);
+			if(buf == null)
+			{
+				return false;
+			}
+			int graphCount = buf.getInt();
+			int[] graphCodes = new int[graphCount];
+			int[] sizes = new int[graphCount];
+			for(int g = 0; g<graphCount; g++)
+			{
+				graphCodes[g] = VariantInput.graphIds.getCode(getString(buf));
+				sizes[g] = buf.getInt();
+			}
+			
+			// A cache rewritten since the variants were counted can have different graphs or sizes
+			VariantInput.GraphCounts found = new VariantInput.GraphCounts();
+			for(int g = 0; g<graphCount; g++)
+			{
+				found.add(graphCodes[g], sizes[g]);
+			}
+			if(found.total != expected.total)
+			{
+				return false;
+			}
+			for(int g = 0; g<Math.max(found.counts.length, expected.counts.length); g++)
+			{
+				if(found.get(g) != expected.get(g) || (found.get(g) > 0 && stores[g] == null))
+				{
+					return false;
+				}
+			}
+			
+			String prefix = sample + "_";
+			for(int g = 0; g<graphCount; g++)
+			{
+				VariantStore store = stores[graphCodes[g]];
+				int offset = offsets[graphCodes[g]];
+				int n = sizes[g];
+				
+				// Each column goes straight into the store's array for it
+				Arrays.fill(store.sample, offset, offset + n, sample);
+				buf.asIntBuffer().get(store.ordinal, offset, n);
+				buf.position(buf.position() + 4 * n);
+				buf.asDoubleBuffer().get(store.start, offset, n);
+				buf.position(buf.position() + 8 * n);
+				buf.asDoubleBuffer().get(store.end, offset, n);
+				buf.position(buf.position() + 8 * n);
+				buf.asIntBuffer().get(store.maxDist, offset, n);
+				buf.position(buf.position() + 4 * n);
+				buf.asDoubleBuffer().get(store.minSeqId, offset, n);
+				buf.position(buf.position() + 8 * n);
+				buf.asIntBuffer().get(store.hash, offset, n);
+				buf.position(buf.position() + 4 * n);
+				buf.asDoubleBuffer().get(store.intervalStart, offset, n);
+				buf.position(buf.position() + 8 * n);
+				buf.asDoubleBuffer().get(store.intervalEnd, offset, n);
+				buf.position(buf.position() + 8 * n);
+				String[] ids = getStringColumn(buf, n);
+				String[] seqs = getStringColumn(buf, n);
+				for(int i = 0; i<n; i++)
+				{
+					store.id[offset + i] = prefix + ids[i];
+					store.setSeq(offset + i, seqs[i]);
+				}
+			}
+			return true;
+		}
+		catch(Exception e)
+		{
+			return false;
+		}
+	}
+	
+	/*
+	 * Writes the cache for a file, given the graph stores its variants were parsed into, where each sample's
+	 * variants in each graph start, and how many there are
+	 * Failing to write the cache, for example because the directory is read-only, only prints a warning
+	 */
+	static void save(String filename, int sample, VariantStore[] stores, int[] offsets, VariantInput.GraphCounts counts)
+	{
+		File vcf = new File(filename);
+		if(!vcf.isFile())
+		{
+			return;
+		}
+		
+		ArrayList<Integer> graphCodes = new ArrayList<Integer>();
+		for(int g = 0; g<counts.counts.length; g++)
+		{
+			if(counts.counts[g] > 0)
+			{
+				graphCodes.add(g);
+			}
+		}
+		
+		String prefix = sample + "_";
+		
+		// A cache too big to map in one piece would never be used, so don't spend the time writing it
+		if(minimumSize(prefix, stores, offsets, counts, graphCodes) > MAX_SIZE)
+		{
+			return;
+		}
+		
+		// Write to a uniquely named file and then move it into place in one step, so threads saving the cache of the
+		// same file at once never mix their writes
+		File cache = new File(cacheFile(filename)).getAbsoluteFile();
+		File tmp = null;
+		try
+		{
+			tmp = VcfIndex.tempFileFor(cache, vcf);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			try
+			{
+				putString(out, MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(vcf.length());
+				out.writeLong(vcf.lastModified());
+				putString(out, settingsKey(sample));
+				out.writeInt(graphCodes.size());
+				for(int g : graphCodes)
+				{
+					putString(out, stores[g].graphID);
+					out.writeInt(counts.counts[g]);
+				}
+				for(int g : graphCodes)
+				{
+					VariantStore store = stores[g];
+					int from = offsets[g], to = offsets[g] + counts.counts[g];
+					for(int i = from; i<to; i++)
+					{
+						out.writeInt(store.ordinal[i]);
+					}
+					for(int i = from; i<to; i++)
+					{
+						out.writeDouble(store.start[i]);
+					}
+					for(int i = from; i<to; i++)
+					{
+						out.writeDouble(store.end[i]);
+					}
+					for(int i = from; i<to; i++)
+					{
+						out.writeInt(store.maxDist[i]);
+					}
+					for(int i = from; i<to; i++)
+					{
+						out.writeDouble(store.minSeqId[i]);
+					}
+					for(int i = from; i<to; i++)
+					{
+						out.writeInt(store.hash[i]);
+					}
+					for(int i = from; i<to; i++)
+					{
+						out.writeDouble(store.intervalStart[i]);
+					}
+					for(int i = from; i<to; i++)
+					{
+						out.writeDouble(store.intervalEnd[i]);
+					}
+					String[] ids = new String[to - from];
+					String[] seqs = new String[to - from];
+					for(int i = from; i<to; i++)
+					{
+						ids[i - from] = store.id[i].substring(prefix.length());
+						seqs[i - from] = store.getSeq(i);
+					}
+					putStringColumn(out, ids);
+					putStringColumn(out, seqs);
+					
+					// The count of bytes written stops going up at Integer.MAX_VALUE, so reaching it means the cache is too big
+					if(out.size() >= MAX_SIZE)
+					{
+						break;
+					}
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+			if(tmp.length() > MAX_SIZE)
+			{
+				tmp.delete();
+				return;
+			}
+			Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(Exception e)
+		{
+			if(tmp != null)
+			{
+				tmp.delete();
+			}
+			System.err.println("Warning: Could not write variant cache for " + filename + ": " + e.getMessage());
+		}
+	}
+	
+	/*
+	 * A lower bound on the size of the cache for a file, from the fixed-size columns and the number of characters in
+	 * the IDs and sequences, which each take at least one byte in UTF-8
+	 */
+	static long minimumSize(String prefix, VariantStore[] stores, int[] offsets, VariantInput.GraphCounts counts, ArrayList<Integer> graphCodes)
+	{
+		long res = 0;
+		for(int g : graphCodes)
+		{
+			VariantStore store = stores[g];
+			int from = offsets[g], to = offsets[g] + counts.counts[g];
+			
+			// The eight fixed-size columns and the lengths of the ID and sequence
+			res += 60L * (to - from);
+			for(int i = from; i<to; i++)
+			{
+				res += store.id[i].length() - prefix.length();
+				if(store.seqLength[i] != -1)
+				{
+					res += store.seqLength[i];
+				}
+			}
+		}
+		return res;
+	}
+	
+	/*
+	 * Strings are stored as a length followed by UTF-8 bytes, with a length of -1 meaning null
+	 */
+	static void putString(DataOutputStream out, String s) throws Exception
+	{
+		if(s == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	static String getString(MappedByteBuffer buf)
+	{
+		int length = buf.getInt();
+		if(length == -1)
+		{
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/*
+	 * A column of strings is stored as all of their lengths followed by all of their bytes
+	 */
+	static void putStringColumn(DataOutputStream out, String[] strings) throws Exception
+	{
+		byte[][] bytes = new byte[strings.length][];
+		for(int i = 0; i<strings.length; i++)
+		{
+			bytes[i] = strings[i] == null ? null : strings[i].getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes[i] == null ? -1 : bytes[i].length);
+		}
+		for(byte[] b : bytes)
+		{
+			if(b != null)
+			{
+				out.write(b);
+			}
+		}
+	}
+	
+	static String[] getStringColumn(MappedByteBuffer buf, int n)
+	{
+		int[] lengths = new int[n];
+		buf.asIntBuffer().get(lengths);
+		buf.position(buf.position() + 4 * n);
+		String[] res = new String[n];
+		for(int i = 0; i<n; i++)
+		{
+			if(lengths[i] == -1)
+			{
+				continue;
+			}
+			byte[] bytes = new byte[lengths[i]];
+			buf.get(bytes);
+			res[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return res;
+	}
+}
@@ -4,17 +4,27 @@
  */
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Scanner;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class VariantInput {
 	
 	// How many samples were merged to produce each input file
-	static HashMap<Integer, Integer> previouslyMergedSamples = new HashMap<Integer, Integer>();
+	static ConcurrentHashMap<Integer, Integer> previouslyMergedSamples = new ConcurrentHashMap<Integer, Integer>();
+	
+	// Every graph ID seen so far, so that each one is only stored once and can be referred to by a dense code
+	static StringDictionary graphIds = new StringDictionary();
+	
+	// Plain VCF files at least this large are split into byte ranges and parsed by several threads
+	// when there are fewer files than threads
+	static long CHUNKED_PARSE_MIN_BYTES = 64L << 20;
+	
+	// How many byte ranges to split a file into per thread parsing it, so that uneven ranges balance out
+	static int CHUNKS_PER_THREAD = 4;
 	
 	/*
 	 * Count the number of VCF files in a list
@@ -26,124 +36,1007 @@ public class VariantInput {
 	
 	/*
 	 * Get a list of all variants from a group of files, binning them by graphID
+	 * Files are parsed in parallel, but each graph's variants are ordered by sample
+	 * and then by their order within the file, the same as reading them one at a time
+	 * Each graph's variants are returned in a columnar store rather than as Variant objects
 	 */
-	@SuppressWarnings("unchecked")
-	public static TreeMap<String, ArrayList<Variant>> readAllFiles(String fileList) throws Exception
+	public static TreeMap<String, VariantStore> readAllFiles(String fileList) throws Exception
 	{
 		ArrayList<String> fileNames = PipelineManager.getFilesFromList(fileList);
 		
-		TreeMap<String, ArrayList<Variant>>[] variantsPerFile = new TreeMap[fileNames.size()];
-		for(int i = 0; i<fileNames.size(); i++)
+		ParallelLoader loader = new ParallelLoader(fileNames);
+		loader.run();
+		
+		TreeMap<String, VariantStore> res = new TreeMap<String, VariantStore>();
+		for(VariantStore store : loader.stores)
+		{
+			if(store != null)
+			{
+				store.trimSequences();
+				res.put(store.graphID, store);
+			}
+		}
+		return res;
+	}
+	
+	/*
+	 * The number of variants in each graph, indexed by graph code
+	 */
+	static class GraphCounts
+	{
+		int[] counts;
+		int total;
+		
+		GraphCounts()
 		{
-			variantsPerFile[i] = getSingleList(fileNames.get(i), i);
+			counts = new int[16];
 		}
-		TreeMap<String, ArrayList<Variant>> res = new TreeMap<String, ArrayList<Variant>>();
-		for(int i = 0; i<fileNames.size(); i++)
+		
+		void add(int graphCode)
 		{
-			for(String s : variantsPerFile[i].keySet())
+			add(graphCode, 1);
+		}
+		
+		void add(int graphCode, int count)
+		{
+			if(graphCode >= counts.length)
 			{
-				if(!res.containsKey(s))
-				{
-					res.put(s, new ArrayList<Variant>());
-				}
-				for(Variant v : variantsPerFile[i].get(s))
-				{
-					res.get(s).add(v);
-				}
+				counts = Arrays.copyOf(counts, Math.max(graphCode + 1, 2 * counts.length));
 			}
+			counts[graphCode] += count;
+			total += count;
+		}
+		
+		void addAll(GraphCounts other)
+		{
+			if(other.counts.length > counts.length)
+			{
+				counts = Arrays.copyOf(counts, other.counts.length);
+			}
+			for(int g = 0; g<other.counts.length; g++)
+			{
+				counts[g] += other.counts[g];
+			}
+			total += other.total;
+		}
+		
+		int get(int graphCode)
+		{
+			return graphCode < counts.length ? counts[graphCode] : 0;
+		}
+	}
+	
+	/*
+	 * How a single file is going to be read, worked out when its variants are counted
+	 */
+	static class FilePlan
+	{
+		String filename;
+		int sample;
+		
+		// The number of variants in each graph
+		GraphCounts counts;
+		
+		// Whether the variants come from the parse cache instead of the file itself
+		boolean fromCache;
+		
+		// For large files parsed as several byte ranges, the boundaries of the ranges, with range i being
+		// [bounds[i], bounds[i+1]), and the number of variants in each graph in each range; both are null otherwise
+		long[] bounds;
+		GraphCounts[] rangeCounts;
+		
+		// Whether the file is compressed or BCF, so it is parsed while it is counted rather than read twice, and if so,
+		// the variants in each graph, indexed by graph code, until they are copied into the graph stores
+		boolean buffered;
+		VariantStore[] buffers;
+		
+		FilePlan(String filename, int sample)
+		{
+			this.filename = filename;
+			this.sample = sample;
+		}
+		
+		/*
+		 * Gets the buffer for a graph, making sure it has room for one more variant
+		 */
+		VariantStore buffer(int graphCode)
+		{
+			if(buffers == null || graphCode >= buffers.length)
+			{
+				buffers = buffers == null ? new VariantStore[Math.max(graphCode + 1, 16)] : Arrays.copyOf(buffers, Math.max(graphCode + 1, 2 * buffers.length));
+			}
+			VariantStore buffer = buffers[graphCode];
+			if(buffer == null)
+			{
+				buffer = buffers[graphCode] = new VariantStore(graphIds.get(graphCode), 64);
+			}
+			else if(counts.get(graphCode) == buffer.n)
+			{
+				buffer.resize(2 * buffer.n);
+			}
+			return buffer;
 		}
-		return res;
 	}
 	
 	/*
-	 * Get a list of variants binned by graphID for a single VCF file
+	 * Reads a list of VCF files with a bounded number of threads, each of which
+	 * takes the next unread file from a queue
+	 *
+	 * The files are read in two passes so that no temporary per-file lists are needed.  The first pass only
+	 * counts how many variants each file has in each graph, which is enough to allocate every graph's store
+	 * at its exact size and to know where each sample's variants go in it.  The second pass then parses
+	 * the variants straight into their slots.
+	 * Plain text files are counted by scanning the bytes of each line for the few fields the graph depends on.
+	 * Decompressing or decoding a file is most of the cost of reading it, so compressed and BCF files are instead
+	 * parsed once in the first pass into growable buffers for each graph, which the second pass copies into place.
 	 */
-	private static TreeMap<String, ArrayList<Variant>> getSingleList(String filename, int sample) throws Exception
+	static class ParallelLoader
 	{
-		if(filename.endsWith(".gz"))
+		// The two passes over the files
+		static final int COUNT = 0, FILL = 1;
+		
+		// The files to read, in sample order
+		ArrayList<String> fileNames;
+		
+		// Indices of files left to read in the current pass
+		ConcurrentLinkedQueue<Integer> todo;
+		
+		// How each file is read, filled in by the counting pass
+		FilePlan[] plans;
+		
+		// The store for each graph, indexed by graph code, and the index in each store
+		// where each sample's variants start, indexed by sample and then graph code
+		VariantStore[] stores;
+		int[][] offsets;
+		
+		// The first error hit by any thread, which is rethrown once they all finish
+		// Errors such as running out of memory are kept too, so a file which fails is never just left out.
+		volatile Throwable error;
+		
+		// How many threads can work on a single file when there are more threads than files
+		int threadsPerFile;
+		
+		ParallelLoader(ArrayList<String> fileNames)
+		{
+			this.fileNames = fileNames;
+			threadsPerFile = Math.max(1, Settings.THREADS / Math.max(1, fileNames.size()));
+			plans = new FilePlan[fileNames.size()];
+		}
+		
+		/*
+		 * Read all of the files
+		 */
+		void run() throws Exception
+		{
+			runPass(COUNT);
+			allocate();
+			runPass(FILL);
+		}
+		
+		/*
+		 * Runs one pass over all of the files, with the calling thread acting as one of the workers
+		 */
+		void runPass(int pass) throws Exception
+		{
+			todo = new ConcurrentLinkedQueue<Integer>();
+			for(int i = 0; i<fileNames.size(); i++)
+			{
+				todo.add(i);
+			}
+			int numThreads = Math.max(1, Math.min(Settings.THREADS, fileNames.size()));
+			LoaderThread[] threads = new LoaderThread[numThreads];
+			for(int i = 0; i<numThreads; i++)
+			{
+				threads[i] = new LoaderThread(pass);
+				if(i == numThreads - 1)
+				{
+					threads[i].run();
+				}
+				else
+				{
+					threads[i].start();
+				}
+			}
+			for(int i = 0; i<numThreads-1; i++)
+			{
+				threads[i].join();
+			}
+			if(error != null)
+			{
+				rethrow(error);
+			}
+		}
+		
+		/*
+		 * Records an error unless another thread has already hit one
+		 */
+		synchronized void fail(Throwable e)
 		{
-			System.err.println("Warning: " + filename + " ends with .gz, but (b)gzipped VCFs are not accepted");
+			if(error == null)
+			{
+				error = e;
+			}
 		}
-		Scanner input = new Scanner(new FileInputStream(new File(filename)));
-		ArrayList<Variant> allVariants = new ArrayList<Variant>();
-		HashSet<String> ids = new HashSet<String>();
-		if(!previouslyMergedSamples.containsKey(sample))
+		
+		/*
+		 * Allocates every graph's store, with each sample's variants in a contiguous block in sample order
+		 */
+		void allocate()
 		{
-			previouslyMergedSamples.put(sample, 1);
+			int graphCount = graphIds.size();
+			int[] totals = new int[graphCount];
+			offsets = new int[fileNames.size()][graphCount];
+			for(int sample = 0; sample<fileNames.size(); sample++)
+			{
+				for(int g = 0; g<graphCount; g++)
+				{
+					offsets[sample][g] = totals[g];
+					totals[g] += plans[sample].counts.get(g);
+				}
+			}
+			stores = new VariantStore[graphCount];
+			for(int g = 0; g<graphCount; g++)
+			{
+				if(totals[g] > 0)
+				{
+					stores[g] = new VariantStore(graphIds.get(g), totals[g]);
+				}
+			}
 		}
-		while(input.hasNext())
+		
+		/*
+		 * Counts the variants in each graph in a file, from the parse cache if there is an up-to-date one
+		 */
+		void countFile(int sample) throws Exception
 		{
-			String line = input.nextLine();
-			if(line.length() == 0 || line.startsWith("#"))
+			String filename = fileNames.get(sample);
+			FilePlan plan = new FilePlan(filename, sample);
+			plans[sample] = plan;
+			if(Settings.USE_PARSE_CACHE)
 			{
-				continue;
+				plan.counts = VariantCache.loadCounts(filename, sample);
+				if(plan.counts != null)
+				{
+					plan.fromCache = true;
+					return;
+				}
 			}
-			if(line.length() >=2 && line.charAt(0) == 31 && (line.charAt(1) == 65533 || line.charAt(1) == 139))
+			
+			if(threadsPerFile > 1 && LineReader.isPlainFile(filename) && new File(filename).length() >= CHUNKED_PARSE_MIN_BYTES && !BcfReader.isBcf(filename) && Settings.REGIONS == null)
+			{
+				int ranges = threadsPerFile * CHUNKS_PER_THREAD;
+				plan.bounds = LineReader.lineAlignedRanges(filename, ranges);
+				plan.rangeCounts = new GraphCounts[ranges];
+				new RangeReader(plan, COUNT).run(threadsPerFile);
+				plan.counts = new GraphCounts();
+				for(GraphCounts rangeCount : plan.rangeCounts)
+				{
+					plan.counts.addAll(rangeCount);
+				}
+			}
+			else if(LineReader.isPlainFile(filename) && !BcfReader.isBcf(filename))
 			{
-				throw new Exception(filename + " is a gzipped file, but only unzipped VCFs are accepted");
+				plan.counts = countVariants(new VcfRecordReader(filename));
 			}
-			VcfEntry entry = VcfEntry.fromLine(line);
+			else
+			{
+				plan.buffered = true;
+				plan.counts = new GraphCounts();
+				fillSequential(plan, true);
+			}
+		}
+		
+		/*
+		 * Parses the variants in a file into their slots in the graph stores
+		 */
+		void fillFile(int sample) throws Exception
+		{
+			FilePlan plan = plans[sample];
+			if(plan.fromCache)
+			{
+				if(VariantCache.fill(plan.filename, sample, stores, offsets[sample], plan.counts))
+				{
+					if(!previouslyMergedSamples.containsKey(sample))
+					{
+						previouslyMergedSamples.put(sample, 1);
+					}
+					System.out.println(plan.filename + " has " + plan.counts.total + " variants (from " + VariantCache.cacheFile(plan.filename) + ")");
+					return;
+				}
+				
+				// The cache changed after the variants were counted, so parse the file itself into the same slots
+				System.err.println("Warning: Variant cache " + VariantCache.cacheFile(plan.filename) + " changed while it was being read; parsing " + plan.filename + " instead");
+			}
+			
+			if(plan.buffered)
+			{
+				fillBuffered(plan);
+			}
+			else if(plan.bounds != null)
+			{
+				fillChunked(plan);
+			}
+			else
+			{
+				fillSequential(plan, false);
+			}
+			
+			System.out.println(plan.filename + " has " + plan.counts.total + " variants");
+			
+			if(Settings.USE_PARSE_CACHE)
+			{
+				VariantCache.save(plan.filename, sample, stores, offsets[sample], plan.counts);
+			}
+		}
+		
+		/*
+		 * Parse the variants in a single VCF file, in the order they appear, either into their slots in the graph
+		 * stores or, when buffered is set, into the file's buffers while counting them
+		 */
+		void fillSequential(FilePlan plan, boolean buffered) throws Exception
+		{
+			int sample = plan.sample;
+			int[] cursor = buffered ? null : offsets[sample].clone();
+			HashSet<String> ids = new HashSet<String>();
+			int ordinal = 0;
 			if(!previouslyMergedSamples.containsKey(sample))
 			{
-				if(entry.getInfo("SUPP_VEC_EXT").length() > 0)
+				previouslyMergedSamples.put(sample, 1);
+			}
+			
+			// A compressed file gets the same share of the threads as a chunked plain one: the thread reading it,
+			// plus the rest of its share for decompressing BGZF blocks ahead of it
+			BgzfInputStream.DecompressionPool pool = BgzfInputStream.DecompressionPool.withThreads(threadsPerFile - 1);
+			VcfRecordReader input = null;
+			try
+			{
+				input = new VcfRecordReader(plan.filename, Settings.REGIONS, pool);
+				while(input.advance())
+				{
+					if(input.isHeader())
+					{
+						continue;
+					}
+					// Only CHROM through INFO are needed for merging, so leave the sample columns unparsed
+					VcfEntry entry = input.siteEntry();
+					if(!previouslyMergedSamples.containsKey(sample))
+					{
+						if(entry.getInfo("SUPP_VEC_EXT").length() > 0)
+						{
+							previouslyMergedSamples.put(sample, entry.getInfo("SUPP_VEC_EXT").length());
+						}
+						else if(entry.getInfo("SUPP_VEC").length() > 0)
+						{
+							previouslyMergedSamples.put(sample, entry.getInfo("SUPP_VEC").length());
+						}
+						else
+						{
+							previouslyMergedSamples.put(sample, 1);
+						}
+					}
+					if(ids.contains(entry.getId()))
+					{
+						String oldId = entry.getId();
+						entry.setId(deduplicateId(oldId, ids));
+						System.err.println("Warning: Duplicate variant ID " + oldId + " in " + plan.filename + "; Replacing with " + entry.getId());
+					}
+					ids.add(entry.getId());
+					int graphCode = graphIds.getCode(entry.getGraphID());
+					if(buffered)
+					{
+						setVariant(plan.buffer(graphCode), plan.counts.get(graphCode), entry, sample, ordinal++);
+						plan.counts.add(graphCode);
+						continue;
+					}
+					if(graphCode >= offsets[sample].length || cursor[graphCode] == offsets[sample][graphCode] + plan.counts.get(graphCode))
+					{
+						throw new Exception(plan.filename + " has more variants in graph " + entry.getGraphID() + " than were counted");
+					}
+					setVariant(stores[graphCode], cursor[graphCode]++, entry, sample, ordinal++);
+				}
+			}
+			finally
+			{
+				if(input != null)
 				{
-					previouslyMergedSamples.put(sample, entry.getInfo("SUPP_VEC_EXT").length());
+					input.close();
 				}
-				else if(entry.getInfo("SUPP_VEC").length() > 0)
+				if(pool != null)
 				{
-					previouslyMergedSamples.put(sample, entry.getInfo("SUPP_VEC").length());
+					pool.shutdown();
 				}
-				else
+			}
+			if(buffered)
+			{
+				return;
+			}
+			for(int g = 0; g<cursor.length; g++)
+			{
+				if(cursor[g] != offsets[sample][g] + plan.counts.get(g))
 				{
-					previouslyMergedSamples.put(sample, 1);
+					throw new Exception(plan.filename + " has fewer variants in graph " + graphIds.get(g) + " than were counted");
 				}
 			}
-			if(ids.contains(entry.getId()))
+		}
+		
+		/*
+		 * Copies the variants which were parsed into a file's buffers while counting it into their slots in the graph
+		 * stores, and then lets go of the buffers
+		 */
+		void fillBuffered(FilePlan plan)
+		{
+			for(int g = 0; plan.buffers != null && g<plan.buffers.length; g++)
 			{
-				String oldId = entry.getId();
-				int index = 1;
-				while(true)
+				if(plan.buffers[g] != null)
 				{
-					String newId = oldId + "_duplicate" + index;
-					if(!ids.contains(newId))
+					plan.buffers[g].copyInto(stores[g], offsets[plan.sample][g], plan.counts.get(g));
+				}
+			}
+			plan.buffers = null;
+		}
+		
+		/*
+		 * Parse the variants in a single large VCF file by filling in its byte ranges in parallel
+		 * The ranges are then stitched together in file order, and duplicate IDs are renamed during stitching
+		 * so that the variants, their IDs, and the warnings printed are the same as reading the file sequentially
+		 */
+		void fillChunked(FilePlan plan) throws Exception
+		{
+			int sample = plan.sample;
+			if(!previouslyMergedSamples.containsKey(sample))
+			{
+				previouslyMergedSamples.put(sample, 1);
+			}
+			
+			RangeReader reader = new RangeReader(plan, FILL);
+			reader.run(threadsPerFile);
+			
+			HashSet<String> ids = new HashSet<String>();
+			String prefix = sample + "_";
+			int ordinal = 0;
+			for(int i = 0; i<plan.bounds.length - 1; i++)
+			{
+				for(int j = 0; j<reader.filled[i]; j++)
+				{
+					VariantStore store = stores[reader.recordGraph[i][j]];
+					int index = reader.recordIndex[i][j];
+					
+					// The variant ID already has the sample prefix added, so look at the original ID without it
+					String id = store.id[index].substring(prefix.length());
+					if(ids.contains(id))
 					{
-						entry.setId(newId);
-						break;
+						String oldId = id;
+						id = deduplicateId(oldId, ids);
+						store.id[index] = prefix + id;
+						System.err.println("Warning: Duplicate variant ID " + oldId + " in " + plan.filename + "; Replacing with " + id);
+					}
+					ids.add(id);
+					store.ordinal[index] = ordinal++;
+				}
+				
+				// Report the first error in file order, after everything before it has been processed
+				if(reader.errors[i] != null)
+				{
+					rethrow(reader.errors[i]);
+				}
+			}
+		}
+		
+		/*
+		 * Reads the byte ranges of a single file on several threads, either counting the variants in each one
+		 * or parsing them into the graph stores.  When parsing, each range knows from the counts where its
+		 * variants go, and records which slot each of its records went into so they can be stitched in order.
+		 */
+		class RangeReader
+		{
+			FilePlan plan;
+			int pass;
+			
+			// The graph code and store index of each record in each range, and how many records were stored
+			int[][] recordGraph, recordIndex;
+			int[] filled;
+			
+			// The error hit while reading each range, if any
+			Throwable[] errors;
+			
+			// Indices of ranges left to read
+			ConcurrentLinkedQueue<Integer> ranges;
+			
+			RangeReader(FilePlan plan, int pass)
+			{
+				this.plan = plan;
+				this.pass = pass;
+				int count = plan.bounds.length - 1;
+				errors = new Throwable[count];
+				ranges = new ConcurrentLinkedQueue<Integer>();
+				for(int i = 0; i<count; i++)
+				{
+					ranges.add(i);
+				}
+				if(pass == FILL)
+				{
+					recordGraph = new int[count][];
+					recordIndex = new int[count][];
+					filled = new int[count];
+				}
+			}
+			
+			/*
+			 * Read all of the ranges, with the calling thread acting as one of the workers
+			 */
+			void run(int numThreads) throws Exception
+			{
+				RangeThread[] threads = new RangeThread[numThreads];
+				for(int i = 0; i<numThreads; i++)
+				{
+					threads[i] = new RangeThread();
+					if(i == numThreads - 1)
+					{
+						threads[i].run();
 					}
 					else
 					{
-						index++;
+						threads[i].start();
 					}
 				}
-				System.err.println("Warning: Duplicate variant ID " + oldId + " in " + filename + "; Replacing with " + entry.getId());
+				for(int i = 0; i<numThreads-1; i++)
+				{
+					threads[i].join();
+				}
+				if(pass == COUNT)
+				{
+					for(Throwable e : errors)
+					{
+						if(e != null)
+						{
+							rethrow(e);
+						}
+					}
+				}
+			}
+			
+			/*
+			 * Parses the variants in a single byte range into the stores
+			 */
+			void fillRange(int range) throws Exception
+			{
+				GraphCounts counts = plan.rangeCounts[range];
+				recordGraph[range] = new int[counts.total];
+				recordIndex[range] = new int[counts.total];
+				
+				// This range's variants in each graph come after those of every earlier range
+				int[] cursor = offsets[plan.sample].clone();
+				for(int i = 0; i<range; i++)
+				{
+					GraphCounts earlier = plan.rangeCounts[i];
+					for(int g = 0; g<cursor.length; g++)
+					{
+						cursor[g] += earlier.get(g);
+					}
+				}
+				
+				VcfRecordReader input = new VcfRecordReader(new LineReader(plan.filename, plan.bounds[range], plan.bounds[range+1]));
+				try
+				{
+					while(input.advance())
+					{
+						if(input.isHeader())
+						{
+							continue;
+						}
+						VcfEntry entry = input.siteEntry();
+						int graphCode = graphIds.getCode(entry.getGraphID());
+						int index = cursor[graphCode]++;
+						setVariant(stores[graphCode], index, entry, plan.sample, 0);
+						recordGraph[range][filled[range]] = graphCode;
+						recordIndex[range][filled[range]] = index;
+						filled[range]++;
+					}
+				}
+				finally
+				{
+					input.close();
+				}
 			}
-			ids.add(entry.getId());
-			allVariants.add(fromVcfEntry(entry, sample));
 			
+			/*
+			 * A single thread reading one range at a time
+			 */
+			class RangeThread extends Thread
+			{
+				public void run()
+				{
+					while(true)
+					{
+						Integer range = ranges.poll();
+						if(range == null)
+						{
+							break;
+						}
+						try
+						{
+							if(pass == COUNT)
+							{
+								plan.rangeCounts[range] = countVariants(new VcfRecordReader(new LineReader(plan.filename, plan.bounds[range], plan.bounds[range+1])));
+							}
+							else
+							{
+								fillRange(range);
+							}
+						}
+						catch(Throwable e)
+						{
+							errors[range] = e;
+						}
+					}
+				}
+			}
+		}
+		
+		/*
+		 * A single thread reading one file at a time
+		 */
+		class LoaderThread extends Thread
+		{
+			int pass;
+			
+			LoaderThread(int pass)
+			{
+				this.pass = pass;
+			}
+			
+			public void run()
+			{
+				while(error == null)
+				{
+					Integer sample = todo.poll();
+					if(sample == null)
+					{
+						break;
+					}
+					try
+					{
+						if(pass == COUNT)
+						{
+							countFile(sample);
+						}
+						else
+						{
+							fillFile(sample);
+						}
+					}
+					catch(Throwable e)
+					{
+						fail(e);
+					}
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Throws an error caught on another thread from the current one, as whichever kind of error it is
+	 */
+	static void rethrow(Throwable e) throws Exception
+	{
+		if(e instanceof Error)
+		{
+			throw (Error)e;
+		}
+		throw (Exception)e;
+	}
+	
+	/*
+	 * Counts the variants in each graph among the records of a reader, which is closed afterwards
+	 * For text files, the graph is worked out from the bytes of the line when it can be, and only the other records are
+	 * parsed, and then only as far as getting the graph ID.  If a record can't be parsed, counting stops there, and the
+	 * error is reported when the same record is reached while parsing.
+	 */
+	static GraphCounts countVariants(VcfRecordReader input) throws Exception
+	{
+		GraphCounts counts = new GraphCounts();
+		GraphKeys keys = new GraphKeys();
+		try
+		{
+			while(input.advance())
+			{
+				if(input.isHeader())
+				{
+					continue;
+				}
+				int graphCode = input.bcf == null ? keys.graphCode(input.line) : -1;
+				if(graphCode == -1)
+				{
+					try
+					{
+						graphCode = graphIds.getCode(input.siteEntry().getGraphID());
+					}
+					catch(Exception e)
+					{
+						break;
+					}
+				}
+				counts.add(graphCode);
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+		return counts;
+	}
+	
+	/*
+	 * Works out which graph a VCF record belongs in from the bytes of its line, without building an entry or any strings
+	 * Outside of translocations, the graph ID only depends on CHROM and the SVTYPE and STRANDS INFO fields, so those are
+	 * found in place and looked up in a hash table keyed by their bytes.  A graph ID is only built the first time its
+	 * combination of them is seen.  Records whose graph depends on more than that, such as ones without an SVTYPE,
+	 * translocations, and breakends, are left for the caller to parse, as are any which are not plain ASCII.
+	 */
+	static class GraphKeys
+	{
+		// The bytes of each combination of fields seen so far, in an open addressing table, and the graph code of each
+		byte[][] keys = new byte[64][];
+		int[] codes = new int[64];
+		int size;
+		
+		// The key of the current record
+		byte[] key = new byte[64];
+		int keyLength;
+		
+		/*
+		 * Gets the graph code of the record on a line, or -1 if the line has to be parsed to find it
+		 */
+		int graphCode(CharSequence line) throws Exception
+		{
+			// Find CHROM, ALT and INFO, which are the first, fifth and eighth columns
+			int length = line.length();
+			int column = 0, chromEnd = -1, altStart = -1, altEnd = -1, infoStart = -1, infoEnd = length;
+			for(int i = 0; i<length; i++)
+			{
+				if(line.charAt(i) != '\t')
+				{
+					continue;
+				}
+				column++;
+				if(column == 1)
+				{
+					chromEnd = i;
+				}
+				else if(column == 4)
+				{
+					altStart = i + 1;
+				}
+				else if(column == 5)
+				{
+					altEnd = i;
+				}
+				else if(column == 7)
+				{
+					infoStart = i + 1;
+				}
+				else if(column == 8)
+				{
+					infoEnd = i;
+					break;
+				}
+			}
+			if(infoStart == -1)
+			{
+				return -1;
+			}
+			for(int i = altStart; i<altEnd; i++)
+			{
+				if(line.charAt(i) == '[' || line.charAt(i) == ']')
+				{
+					return -1;
+				}
+			}
+			
+			// Find the values of the first SVTYPE and STRANDS fields, the same way VcfEntry.getInfo() does
+			int typeStart = -1, typeEnd = -1, strandStart = -1, strandEnd = -1;
+			int tokenStart = infoStart;
+			while(tokenStart < infoEnd)
+			{
+				int tokenEnd = tokenStart, equalIndex = -1;
+				while(tokenEnd < infoEnd && line.charAt(tokenEnd) != ';')
+				{
+					if(equalIndex == -1 && line.charAt(tokenEnd) == '=')
+					{
+						equalIndex = tokenEnd;
+					}
+					tokenEnd++;
+				}
+				if(equalIndex != -1)
+				{
+					if(typeStart == -1 && matches(line, tokenStart, equalIndex, "SVTYPE"))
+					{
+						typeStart = equalIndex + 1;
+						typeEnd = tokenEnd;
+					}
+					else if(strandStart == -1 && matches(line, tokenStart, equalIndex, "STRANDS"))
+					{
+						strandStart = equalIndex + 1;
+						strandEnd = tokenEnd;
+					}
+				}
+				tokenStart = tokenEnd + 1;
+			}
+			if(typeStart == -1 || typeStart == typeEnd || matches(line, typeStart, typeEnd, "TRA") || matches(line, typeStart, typeEnd, "BND"))
+			{
+				return -1;
+			}
+			if(Settings.NORMALIZE_TYPE && !matches(line, typeStart, typeEnd, "INS") && !matches(line, typeStart, typeEnd, "DEL")
+					&& !matches(line, typeStart, typeEnd, "DUP") && !matches(line, typeStart, typeEnd, "INV"))
+			{
+				return -1;
+			}
+			
+			// The key is CHROM, then the type and the strands if the graphs are split by them, each followed by a tab
+			keyLength = 0;
+			boolean ascii = append(line, 0, chromEnd);
+			if(Settings.USE_TYPE)
+			{
+				ascii &= append(line, typeStart, typeEnd);
+			}
+			if(Settings.USE_STRAND)
+			{
+				ascii &= strandStart == -1 ? append(line, 0, 0) : append(line, strandStart, strandEnd);
+			}
+			if(!ascii)
+			{
+				return -1;
+			}
+			
+			int mask = keys.length - 1;
+			int slot = hash(key, keyLength) & mask;
+			while(keys[slot] != null)
+			{
+				if(isKey(keys[slot]))
+				{
+					return codes[slot];
+				}
+				slot = (slot + 1) & mask;
+			}
+			
+			// The first time this key is seen, so build the graph ID the same way VcfEntry.getGraphID() does
+			String chrom = line.subSequence(0, chromEnd).toString();
+			if(Settings.CHR_NAME_MAP != null)
+			{
+				chrom = Settings.CHR_NAME_MAP.normalize(chrom);
+			}
+			String id = chrom;
+			if(Settings.USE_TYPE)
+			{
+				id += "_" + line.subSequence(typeStart, typeEnd);
+			}
+			if(Settings.USE_STRAND)
+			{
+				id += "_" + (strandStart == -1 ? "" : line.subSequence(strandStart, strandEnd));
+			}
+			int code = graphIds.getCode(id);
+			add(Arrays.copyOf(key, keyLength), code);
+			return code;
+		}
+		
+		/*
+		 * Whether the characters of a line in [start, end) are exactly a given string
+		 */
+		static boolean matches(CharSequence line, int start, int end, String s)
+		{
+			if(end - start != s.length())
+			{
+				return false;
+			}
+			for(int i = 0; i<s.length(); i++)
+			{
+				if(line.charAt(start + i) != s.charAt(i))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/*
+		 * Adds the characters of a line in [start, end) and then a tab to the key, or returns false if any of them are
+		 * not ASCII
+		 */
+		boolean append(CharSequence line, int start, int end)
+		{
+			if(keyLength + end - start + 1 > key.length)
+			{
+				key = Arrays.copyOf(key, 2 * (keyLength + end - start + 1));
+			}
+			for(int i = start; i<end; i++)
+			{
+				char c = line.charAt(i);
+				if(c >= 128)
+				{
+					return false;
+				}
+				key[keyLength++] = (byte)c;
+			}
+			key[keyLength++] = '\t';
+			return true;
+		}
+		
+		/*
+		 * Whether a key in the table is the key of the current record
+		 */
+		boolean isKey(byte[] k)
+		{
+			if(k.length != keyLength)
+			{
+				return false;
+			}
+			for(int i = 0; i<keyLength; i++)
+			{
+				if(k[i] != key[i])
+				{
+					return false;
+				}
+			}
+			return true;
 		}
 		
-		System.out.println(filename + " has " + allVariants.size() + " variants");
-		input.close();
+		static int hash(byte[] k, int length)
+		{
+			int h = 0;
+			for(int i = 0; i<length; i++)
+			{
+				h = 31 * h + k[i];
+			}
+			return h ^ (h >>> 16);
+		}
 		
-		return divideIntoGraphs(allVariants);
+		/*
+		 * Adds a key to the table, growing it so that it stays at most half full
+		 */
+		void add(byte[] k, int code)
+		{
+			if(2 * (size + 1) > keys.length)
+			{
+				byte[][] oldKeys = keys;
+				int[] oldCodes = codes;
+				keys = new byte[2 * oldKeys.length][];
+				codes = new int[2 * oldKeys.length];
+				size = 0;
+				for(int i = 0; i<oldKeys.length; i++)
+				{
+					if(oldKeys[i] != null)
+					{
+						add(oldKeys[i], oldCodes[i]);
+					}
+				}
+			}
+			int mask = keys.length - 1;
+			int slot = hash(k, k.length) & mask;
+			while(keys[slot] != null)
+			{
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = k;
+			codes[slot] = code;
+			size++;
+		}
 	}
 	
 	/*
-	 * Take a list of variants and bin them by graphID
+	 * Gets a replacement for a variant ID which has already been used in the same file
 	 */
-	private static TreeMap<String, ArrayList<Variant>> divideIntoGraphs(ArrayList<Variant> data)
+	static String deduplicateId(String oldId, HashSet<String> ids)
 	{
-		TreeMap<String, ArrayList<Variant>> groups = new TreeMap<String, ArrayList<Variant>>();
-		for(Variant v : data)
+		int index = 1;
+		while(true)
 		{
-			String graphID = v.graphID;
-			if(!groups.containsKey(graphID))
+			String newId = oldId + "_duplicate" + index;
+			if(!ids.contains(newId))
 			{
-				groups.put(graphID, new ArrayList<Variant>());
+				return newId;
 			}
-			groups.get(graphID).add(v);
+			index++;
 		}
-		return groups;
 	}
 	
 	/*
@@ -157,21 +1050,77 @@ public class VariantInput {
 		
 		entry.setId(sample + "_" + entry.getId());
 		
-		String id = entry.getGraphID();
+		String id = graphIds.intern(entry.getGraphID());
+		
+		String seq = insertionSequence(entry);
+		int maxDist = maxDistance(entry, sample);
+		double minSeqId = minSequenceIdentity(entry);
+		
+		Variant res = new Variant(sample, entry.getId(), start, end, id, seq, maxDist, minSeqId);
+		res.hash = Variant.hash(entry.getInfoString());
+		if(hasOverlapInterval(entry))
+		{
+			res.interval = new double[] {entry.getPos(), entry.getEnd()};
+		}
+		return res;
+	}
+	
+	/*
+	 * From a line of a VCF file, extract the information needed for merging
+	 * and store it in a given slot of the store for its graph
+	 */
+	static void setVariant(VariantStore store, int i, VcfEntry entry, int sample, int ordinal) throws Exception
+	{
+		store.start[i] = entry.getFirstCoord();
+		store.end[i] = entry.getSecondCoord();
+		
+		entry.setId(sample + "_" + entry.getId());
+		store.id[i] = entry.getId();
+		store.sample[i] = sample;
+		store.ordinal[i] = ordinal;
+		
+		store.maxDist[i] = maxDistance(entry, sample);
+		store.minSeqId[i] = minSequenceIdentity(entry);
 		
-		String seq = null;
+		// The sequence is only needed for checking sequence identity, so it is dropped when that is turned off
+		String seq = store.minSeqId[i] > 0 ? insertionSequence(entry) : null;
+		store.setSeq(i, seq);
+		store.hash[i] = Variant.hash(entry.getInfoString());
+		if(hasOverlapInterval(entry))
+		{
+			store.intervalStart[i] = entry.getPos();
+			store.intervalEnd[i] = entry.getEnd();
+		}
+		else
+		{
+			store.intervalStart[i] = Double.NaN;
+			store.intervalEnd[i] = Double.NaN;
+		}
+	}
+	
+	/*
+	 * The insertion sequence of a variant, or null if it is not an insertion or has no sequence
+	 */
+	static String insertionSequence(VcfEntry entry) throws Exception
+	{
 		if(entry.getType().equals("INS"))
 		{
 			String entrySeq = entry.getSeq();
 			if(entrySeq.length() > 0)
 			{
-				seq = entrySeq;
+				return entrySeq;
 			}
 		}
-		
+		return null;
+	}
+	
+	/*
+	 * The maximum distance another variant can be away from this one to merge with it
+	 */
+	static int maxDistance(VcfEntry entry, int sample) throws Exception
+	{
 		// Default distance threshold model is constant, so set to that first
 		int maxDist = Settings.MAX_DIST;
-		double minSeqId = Settings.MIN_SEQUENCE_SIMILARITY;
 		
 		// Then, check if there is a per-variant distance threshold
 		String maxDistInfo = entry.getInfo("JASMINE_DIST");
@@ -199,6 +1148,15 @@ public class VariantInput {
 				maxDist = Math.max(maxDist, Settings.MIN_DIST);
 			}
 		}
+		return maxDist;
+	}
+	
+	/*
+	 * The minimum sequence similarity another insertion needs to merge with this one
+	 */
+	static double minSequenceIdentity(VcfEntry entry) throws Exception
+	{
+		double minSeqId = Settings.MIN_SEQUENCE_SIMILARITY;
 		
 		// Check for per-variant sequence ID thresholds
 		String minIdInfo = entry.getInfo("JASMINE_ID");
@@ -206,13 +1164,14 @@ public class VariantInput {
 		{
 			minSeqId = Double.parseDouble(minIdInfo);
 		}
-		
-		Variant res = new Variant(sample, entry.getId(), start, end, id, seq, maxDist, minSeqId);
-		res.hash = Variant.hash(entry.tabTokens[7]);
-		if(Settings.OVERLAP_REQUIRED > 0 && (entry.getType().equals("DEL")) || entry.getType().equals("INV") || entry.getType().equals("DUP"))
-		{
-			res.interval = new double[] {entry.getPos(), entry.getEnd()};
-		}
-		return res;
+		return minSeqId;
+	}
+	
+	/*
+	 * Whether the variant's interval is checked for overlap with the variants it merges with
+	 */
+	static boolean hasOverlapInterval(VcfEntry entry) throws Exception
+	{
+		return Settings.OVERLAP_REQUIRED > 0 && (entry.getType().equals("DEL")) || entry.getType().equals("INV") || entry.getType().equals("DUP");
 	}
 }
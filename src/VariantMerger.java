@@ -4,12 +4,31 @@
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 public class VariantMerger
 {
-	// An array of all of the variants to be considered
-	Variant[] data;
+	// The most variants which are given to one task when finding seeds in parallel
+	static final int SEED_CHUNK = 16384;
+	
+	// How far apart two distances can be and still be treated as a possible tie when deciding whether a block of
+	// neighbors has to be found the way older releases found it, which is looser than the tie-breaking tolerance so
+	// that rounding never hides one
+	static final double TIE_SLACK = 1e-6;
+	
+	// The threads which seed queries run on, which is the pool the whole merge run is on so there are never more of them
+	// than the setting allows, or null to make a pool just for this merger when one is needed
+	ForkJoinPool seedPool;
+	
+	// All of the variants to be considered, referred to by their indices
+	VariantStore data;
+	
+	// When the merger was built from Variant objects, the objects themselves so groups can be returned as lists of them
+	Variant[] source;
 	
 	// The number of total variants
 	int n;
@@ -17,21 +36,33 @@ public class VariantMerger
 	// A forest in which connected components will represent merged groups
 	Forest forest;
 	
-	// A KD-tree data structure for fast k-nearest-neighbors queries
-	KDTree knn;
+	// A data structure for fast nearest neighbor queries, which is a KD-tree unless another kind is chosen
+	NeighborIndex knn;
 	
 	// Indices of variants in each group, used for more advanced distance checks like clique and centroid
 	ArrayList<Integer>[] merged;
+	
+	// How many nearest neighbors are found for every variant before merging starts, which is all most variants need
+	int seedCount;
+	
+	// The first few nearest neighbors of every variant, with the ones for variant v starting at seeds[v * seedCount],
+	// and with -1 filling in for any past the last one within its maxDist
+	int[] seeds;
+	
+	// For variants which have used up their seeds, the rest of their neighbors found so far
+	FarNeighbors[] far;
+	
+	// The KD-tree which older releases searched, built the first time a tie makes it necessary
+	LegacyKDTree legacy;
 
 	@SuppressWarnings("unchecked")
-	public VariantMerger(Variant[] data)
+	public VariantMerger(VariantStore data)
 	{
-		n = data.length;
+		n = data.n;
 		
 		forest = new Forest(data);
-		knn = new KDTree(data, false);
+		knn = buildIndex(data);
 		
-		for(int i = 0; i<n; i++) data[i].index = i;
 		this.data = data;
 		
 		if(Settings.CENTROID_MERGE || Settings.CLIQUE_MERGE)
@@ -45,6 +76,22 @@ public class VariantMerger
 		}
 	}
 	
+	/*
+	 * Builds the kind of neighbor index chosen in the settings over the variants in a store
+	 */
+	static NeighborIndex buildIndex(VariantStore data)
+	{
+		if(Settings.NEIGHBOR_SEARCH.equals("sweep"))
+		{
+			return new SweepIndex(data);
+		}
+		if(Settings.NEIGHBOR_SEARCH.equals("grid"))
+		{
+			return new GridIndex(data);
+		}
+		return new KDTree(data);
+	}
+	
 	/*
 	 * Helper function to convert an ArrayList to an array to make the constructor more flexible
 	 */
@@ -59,6 +106,16 @@ public class VariantMerger
 		return asArray;
 	}
 	
+	/*
+	 * Alternate constructor which takes an array of Variant objects
+	 */
+	public VariantMerger(Variant[] data)
+	{
+		this(new VariantStore(data));
+		for(int i = 0; i<n; i++) data[i].index = i;
+		source = data;
+	}
+	
 	/*
 	 * Alternate constructor which takes a list instead of an array
 	 */
@@ -82,30 +139,27 @@ public class VariantMerger
 		// from v considered already.  
 		int[] countEdgesProcessed = new int[n];
 		
-		// nearestNeighbors will be used as a cache to store the next few nearest neighbors
-		// The purpose of this is to prevent performing a new KNN-query every time an edge
-		// is considered, but instead a logarithmic number of times.
-		Variant[][] nearestNeighbors = new Variant[n][];
+		seedCount = Math.min(4, n);
+		seeds = new int[n * seedCount];
+		far = new FarNeighbors[n];
 		
-		// A heap of edges to be processed in non-decreasing order of distance
-		PriorityQueue<Edge> toProcess = new PriorityQueue<Edge>();
+		// Get the first 4 nearest neighbors for every variant, along with the edge to the nearest one if it is close enough
+		Edge[] firstEdges = new Edge[n];
+		findSeeds(firstEdges);
+		Arrays.fill(countEdgesProcessed, 1);
 		
-		// Get the first 4 nearest neighbors for every variant, and add their first edges to
-		// the heap
-		for(int i = 0; i<n; i++)
+		// A heap of edges to be processed in non-decreasing order of distance, which starts out with all of the first edges
+		ArrayList<Edge> initialEdges = new ArrayList<Edge>();
+		for(Edge e : firstEdges)
 		{
-			nearestNeighbors[i] = knn.kNearestNeighbor(data[i], 4);
-			int maxDistAllowed = Math.max(data[i].maxDist, nearestNeighbors[i][0].maxDist);
-			if(Settings.REQUIRE_MUTUAL_DISTANCE)
+			if(e != null)
 			{
-				maxDistAllowed = Math.min(data[i].maxDist, nearestNeighbors[i][0].maxDist);
+				initialEdges.add(e);
 			}
-			if(data[i].distance(nearestNeighbors[i][0]) < maxDistAllowed + 1e-9)
-			{
-				toProcess.add(new Edge(i, nearestNeighbors[i][0].index, data[i].distance(nearestNeighbors[i][0])));
-			}
-			countEdgesProcessed[i]++;
 		}
+		PriorityQueue<Edge> toProcess = new PriorityQueue<Edge>(initialEdges);
+		initialEdges = null;
+		firstEdges = null;
 		
 		while(!toProcess.isEmpty())
 		{
@@ -122,16 +176,16 @@ public class VariantMerger
 					{
 						for(int i = 0; i<merged[fromRoot].size() && valid; i++)
 						{
-							Variant candidateFrom = data[merged[fromRoot].get(i)];
+							int candidateFrom = merged[fromRoot].get(i);
 							for(int j = 0; j<merged[toRoot].size() && valid; j++)
 							{
-								Variant candidateTo = data[merged[toRoot].get(j)];
-								int maxDistAllowed = Math.max(candidateFrom.maxDist, candidateTo.maxDist);
+								int candidateTo = merged[toRoot].get(j);
+								int maxDistAllowed = Math.max(data.maxDist[candidateFrom], data.maxDist[candidateTo]);
 								if(Settings.REQUIRE_MUTUAL_DISTANCE)
 								{
-									maxDistAllowed = Math.min(data[i].maxDist, nearestNeighbors[i][0].maxDist);
+									maxDistAllowed = Math.min(data.maxDist[i], data.maxDist[firstOfBlock(i)]);
 								}
-								if(candidateFrom.distance(candidateTo) > maxDistAllowed + 1e-9)
+								if(data.distance(candidateFrom, candidateTo) > maxDistAllowed + 1e-9)
 								{
 									valid = false;
 								}
@@ -144,28 +198,28 @@ public class VariantMerger
 						double avgStart = 0.0, avgEnd = 0.0;
 						for(int i = 0; i<merged[fromRoot].size(); i++)
 						{
-							Variant v = data[merged[fromRoot].get(i)];
-							avgStart += v.start;
-							avgEnd += v.end;
+							int v = merged[fromRoot].get(i);
+							avgStart += data.start[v];
+							avgEnd += data.end[v];
 						}
 						for(int i = 0; i<merged[toRoot].size(); i++)
 						{
-							Variant v = data[merged[toRoot].get(i)];
-							avgStart += v.start;
-							avgEnd += v.end;
+							int v = merged[toRoot].get(i);
+							avgStart += data.start[v];
+							avgEnd += data.end[v];
 						}
 						avgStart /= merged[fromRoot].size() + merged[toRoot].size();
 						avgEnd /= merged[fromRoot].size() + merged[toRoot].size();
 						
 						for(int i = 0; i<merged[fromRoot].size() && valid; i++)
 						{
-							Variant v = data[merged[fromRoot].get(i)];
-							valid &= v.distFromPoint(avgStart, avgEnd) <= v.maxDist + 1e-9;
+							int v = merged[fromRoot].get(i);
+							valid &= data.distFromPoint(v, avgStart, avgEnd) <= data.maxDist[v] + 1e-9;
 						}
 						for(int i = 0; i<merged[toRoot].size() && valid; i++)
 						{
-							Variant v = data[merged[toRoot].get(i)];
-							valid &= v.distFromPoint(avgStart, avgEnd) <= v.maxDist + 1e-9;
+							int v = merged[toRoot].get(i);
+							valid &= data.distFromPoint(v, avgStart, avgEnd) <= data.maxDist[v] + 1e-9;
 						}
 					}
 					if(valid)
@@ -198,55 +252,51 @@ public class VariantMerger
 			
 			while(true)
 			{
+				int candidateTo = nearestNeighbor(e.from, countEdgesProcessed[e.from]);
 				
-				// If we already used the stored neighbors, query again for twice as many
-				if(countEdgesProcessed[e.from] >= nearestNeighbors[e.from].length)
-				{
-					nearestNeighbors[e.from] = knn.kNearestNeighbor(data[e.from], 2 * nearestNeighbors[e.from].length);
-				}
-				
-				// If we tried to get more and didn't find anymore, then we are done with this variant
-				if(countEdgesProcessed[e.from] >= nearestNeighbors[e.from].length)
+				// If there are no more neighbors, then we are done with this variant
+				if(candidateTo == -1)
 				{
+					finished(e.from);
 					break;
 				}
-				Variant candidateTo = nearestNeighbors[e.from][countEdgesProcessed[e.from]];
 				
 				// This edge was invalid because of distance from the query, so stop looking at any edges 
 				// since they'll only get farther away
-				int maxDistAllowed = Math.max(data[e.from].maxDist, candidateTo.maxDist);
+				int maxDistAllowed = Math.max(data.maxDist[e.from], data.maxDist[candidateTo]);
 				if(Settings.REQUIRE_MUTUAL_DISTANCE)
 				{
-					maxDistAllowed = Math.min(data[e.from].maxDist, candidateTo.maxDist);
+					maxDistAllowed = Math.min(data.maxDist[e.from], data.maxDist[candidateTo]);
 				}
 				
-				if(data[e.from].distance(candidateTo) > data[e.from].maxDist + 1e-9)
+				if(data.distance(e.from, candidateTo) > data.maxDist[e.from] + 1e-9)
 				{
+					finished(e.from);
 					break;
 				}
 				
-				else if(data[e.from].distance(candidateTo) > maxDistAllowed + 1e-9)
+				else if(data.distance(e.from, candidateTo) > maxDistAllowed + 1e-9)
 				{
 					countEdgesProcessed[e.from]++;
 					continue;
 				}
 				
 				// If edge was invalid because of coming from the same sample, ignore it and try the next one
-				else if(!Settings.ALLOW_INTRASAMPLE && data[e.from].sample == candidateTo.sample)
+				else if(!Settings.ALLOW_INTRASAMPLE && data.sample[e.from] == data.sample[candidateTo])
 				{
-					toProcess.add(new Edge(e.from, candidateTo.index, data[e.from].distance(candidateTo)));
+					toProcess.add(new Edge(e.from, candidateTo, data.distance(e.from, candidateTo)));
 					countEdgesProcessed[e.from]++;
 					break;
 				}
 				
 				// If sequences weren't similar enough for two insertions, ignore and try again
-				else if(!data[e.from].passesStringSimilarity(candidateTo))
+				else if(!data.passesStringSimilarity(e.from, candidateTo))
 				{
 					countEdgesProcessed[e.from]++;
 					continue;
 				}
 				
-				else if(!data[e.from].passesOverlap(candidateTo))
+				else if(!data.passesOverlap(e.from, candidateTo))
 				{
 					countEdgesProcessed[e.from]++;
 					continue;
@@ -256,7 +306,7 @@ public class VariantMerger
 				// different sample
 				else
 				{
-					toProcess.add(new Edge(e.from, candidateTo.index, data[e.from].distance(candidateTo)));
+					toProcess.add(new Edge(e.from, candidateTo, data.distance(e.from, candidateTo)));
 					countEdgesProcessed[e.from]++;
 					break;
 				}
@@ -264,8 +314,294 @@ public class VariantMerger
 		}
 	}
 	
+	/*
+	 * Finds the seeds of every variant, and the edge from each one to its nearest neighbor if they can be merged
+	 * The queries are independent, so for large graphs the variants are split into ranges which run on the pool of the
+	 * merge run, which the graphs themselves are merged on as well.  This keeps cores busy when there are only a few
+	 * graphs, without ever running more threads than the setting allows.  A merger used on its own makes a pool with the
+	 * number of threads from the settings, and shuts it down once its seeds are found.
+	 */
+	void findSeeds(Edge[] firstEdges)
+	{
+		if(n <= SEED_CHUNK || Settings.THREADS <= 1)
+		{
+			findSeeds(0, n, firstEdges);
+		}
+		else if(ForkJoinTask.getPool() == seedPool && seedPool != null)
+		{
+			// Already running as a task on the pool, so the ranges are forked from this task
+			new SeedTask(0, n, firstEdges).invoke();
+		}
+		else if(seedPool != null)
+		{
+			seedPool.invoke(new SeedTask(0, n, firstEdges));
+		}
+		else
+		{
+			ForkJoinPool pool = new ForkJoinPool(Settings.THREADS);
+			try
+			{
+				pool.invoke(new SeedTask(0, n, firstEdges));
+			}
+			finally
+			{
+				pool.shutdown();
+			}
+		}
+	}
+	
+	/*
+	 * Finds the seeds and first edges of the variants in [lo, hi)
+	 */
+	void findSeeds(int lo, int hi, Edge[] firstEdges)
+	{
+		int[] found = new int[seedCount + 1];
+		for(int i = lo; i<hi; i++)
+		{
+			// Neighbors beyond the variant's own maxDist are never merged with from its side, so they are left out
+			// The variant itself is always in range, so there is at least one.  One more than needed is found to tell
+			// whether there is a tie at the end of the seeds.
+			int count = knn.nearestWithin(i, seedCount + 1, radius(i), found);
+			if(!Settings.EXACT_TIES && endsInTie(i, found, count, seedCount))
+			{
+				System.arraycopy(legacyTree().kNearestNeighbor(i, seedCount), 0, seeds, i * seedCount, seedCount);
+			}
+			else
+			{
+				count = Math.min(count, seedCount);
+				System.arraycopy(found, 0, seeds, i * seedCount, count);
+				Arrays.fill(seeds, i * seedCount + count, (i + 1) * seedCount, -1);
+			}
+			int nearest = seeds[i * seedCount];
+			int maxDistAllowed = Math.max(data.maxDist[i], data.maxDist[nearest]);
+			if(Settings.REQUIRE_MUTUAL_DISTANCE)
+			{
+				maxDistAllowed = Math.min(data.maxDist[i], data.maxDist[nearest]);
+			}
+			if(data.distance(i, nearest) < maxDistAllowed + 1e-9)
+			{
+				firstEdges[i] = new Edge(i, nearest, data.distance(i, nearest));
+			}
+		}
+	}
+	
+	/*
+	 * How far from a variant its neighbors are searched for
+	 */
+	double radius(int v)
+	{
+		return Math.max(data.maxDist[v], 0);
+	}
+	
+	/*
+	 * Gets the KD-tree which older releases searched, building it if this is the first time it is needed
+	 */
+	synchronized LegacyKDTree legacyTree()
+	{
+		if(legacy == null)
+		{
+			legacy = new LegacyKDTree(data);
+		}
+		return legacy;
+	}
+	
+	/*
+	 * Whether the k-th nearest neighbor of a variant might be tied with the one after it, given the neighbors of it
+	 * within its search radius from nearest to farthest, of which there are count (including any beyond the k-th)
+	 * Older releases found neighbors k at a time and, at such a tie, could report a different one of the tied variants
+	 * than the tie-breaking rule picks, so only then do their neighbors have to be found the same way they did.  When
+	 * the k-th neighbor is not known to be in range, a tie with one beyond the radius cannot be ruled out, so it is
+	 * counted as one if the last neighbor in range is near the edge of it.
+	 */
+	boolean endsInTie(int v, int[] found, int count, int k)
+	{
+		if(k >= n)
+		{
+			return false;
+		}
+		if(count > k)
+		{
+			return data.distance(v, found[k]) - data.distance(v, found[k - 1]) <= TIE_SLACK;
+		}
+		return data.distance(v, found[count - 1]) >= radius(v) - TIE_SLACK;
+	}
+	
+	/*
+	 * Finding the seeds of a range of variants, which is split in half until it is small enough to do all at once
+	 */
+	@SuppressWarnings("serial")
+	class SeedTask extends RecursiveAction
+	{
+		int lo, hi;
+		Edge[] firstEdges;
+		
+		SeedTask(int lo, int hi, Edge[] firstEdges)
+		{
+			this.lo = lo;
+			this.hi = hi;
+			this.firstEdges = firstEdges;
+		}
+		
+		protected void compute()
+		{
+			if(hi - lo <= SEED_CHUNK)
+			{
+				findSeeds(lo, hi, firstEdges);
+			}
+			else
+			{
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new SeedTask(lo, mid, firstEdges), new SeedTask(mid, hi, firstEdges));
+			}
+		}
+	}
+	
+	/*
+	 * Gets the index-th neighbor of a variant to consider merging with, or -1 if there are no more within its maxDist
+	 * Neighbors come in blocks of the seed count, then twice that, and so on, in exactly the order older releases
+	 * handed them out, since which neighbors are considered first can change which groups get merged.  Within a block
+	 * this is nearest to farthest with ties broken by hash and ID, except at a tie at the end of the block, where the
+	 * block is found by the older releases' search instead.
+	 * With exact ties, every neighbor comes in tie-breaking order, so past the seeds this only counts the neighbors
+	 * which the variant's cursor hands out, and those must be asked for in order, each one either again or one past
+	 * the last.
+	 */
+	int nearestNeighbor(int v, int index)
+	{
+		if(index < seedCount)
+		{
+			return seeds[v * seedCount + index];
+		}
+		FarNeighbors f = far[v];
+		if(f == null)
+		{
+			// If there were fewer seeds than asked for, then there are no more neighbors in range
+			if(seeds[v * seedCount + seedCount - 1] == -1)
+			{
+				return -1;
+			}
+			if(Settings.EXACT_TIES)
+			{
+				// The cursor starts from the nearest neighbor, so skip over the ones which were already handed out as
+				// seeds, and with mutual distance required, it leaves out neighbors whose own maxDist does not reach
+				// back, since merging would pass over those without using them.
+				f = far[v] = new FarNeighbors(knn.neighborsWithin(v, radius(v), Settings.REQUIRE_MUTUAL_DISTANCE), seedCount);
+				f.cursor.skipThrough(seeds[v * seedCount + seedCount - 1]);
+			}
+			else
+			{
+				f = far[v] = new FarNeighbors(knn.neighborsWithin(v, radius(v), false), seedCount);
+			}
+		}
+		if(Settings.EXACT_TIES)
+		{
+			while(f.cursor.count <= index - seedCount)
+			{
+				if(f.cursor.next() == -1)
+				{
+					return -1;
+				}
+			}
+			return f.cursor.last;
+		}
+		while(f.blockSize <= index && f.blockSize < n)
+		{
+			f.blockSize = Math.min(f.blockSize * 2, n);
+			
+			// Find one neighbor past the end of the block to see whether it is tied with the last one
+			while(f.count <= f.blockSize && f.cursor != null)
+			{
+				int next = f.cursor.next();
+				if(next == -1)
+				{
+					f.cursor = null;
+					break;
+				}
+				if(f.count == f.found.length)
+				{
+					f.found = Arrays.copyOf(f.found, f.found.length * 2);
+				}
+				f.found[f.count++] = next;
+			}
+			f.block = endsInTie(v, f.found, f.count, f.blockSize) ? legacyTree().kNearestNeighbor(v, f.blockSize) : null;
+		}
+		if(index >= f.blockSize)
+		{
+			return -1;
+		}
+		if(f.block != null)
+		{
+			return f.block[index];
+		}
+		return index < f.count ? f.found[index] : -1;
+	}
+	
+	/*
+	 * Stops searching for neighbors of a variant once none of the rest will be considered
+	 * The block it was on is kept, since clique merging may still look at the first neighbor in it.
+	 */
+	void finished(int v)
+	{
+		if(far[v] != null)
+		{
+			far[v].cursor = null;
+		}
+	}
+	
+	/*
+	 * The first neighbor in the block of neighbors a variant is currently on, which older releases used as its nearest
+	 * neighbor when checking mutual distances for clique merging, or with exact ties, its nearest neighbor
+	 */
+	int firstOfBlock(int v)
+	{
+		FarNeighbors f = far[v];
+		if(Settings.EXACT_TIES || f == null || (f.block == null && f.count == 0))
+		{
+			return seeds[v * seedCount];
+		}
+		return f.block != null ? f.block[0] : f.found[0];
+	}
+	
+	/*
+	 * The neighbors of a variant beyond its seeds, found in blocks
+	 */
+	static class FarNeighbors
+	{
+		// Hands out the neighbors within the variant's maxDist from nearest to farthest, or null once it runs out
+		NeighborCursor cursor;
+		
+		// The neighbors the cursor has handed out so far, starting from the nearest, and how many there are
+		int[] found;
+		int count;
+		
+		// How many neighbors the current block has, and the block itself if it had to be found by the older search
+		int blockSize;
+		int[] block;
+		
+		FarNeighbors(NeighborCursor cursor, int blockSize)
+		{
+			this.cursor = cursor;
+			this.blockSize = blockSize;
+			found = new int[16];
+		}
+	}
+	
+	/*
+	 * Get the group number of every variant, which is the index of the root of its component
+	 */
+	int[] getGroupOf()
+	{
+		int[] res = new int[n];
+		for(int i = 0; i<n; i++)
+		{
+			res[i] = forest.find(i);
+		}
+		return res;
+	}
+	
 	/*
 	 * Get an array of all of the groups of variants
+	 * This is only available for mergers built from Variant objects
 	 */
 	@SuppressWarnings("unchecked")
 	ArrayList<Variant>[] getGroups()
@@ -275,33 +611,31 @@ public class VariantMerger
 		{
 			res[i] = new ArrayList<Variant>();
 		}
+		int[] groupOf = getGroupOf();
 		for(int i = 0; i<n; i++)
 		{
-			if(forest.map[i] < 0)
-			{
-				res[i].add(data[i]);
-			}
-			else
-			{
-				res[forest.find(i)].add(data[i]);
-			}
+			res[groupOf[i]].add(source[i]);
 		}
 		return res;
 	}
 	
 	/*
 	 * An edge between two variants indicating that they can be merged
-	 * Sorting is non-decreasing order of edge weights (ties broken with variant IDs)
+	 * Sorting is non-decreasing order of edge weights, with ties broken by the hashes of the endpoints and then by their IDs
+	 * The tie-breaking keys pack the values for both endpoints into one long each, so they are built once per edge.
 	 */
 	class Edge implements Comparable<Edge>
 	{
 		int from, to;
 		double dist;
+		long hashKey, idKey;
 		Edge(int from, int to, double dist)
 		{
 			this.from = from;
 			this.to = to;
 			this.dist = dist;
+			hashKey = ((long)data.hash[from] << 32) | data.hash[to];
+			idKey = ((long)data.idRank[from] << 32) | data.idRank[to];
 		}
 		@Override
 		public int compareTo(Edge o) {
@@ -309,10 +643,9 @@ public class VariantMerger
 			{
 				return Double.compare(dist, o.dist);
 			}
-			if(data[from].hash != data[o.from].hash) return data[from].hash - (data[o.from].hash);
-			if(data[to].hash != data[o.to].hash) return data[to].hash - (data[o.to].hash);
-			if(from != o.from) return data[from].id.compareTo(data[o.from].id);
-			return data[to].id.compareTo(data[o.to].id);
+			if(hashKey != o.hashKey) return hashKey < o.hashKey ? -1 : 1;
+			if(idKey != o.idKey) return idKey < o.idKey ? -1 : 1;
+			return 0;
 		}
 	}
 }
@@ -4,31 +4,68 @@
  * so some bookkeeping is required to scan through the files one at a time and update all merged variants at once
  */
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Scanner;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.TreeMap;
 
 public class VariantOutput {
 	
-	ConcurrentSkipListMap<String, VariantGraph> groups;
+	// The merging results for each graph, indexed by graph code
+	VariantGraph[] groups;
 	
-	VariantOutput()
+	// For each sample, the graph code and group number of each of its variants, indexed by ordinal
+	// Variants which were never added have a graph code of -1
+	int[][] graphOf, groupOf;
+	
+	/*
+	 * Initializes the output for the given variants, sizing the lookup tables to fit all of them
+	 */
+	VariantOutput(TreeMap<String, VariantStore> allVariants)
 	{
-		groups = new ConcurrentSkipListMap<String, VariantGraph>();
+		groups = new VariantGraph[VariantInput.graphIds.size()];
+		
+		// Get the number of records in each sample that variants were read from
+		int sampleCount = 0;
+		for(VariantStore store : allVariants.values())
+		{
+			for(int i = 0; i<store.n; i++)
+			{
+				sampleCount = Math.max(sampleCount, store.sample[i] + 1);
+			}
+		}
+		int[] recordCounts = new int[sampleCount];
+		for(VariantStore store : allVariants.values())
+		{
+			for(int i = 0; i<store.n; i++)
+			{
+				recordCounts[store.sample[i]] = Math.max(recordCounts[store.sample[i]], store.ordinal[i] + 1);
+			}
+		}
+		
+		graphOf = new int[sampleCount][];
+		groupOf = new int[sampleCount][];
+		for(int i = 0; i<sampleCount; i++)
+		{
+			graphOf[i] = new int[recordCounts[i]];
+			groupOf[i] = new int[recordCounts[i]];
+			Arrays.fill(graphOf[i], -1);
+		}
 	}
 	
 	/*
-	 * Adds a graph to the output so that it can be accessed by graph ID easily
+	 * Adds a graph to the output, recording which group each of its variants ended up in
+	 * Different threads can add different graphs at the same time since they cover disjoint variants
 	 */
-	void addGraph(String graphID, ArrayList<Variant>[] graph, int sampleCount)
+	void addGraph(VariantStore store, int[] groups, int sampleCount)
 	{
-		groups.put(graphID,  new VariantGraph(graph, sampleCount));
+		this.groups[store.graphCode] = new VariantGraph(store, groups, sampleCount);
+		for(int i = 0; i<store.n; i++)
+		{
+			graphOf[store.sample[i]][store.ordinal[i]] = store.graphCode;
+			groupOf[store.sample[i]][store.ordinal[i]] = groups[i];
+		}
 	}
 	
 	/*
@@ -36,7 +73,27 @@ public class VariantOutput {
 	 */
 	public void writeMergedVariants(String fileList, String outFile) throws Exception
 	{
-		PrintWriter out = new PrintWriter(new File(outFile));
+		// The files are read one at a time, so the rest of the threads decompress BGZF blocks ahead of the reader
+		BgzfInputStream.DecompressionPool pool = BgzfInputStream.DecompressionPool.withThreads(Settings.THREADS - 1);
+		try
+		{
+			writeMergedVariants(fileList, outFile, pool);
+		}
+		finally
+		{
+			if(pool != null)
+			{
+				pool.shutdown();
+			}
+		}
+	}
+	
+	/*
+	 * Outputs the merged VCF file, decompressing the input files on the given pool if it is not null
+	 */
+	void writeMergedVariants(String fileList, String outFile, BgzfInputStream.DecompressionPool pool) throws Exception
+	{
+		PrintWriter out = PipelineManager.openOutput(outFile);
 		int sample = 0;
 		
 		VcfHeader header = new VcfHeader();
@@ -47,25 +104,20 @@ public class VariantOutput {
 		for(String filename : filenames)
 		{
 			HashSet<String> ids = new HashSet<String>();
-			Scanner input = new Scanner(new FileInputStream(new File(filename)));
+			VcfRecordReader input = new VcfRecordReader(filename, Settings.REGIONS, pool);
+			
+			// The position of the current record in the file, which is how variants were numbered when they were read in
+			int ordinal = 0;
 			
 			// Iterate over the variants in that file
-			while(input.hasNext())
+			while(input.advance())
 			{
-				String line = input.nextLine();
-				
-				// Ignore empty lines
-				if(line.length() == 0)
-				{
-					continue;
-				}
-				
 				// Print header lines from the first file listed
-				else if(line.startsWith("#"))
+				if(input.isHeader())
 				{
 					if(sample == 0)
 					{
-						header.addLine(line);
+						header.addLine(input.headerLine());
 					}
 					else
 					{
@@ -104,28 +156,19 @@ public class VariantOutput {
 						}
 						header.print(out);
 					}
-					VcfEntry entry = VcfEntry.fromLine(line);
+					VcfEntry entry = input.entry();
 					if(ids.contains(entry.getId()))
 					{
-						String oldId = entry.getId();
-						int index = 1;
-						while(true)
-						{
-							String newId = oldId + "_duplicate" + index;
-							if(!ids.contains(newId))
-							{
-								entry.setId(newId);
-								break;
-							}
-							else
-							{
-								index++;
-							}
-						}
+						entry.setId(VariantInput.deduplicateId(entry.getId(), ids));
 					}
 					ids.add(entry.getId());
-					String graphID = entry.getGraphID();
-					groups.get(graphID).processVariant(entry, sample, out);
+					
+					// This should never happen, but if the variant is not in any graph ignore it
+					if(sample < graphOf.length && ordinal < graphOf[sample].length && graphOf[sample][ordinal] != -1)
+					{
+						groups[graphOf[sample][ordinal]].processVariant(entry, sample, groupOf[sample][ordinal], out);
+					}
+					ordinal++;
 				}
 			}
 			
@@ -180,9 +223,6 @@ public class VariantOutput {
 		// The current consensus variant for each group
 		VcfEntry[] consensus;
 		
-		// For each variant ID, the group number it is in
-		HashMap<String, Integer> varToGroup;
-		
 		// For each group, the support vector of samples it's in
 		String[] supportVectors;
 		
@@ -198,9 +238,9 @@ public class VariantOutput {
 		// The list of variant IDs in each merged variant
 		StringBuilder[] intraIdLists;
 		
-		VariantGraph(ArrayList<Variant>[] groups, int sampleCount)
+		VariantGraph(VariantStore store, int[] groupOf, int sampleCount)
 		{
-			int n = groups.length;
+			int n = store.n;
 			sizes = new int[n];
 			used = new int[n];
 			consensus = new VcfEntry[n];
@@ -209,30 +249,36 @@ public class VariantOutput {
 			lastAdded = new int[n];
 			idLists = new StringBuilder[n];
 			intraIdLists = new StringBuilder[n];
-			varToGroup = new HashMap<String, Integer>();
 			
-			// Scan through groups and map variant IDs to group numbers
+			// Scan through variants and get the size and support of each group
+			char[][] suppVecs = new char[n][];
+			for(int i = 0; i<n; i++)
+			{
+				int group = groupOf[i];
+				sizes[group]++;
+				if(suppVecs[group] == null)
+				{
+					suppVecs[group] = new char[sampleCount];
+					Arrays.fill(suppVecs[group], '0');
+				}
+				int sampleID = store.sample[i];
+				if(suppVecs[group][sampleID] == '0')
+				{
+					suppVecs[group][sampleID] = '1';
+					supportCounts[group]++;
+				}
+			}
+			
+			char[] emptySuppVec = new char[sampleCount];
+			Arrays.fill(emptySuppVec, '0');
+			String emptySupportVector = new String(emptySuppVec);
 			for(int i = 0; i<n; i++)
 			{
 				lastAdded[i] = -1;
-				sizes[i] = groups[i].size();
 				consensus[i] = null;
 				idLists[i] = new StringBuilder("");
 				intraIdLists[i] = new StringBuilder("");
-				char[] suppVec = new char[sampleCount];
-				Arrays.fill(suppVec, '0');
-				for(int j = 0; j<sizes[i]; j++)
-				{
-					int sampleID = groups[i].get(j).sample;
-					if(suppVec[sampleID] == '0')
-					{
-						suppVec[sampleID] = '1';
-						supportCounts[i]++;
-					}
-					String idString = groups[i].get(j).id;
-					varToGroup.put(idString, i);
-				}
-				supportVectors[i] = new String(suppVec);
+				supportVectors[i] = suppVecs[i] == null ? emptySupportVector : new String(suppVecs[i]);
 			}
 		}
 		
@@ -350,21 +396,10 @@ public class VariantOutput {
 			/*
 			 * If this variant is precise, set the merged variant to also be precise
 			 */
-			boolean precise = true;
-			if(entry.tabTokens[7].contains(";IMPRECISE;") || entry.tabTokens[7].startsWith("IMPRECISE;"))
-			{
-				precise = false;
-			}
+			boolean precise = !entry.hasInfoFlag("IMPRECISE");
 			if(precise)
 			{
-				if(consensus[groupNumber].tabTokens[7].contains(";IMPRECISE;"))
-				{
-					consensus[groupNumber].tabTokens[7] = consensus[groupNumber].tabTokens[7].replaceAll(";IMPRECISE;", ";PRECISE;");
-				}
-				else if(consensus[groupNumber].tabTokens[7].startsWith("IMPRECISE;"))
-				{
-					consensus[groupNumber].tabTokens[7] = consensus[groupNumber].tabTokens[7].substring(2);
-				}
+				consensus[groupNumber].renameInfoFlag("IMPRECISE", "PRECISE");
 			}
 			
 			// Update average (storing the sums for now and saving division for the end
@@ -610,16 +645,11 @@ public class VariantOutput {
 		/*
 		 * From a VCF line, update the appropriate consensus entry
 		 */
-		void processVariant(VcfEntry entry, int sample, PrintWriter out) throws Exception
+		void processVariant(VcfEntry entry, int sample, int groupNumber, PrintWriter out) throws Exception
 		{
-			// This should never happen, but if the variant ID is not in the graph ignore it
-			String fullId = VariantInput.fromVcfEntry(entry, sample).id;
-			if(!varToGroup.containsKey(fullId))
-			{
-				return;
-			}
-			
-			int groupNumber = varToGroup.get(fullId);
+			// Give the ID the sample prefix it had when the variants were read in
+			entry.setId(sample + "_" + entry.getId());
+			String fullId = entry.getId();
 			
 			// Don't even store the components with too little support to be output
 			if(supportCounts[groupNumber] < Settings.MIN_SUPPORT)
@@ -0,0 +1,695 @@
+/*
+ * The variants in a single graph, stored as parallel arrays of primitives instead of one object per variant
+ * Variants are referred to by their index into the arrays, which is what the KD-tree, forest, and merger work with.
+ * Outside of the store, a variant is identified by its sample and its ordinal (its position among the records of its file),
+ * and ID strings are only kept until the store is first sorted: after that only their relative order is needed, for breaking ties.
+ * The whole tie-breaking order (by INFO hash, then by ID) is also precomputed as a single rank, so comparing two variants
+ * is one integer comparison.
+ *
+ * Insertion sequences are kept 2-bit packed in a single pool of longs for the whole graph, since they can be several
+ * kilobases long, with each variant storing where its sequence starts and how long it is.  Lowercase bases and characters
+ * other than A/C/G/T (such as N) are kept on the side, so the original sequences can always be reproduced exactly.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+public class VariantStore
+{
+	// The graph these variants belong to, and its code in VariantInput.graphIds
+	String graphID;
+	int graphCode;
+	
+	// The number of variants
+	int n;
+	
+	// Which sample number each variant came from
+	int[] sample;
+	
+	// The position of each variant among the records of its file
+	int[] ordinal;
+	
+	// The ID of each variant ("<sampleId>_<id>"), which is only kept until the IDs are ranked
+	String[] id;
+	
+	// The rank of each variant's ID ("<sampleId>_<id>") among the IDs in this graph, which orders them the same way
+	int[] idRank;
+	
+	// The rank of each variant when ordered by hash and then by ID, which is how ties between equally distant variants are broken
+	int[] tieRank;
+	
+	// The coordinates used for computing distances
+	double[] start, end;
+	
+	// The maximum distance a variant can be away to merge with each one
+	int[] maxDist;
+	
+	// The minimum sequence similarity another insertion needs to merge with each one
+	double[] minSeqId;
+	
+	// A hash of each variant's INFO field, used for breaking ties deterministically
+	int[] hash;
+	
+	// The interval used for checking overlap, with NaN for variants which do not have one
+	double[] intervalStart, intervalEnd;
+	
+	// All of the insertion sequences, 2 bits per base and 32 bases per long with the first base in the lowest bits
+	// Each sequence starts on a new long, with sequence i starting at seqPool[seqStart[i]] and being seqLength[i] bases long.
+	// A length of -1 means the variant has no sequence.
+	long[] seqPool;
+	int seqPoolSize;
+	int[] seqStart, seqLength;
+	
+	// Which bases are lowercase, with a bit for each base in the low 32 bits of the long at the same index as it in
+	// seqPool, or null if none are
+	long[] seqLowercase;
+	
+	// The characters in sequences which are not bases, for the variants which have any
+	// Those of variant i start at seqExceptionPool[seqExceptions[i]] with their count, followed by each one's position
+	// shifted left 16 bits with the character in the low bits, in increasing order of position.  The start is -1 for
+	// variants with none.
+	long[] seqExceptionPool;
+	int seqExceptionPoolSize;
+	int[] seqExceptions;
+	
+	// The characters for each 2-bit code
+	static final char[] BASES = new char[] {'A', 'C', 'G', 'T'};
+	
+	/*
+	 * Allocates an empty store for a given number of variants, to be filled in by the caller
+	 * The IDs must be filled in as well, and are ranked the first time the store is sorted.
+	 */
+	VariantStore(String graphID, int n)
+	{
+		this.graphID = graphID;
+		graphCode = VariantInput.graphIds.getCode(graphID);
+		this.n = n;
+		sample = new int[n];
+		ordinal = new int[n];
+		id = new String[n];
+		idRank = new int[n];
+		tieRank = new int[n];
+		start = new double[n];
+		end = new double[n];
+		maxDist = new int[n];
+		minSeqId = new double[n];
+		hash = new int[n];
+		intervalStart = new double[n];
+		intervalEnd = new double[n];
+		seqPool = new long[16];
+		seqStart = new int[n];
+		seqLength = new int[n];
+		Arrays.fill(seqLength, -1);
+		seqExceptionPool = new long[0];
+		seqExceptions = new int[n];
+		Arrays.fill(seqExceptions, -1);
+	}
+	
+	/*
+	 * Builds a store holding the same information as a list of variants, in the same order
+	 */
+	VariantStore(String graphID, ArrayList<Variant> variants)
+	{
+		this(graphID, variants.size());
+		for(int i = 0; i<n; i++)
+		{
+			Variant v = variants.get(i);
+			sample[i] = v.sample;
+			ordinal[i] = v.ordinal;
+			id[i] = v.id;
+			start[i] = v.start;
+			end[i] = v.end;
+			maxDist[i] = v.maxDist;
+			minSeqId[i] = v.minSeqId;
+			hash[i] = v.hash;
+			intervalStart[i] = v.interval == null ? Double.NaN : v.interval[0];
+			intervalEnd[i] = v.interval == null ? Double.NaN : v.interval[1];
+			setSeq(i, v.seq);
+		}
+		rankIds();
+	}
+	
+	/*
+	 * Ranks the IDs so the strings themselves don't need to be kept
+	 */
+	void rankIds()
+	{
+		final String[] ids = id;
+		Integer[] byId = new Integer[n];
+		for(int i = 0; i<n; i++)
+		{
+			byId[i] = i;
+		}
+		Arrays.sort(byId, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				return ids[a].compareTo(ids[b]);
+			}
+		});
+		for(int i = 0; i<n; i++)
+		{
+			idRank[byId[i]] = i;
+		}
+		id = null;
+		rankTieBreaks();
+	}
+	
+	/*
+	 * Ranks the variants by hash and then by ID, which is the order used to break ties
+	 * Hashes are non-negative and ID ranks are distinct, so both fit in one long which sorts the same way.
+	 */
+	void rankTieBreaks()
+	{
+		int[] byIdRank = new int[n];
+		long[] keys = new long[n];
+		for(int i = 0; i<n; i++)
+		{
+			byIdRank[idRank[i]] = i;
+			keys[i] = ((long)hash[i] << 32) | idRank[i];
+		}
+		Arrays.sort(keys);
+		for(int i = 0; i<n; i++)
+		{
+			tieRank[byIdRank[(int)keys[i]]] = i;
+		}
+	}
+	
+	/*
+	 * Builds a store from an array of variants
+	 */
+	VariantStore(Variant[] variants)
+	{
+		this(variants.length == 0 ? "" : variants[0].graphID, new ArrayList<Variant>(Arrays.asList(variants)));
+	}
+	
+	/*
+	 * Sorts the variants in place the same way as Variant.compareTo: by hash, then start, then ID
+	 * The columns are reordered one at a time, so only one column is ever copied at once instead of the whole store.
+	 */
+	void sort()
+	{
+		if(id != null)
+		{
+			rankIds();
+		}
+		Integer[] byKey = new Integer[n];
+		for(int i = 0; i<n; i++)
+		{
+			byKey[i] = i;
+		}
+		Arrays.sort(byKey, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				if(hash[a] != hash[b]) return Long.compare(hash[a], hash[b]);
+				if(start[a] != start[b]) return Double.compare(start[a], start[b]);
+				return idRank[a] - idRank[b];
+			}
+		});
+		int[] order = new int[n];
+		for(int i = 0; i<n; i++)
+		{
+			order[i] = byKey[i];
+		}
+		byKey = null;
+		
+		sample = permute(sample, order);
+		ordinal = permute(ordinal, order);
+		idRank = permute(idRank, order);
+		tieRank = permute(tieRank, order);
+		start = permute(start, order);
+		end = permute(end, order);
+		maxDist = permute(maxDist, order);
+		minSeqId = permute(minSeqId, order);
+		hash = permute(hash, order);
+		intervalStart = permute(intervalStart, order);
+		intervalEnd = permute(intervalEnd, order);
+		seqStart = permute(seqStart, order);
+		seqLength = permute(seqLength, order);
+		seqExceptions = permute(seqExceptions, order);
+	}
+	
+	/*
+	 * Gets the values of a column in a given order
+	 */
+	private static int[] permute(int[] column, int[] order)
+	{
+		int[] res = new int[order.length];
+		for(int i = 0; i<order.length; i++)
+		{
+			res[i] = column[order[i]];
+		}
+		return res;
+	}
+	
+	private static double[] permute(double[] column, int[] order)
+	{
+		double[] res = new double[order.length];
+		for(int i = 0; i<order.length; i++)
+		{
+			res[i] = column[order[i]];
+		}
+		return res;
+	}
+	
+	/*
+	 * The 2-bit code of a base, or -1 if the character is not one of ACGT in either case
+	 */
+	static int baseCode(char c)
+	{
+		switch(c)
+		{
+			case 'A': case 'a': return 0;
+			case 'C': case 'c': return 1;
+			case 'G': case 'g': return 2;
+			case 'T': case 't': return 3;
+			default: return -1;
+		}
+	}
+	
+	/*
+	 * Sets the insertion sequence of a variant, which may be null if it has none
+	 * Several threads can fill in the sequences of one store at once: each sequence is packed on its own first, and
+	 * only copying it into the pools is done while holding the store's lock.
+	 */
+	void setSeq(int i, CharSequence s)
+	{
+		if(s == null)
+		{
+			seqLength[i] = -1;
+			seqExceptions[i] = -1;
+			return;
+		}
+		int length = s.length();
+		int words = (length + 31) >> 5;
+		long[] bits = new long[words];
+		long[] lowercase = null;
+		long[] exceptions = null;
+		int exceptionCount = 0;
+		for(int p = 0; p<length; p++)
+		{
+			char c = s.charAt(p);
+			int code = baseCode(c);
+			if(code == -1)
+			{
+				if(exceptions == null)
+				{
+					exceptions = new long[8];
+				}
+				else if(exceptionCount + 1 == exceptions.length)
+				{
+					exceptions = Arrays.copyOf(exceptions, 2 * exceptions.length);
+				}
+				exceptions[++exceptionCount] = ((long)p << 16) | c;
+				continue;
+			}
+			bits[p >> 5] |= ((long)code) << ((p & 31) << 1);
+			if(c >= 'a')
+			{
+				if(lowercase == null)
+				{
+					lowercase = new long[words];
+				}
+				lowercase[p >> 5] |= 1L << (p & 31);
+			}
+		}
+		if(exceptions != null)
+		{
+			exceptions[0] = exceptionCount;
+		}
+		addSeq(i, length, bits, lowercase, exceptions, exceptionCount);
+	}
+	
+	/*
+	 * Copies a packed sequence into the pools, growing them if needed
+	 */
+	private synchronized void addSeq(int i, int length, long[] bits, long[] lowercase, long[] exceptions, int exceptionCount)
+	{
+		int words = bits.length;
+		if(seqPoolSize + words > seqPool.length)
+		{
+			int capacity = Math.max(seqPoolSize + words, 2 * seqPool.length);
+			seqPool = Arrays.copyOf(seqPool, capacity);
+			if(seqLowercase != null)
+			{
+				seqLowercase = Arrays.copyOf(seqLowercase, capacity);
+			}
+		}
+		System.arraycopy(bits, 0, seqPool, seqPoolSize, words);
+		if(lowercase != null)
+		{
+			if(seqLowercase == null)
+			{
+				seqLowercase = new long[seqPool.length];
+			}
+			System.arraycopy(lowercase, 0, seqLowercase, seqPoolSize, words);
+		}
+		seqStart[i] = seqPoolSize;
+		seqPoolSize += words;
+		
+		if(exceptions == null)
+		{
+			seqExceptions[i] = -1;
+		}
+		else
+		{
+			if(seqExceptionPoolSize + exceptionCount + 1 > seqExceptionPool.length)
+			{
+				seqExceptionPool = Arrays.copyOf(seqExceptionPool, Math.max(seqExceptionPoolSize + exceptionCount + 1, 2 * seqExceptionPool.length));
+			}
+			System.arraycopy(exceptions, 0, seqExceptionPool, seqExceptionPoolSize, exceptionCount + 1);
+			seqExceptions[i] = seqExceptionPoolSize;
+			seqExceptionPoolSize += exceptionCount + 1;
+		}
+		seqLength[i] = length;
+	}
+	
+	/*
+	 * Changes how many variants the store has room for, keeping the ones which fit, so it can be filled in as a buffer
+	 * before the number of variants is known
+	 */
+	void resize(int capacity)
+	{
+		int old = n;
+		n = capacity;
+		sample = Arrays.copyOf(sample, n);
+		ordinal = Arrays.copyOf(ordinal, n);
+		id = Arrays.copyOf(id, n);
+		idRank = Arrays.copyOf(idRank, n);
+		tieRank = Arrays.copyOf(tieRank, n);
+		start = Arrays.copyOf(start, n);
+		end = Arrays.copyOf(end, n);
+		maxDist = Arrays.copyOf(maxDist, n);
+		minSeqId = Arrays.copyOf(minSeqId, n);
+		hash = Arrays.copyOf(hash, n);
+		intervalStart = Arrays.copyOf(intervalStart, n);
+		intervalEnd = Arrays.copyOf(intervalEnd, n);
+		seqStart = Arrays.copyOf(seqStart, n);
+		seqLength = Arrays.copyOf(seqLength, n);
+		seqExceptions = Arrays.copyOf(seqExceptions, n);
+		if(n > old)
+		{
+			Arrays.fill(seqLength, old, n, -1);
+			Arrays.fill(seqExceptions, old, n, -1);
+		}
+	}
+	
+	/*
+	 * Copies the first count variants, sequences included, into another store starting at a given index
+	 * Several threads can copy into one store at once, as long as the ranges they copy into don't overlap.
+	 */
+	void copyInto(VariantStore dst, int to, int count)
+	{
+		System.arraycopy(sample, 0, dst.sample, to, count);
+		System.arraycopy(ordinal, 0, dst.ordinal, to, count);
+		System.arraycopy(id, 0, dst.id, to, count);
+		System.arraycopy(start, 0, dst.start, to, count);
+		System.arraycopy(end, 0, dst.end, to, count);
+		System.arraycopy(maxDist, 0, dst.maxDist, to, count);
+		System.arraycopy(minSeqId, 0, dst.minSeqId, to, count);
+		System.arraycopy(hash, 0, dst.hash, to, count);
+		System.arraycopy(intervalStart, 0, dst.intervalStart, to, count);
+		System.arraycopy(intervalEnd, 0, dst.intervalEnd, to, count);
+		System.arraycopy(seqLength, 0, dst.seqLength, to, count);
+		dst.addSeqs(this, to, count);
+	}
+	
+	/*
+	 * Appends the sequence pools of another store to this one's, and points a range of variants at the sequences of
+	 * that store's first variants
+	 */
+	private synchronized void addSeqs(VariantStore src, int to, int count)
+	{
+		int words = src.seqPoolSize;
+		if(seqPoolSize + words > seqPool.length)
+		{
+			int capacity = Math.max(seqPoolSize + words, 2 * seqPool.length);
+			seqPool = Arrays.copyOf(seqPool, capacity);
+			if(seqLowercase != null)
+			{
+				seqLowercase = Arrays.copyOf(seqLowercase, capacity);
+			}
+		}
+		System.arraycopy(src.seqPool, 0, seqPool, seqPoolSize, words);
+		if(src.seqLowercase != null)
+		{
+			if(seqLowercase == null)
+			{
+				seqLowercase = new long[seqPool.length];
+			}
+			System.arraycopy(src.seqLowercase, 0, seqLowercase, seqPoolSize, words);
+		}
+		
+		int exceptionWords = src.seqExceptionPoolSize;
+		if(seqExceptionPoolSize + exceptionWords > seqExceptionPool.length)
+		{
+			seqExceptionPool = Arrays.copyOf(seqExceptionPool, Math.max(seqExceptionPoolSize + exceptionWords, 2 * seqExceptionPool.length));
+		}
+		System.arraycopy(src.seqExceptionPool, 0, seqExceptionPool, seqExceptionPoolSize, exceptionWords);
+		
+		for(int i = 0; i<count; i++)
+		{
+			seqStart[to + i] = src.seqStart[i] + seqPoolSize;
+			seqExceptions[to + i] = src.seqExceptions[i] == -1 ? -1 : src.seqExceptions[i] + seqExceptionPoolSize;
+		}
+		seqPoolSize += words;
+		seqExceptionPoolSize += exceptionWords;
+	}
+	
+	/*
+	 * Shrinks the sequence pools to what they hold, once all of the sequences have been added
+	 */
+	synchronized void trimSequences()
+	{
+		seqPool = Arrays.copyOf(seqPool, seqPoolSize);
+		if(seqLowercase != null)
+		{
+			seqLowercase = Arrays.copyOf(seqLowercase, seqPoolSize);
+		}
+		seqExceptionPool = Arrays.copyOf(seqExceptionPool, seqExceptionPoolSize);
+	}
+	
+	/*
+	 * The 2-bit code stored at a position of a variant's sequence, ignoring case and exceptions
+	 */
+	int rawCode(int i, int p)
+	{
+		return (int)(seqPool[seqStart[i] + (p >> 5)] >>> ((p & 31) << 1)) & 3;
+	}
+	
+	/*
+	 * The number of characters in a variant's sequence which are not bases
+	 */
+	int exceptionCount(int i)
+	{
+		return seqExceptions[i] == -1 ? 0 : (int)seqExceptionPool[seqExceptions[i]];
+	}
+	
+	/*
+	 * The position of the j-th character which is not a base in a variant's sequence
+	 */
+	int exceptionPosition(int i, int j)
+	{
+		return (int)(seqExceptionPool[seqExceptions[i] + 1 + j] >>> 16);
+	}
+	
+	/*
+	 * Whether or not a variant's sequence is all uppercase bases, so it can be compared by its 2-bit codes alone
+	 */
+	boolean isPlainSeq(int i)
+	{
+		if(seqExceptions[i] != -1)
+		{
+			return false;
+		}
+		if(seqLowercase != null)
+		{
+			for(int w = seqStart[i], end = w + ((seqLength[i] + 31) >> 5); w<end; w++)
+			{
+				if(seqLowercase[w] != 0)
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * Writes a number for each character of a variant's sequence into the start of an array, such that two characters
+	 * get the same number exactly when they are equal
+	 * Bases are their 2-bit code, plus 4 if they are lowercase, and other characters are 8 more than their value.
+	 */
+	void seqSymbols(int i, int[] res)
+	{
+		int length = seqLength[i];
+		for(int p = 0; p<length; p++)
+		{
+			int symbol = rawCode(i, p);
+			if(seqLowercase != null && (seqLowercase[seqStart[i] + (p >> 5)] & (1L << (p & 31))) != 0)
+			{
+				symbol += 4;
+			}
+			res[p] = symbol;
+		}
+		int exceptionStart = seqExceptions[i];
+		for(int j = 0, count = exceptionCount(i); j<count; j++)
+		{
+			long exception = seqExceptionPool[exceptionStart + 1 + j];
+			res[(int)(exception >>> 16)] = 8 + (int)(exception & 0xFFFF);
+		}
+	}
+	
+	/*
+	 * Gets the insertion sequence of a variant, or null if it does not have one
+	 */
+	String getSeq(int i)
+	{
+		int length = seqLength[i];
+		if(length == -1)
+		{
+			return null;
+		}
+		int[] symbols = new int[length];
+		seqSymbols(i, symbols);
+		char[] res = new char[length];
+		for(int p = 0; p<length; p++)
+		{
+			int symbol = symbols[p];
+			res[p] = symbol >= 8 ? (char)(symbol - 8) : symbol >= 4 ? Character.toLowerCase(BASES[symbol - 4]) : BASES[symbol];
+		}
+		return new String(res);
+	}
+	
+	/*
+	 * Returns the distance from a variant's (start, end) pair to a given (x, y) point
+	 */
+	double distFromPoint(int i, double x, double y)
+	{
+		return pointDistance(start[i] - x, end[i] - y);
+	}
+	
+	/*
+	 * The length of a (start, end) difference under the norm given in the settings
+	 */
+	static double pointDistance(double dStart, double dEnd)
+	{
+		int norm = Settings.KD_TREE_NORM;
+		if(norm == 2)
+		{
+			return Math.sqrt(dStart * dStart + dEnd * dEnd);
+		}
+		else
+		{
+			double powSum = Math.abs(Math.pow(dStart, norm)) + Math.abs(Math.pow(dEnd, norm));
+			return Math.pow(powSum, 1.0 / norm);
+		}
+	}
+	
+	/*
+	 * The distance between two variants based on differences in their start/end coordinates
+	 */
+	double distance(int i, int j)
+	{
+		return distFromPoint(i, start[j], end[j]);
+	}
+	
+	/*
+	 * Compares two variants for breaking ties between equally distant candidates: by hash, then ID
+	 * Returns a negative number if variant i comes first
+	 */
+	int compareTieBreak(int i, int j)
+	{
+		return tieRank[i] - tieRank[j];
+	}
+	
+	/*
+	 * Compares two candidate neighbors of the same point given their distances from it, returning a positive number if
+	 * the first is nearer
+	 * Distances within 1e-9 of each other are treated as equal and ties are broken by hash and then ID.
+	 */
+	int compareNeighbors(int a, double distA, int b, double distB)
+	{
+		if(Math.abs(distA - distB) > 1e-9) return Double.compare(distB, distA);
+		return compareTieBreak(b, a);
+	}
+	
+	/*
+	 * Adds a candidate to a list of the nearest neighbors of a point (x, y) found so far, which is sorted from nearest to
+	 * farthest and holds at most k of them, and returns the new length of the list
+	 */
+	int addNeighbor(int[] nearest, int count, int k, int v, double dist, double x, double y)
+	{
+		int j = count;
+		if(count < k)
+		{
+			count++;
+		}
+		else if(k == 0 || compareNeighbors(v, dist, nearest[k - 1], distFromPoint(nearest[k - 1], x, y)) <= 0)
+		{
+			return count;
+		}
+		else
+		{
+			j = k - 1;
+		}
+		while(j > 0 && compareNeighbors(v, dist, nearest[j - 1], distFromPoint(nearest[j - 1], x, y)) > 0)
+		{
+			nearest[j] = nearest[j - 1];
+			j--;
+		}
+		nearest[j] = v;
+		return count;
+	}
+	
+	/*
+	 * Whether or not the sequence similarity of two variants is high enough for them to be merged
+	 */
+	boolean passesStringSimilarity(int i, int j)
+	{
+		if(seqLength[i] == -1 || seqLength[j] == -1)
+		{
+			return true;
+		}
+		
+		double similarityNeeded = Math.min(minSeqId[i], minSeqId[j]);
+		
+		// If there is no sequence identity requirement, don't compute the score and just return true
+		if(similarityNeeded <= 0)
+		{
+			return true;
+		}
+		
+		int minLength = Math.min(seqLength[i], seqLength[j]);
+		int maxLength = seqLength[i] + seqLength[j] - minLength;
+		
+		if(minLength < maxLength * similarityNeeded - 1e-9)
+		{
+			return false;
+		}
+		
+		double similarity = Settings.USE_EDIT_DISTANCE ? StringUtils.editDistanceSimilarity(this, i, j) : StringUtils.jaccardSimilarity(this, i, j);
+		return similarity >= similarityNeeded - 1e-9;
+	}
+	
+	/*
+	 * Whether or not two variants overlap enough to be merged, if overlap is being checked for both of them
+	 */
+	boolean passesOverlap(int i, int j)
+	{
+		if(Double.isNaN(intervalStart[i]) || Double.isNaN(intervalStart[j]))
+		{
+			return true;
+		}
+		double maxStart = Math.max(intervalStart[i], intervalStart[j]);
+		double minEnd = Math.min(intervalEnd[i], intervalEnd[j]);
+		if(minEnd <= maxStart + 1E-9)
+		{
+			return false;
+		}
+		double maxIntervalSize = Math.max(intervalEnd[i] - intervalStart[i], intervalEnd[j] - intervalStart[j]);
+		return minEnd - maxStart + 1e-9 >= maxIntervalSize * Settings.OVERLAP_REQUIRED;
+	}
+}
@@ -5,8 +5,6 @@
  */
 
 import java.util.Arrays;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class VcfEntry {
 
@@ -14,15 +12,80 @@ public class VcfEntry {
 	String[] tabTokens;
 	String oldId;
 	
+	// The FORMAT and sample columns, if the line was parsed without splitting them
+	String unparsedTail;
+	
+	// For entries read from BCF, the FORMAT keys and each sample's values for them, which are only
+	// joined into FORMAT and sample columns if the entry is printed or expandTail() is called
+	String[] formatKeys;
+	String[][] sampleFields;
+	
+	// The INFO string which infoIndex was built from, used to tell when the index is out of date
+	String indexedInfo;
+	
+	// For each key=value INFO field, the start of its key, the position of the '=', and the end of its value
+	int[] infoIndex;
+	
+	// The number of key=value INFO fields in the index
+	int infoFieldCount;
+	
+	// Once any INFO field is set, the INFO column is kept as an ordered list of fields instead of as a string,
+	// so that setting a field doesn't rebuild the whole string - each field is split into its key and its value,
+	// with a null value for flags which have no '=', and the list is only turned back into a string when needed
+	String[] infoKeys, infoValues;
+	int infoListSize;
+	
+	// Whether the field list has changed since tabTokens[7] was last updated from it
+	boolean infoChanged;
+	
+	// Values derived from the fields, which are computed the first time they are needed since they depend
+	// on each other and are looked up many times per entry - null means not computed yet, and all of them
+	// are cleared whenever one of the fields they depend on is changed
+	String type, normalizedType, seq, graphID;
+	Integer length;
+	Long end;
+	
 	public static VcfEntry fromLine(String line) throws Exception
 	{
-		VcfEntry res = new VcfEntry(line);
+		return fromLine(line, false);
+	}
+	
+	/*
+	 * Parses a VCF line, optionally leaving the FORMAT and sample columns as a single unparsed string
+	 */
+	public static VcfEntry fromLine(String line, boolean projected) throws Exception
+	{
+		VcfEntry res = new VcfEntry(line, projected);
+		
+		if(res.getType().equals("BND"))
+		{
+			res = new BndVcfEntry(line, projected);
+		}
+		return finishParsing(res);
+	}
+	
+	/*
+	 * Builds an entry from columns which have already been split out, such as those decoded from BCF,
+	 * in the same way as fromLine() - the array needs at least CHROM through INFO
+	 */
+	public static VcfEntry fromColumns(String[] columns) throws Exception
+	{
+		// Parsing can change the columns, so each entry gets its own copy and the caller's array is never shared
+		VcfEntry res = new VcfEntry(columns.clone());
 		
 		if(res.getType().equals("BND"))
 		{
-			res = new BndVcfEntry(line);
+			res = new BndVcfEntry(columns.clone());
 		}
-		else if(res.getAlt().contains("[") || res.getAlt().contains("]"))
+		return finishParsing(res);
+	}
+	
+	/*
+	 * The steps of parsing an entry which come after working out whether it's a BND entry
+	 */
+	private static VcfEntry finishParsing(VcfEntry res) throws Exception
+	{
+		if(!(res instanceof BndVcfEntry) && (res.getAlt().contains("[") || res.getAlt().contains("]")))
 		{
 			// BND format but not a translocation, so set REF and ALT to symbolic notation instead
 			res.setRef(".");
@@ -43,18 +106,49 @@ public class VcfEntry {
 	}
 	
 	public VcfEntry(String line) throws Exception
+	{
+		this(line, false);
+	}
+	
+	/*
+	 * Parses a VCF line - if projected is set, only CHROM through INFO are split into
+	 * separate fields, and everything after them is kept as is until expandTail() is called
+	 */
+	public VcfEntry(String line, boolean projected) throws Exception
 	{
 		originalLine = line;
-		tabTokens = line.split("\t");
+		tabTokens = projected ? splitFirstColumns(line) : line.split("\t");
 		if(line.length() >=2 && line.charAt(0) == 31 && (line.charAt(1) == 65533 || line.charAt(1) == 139))
 		{
-			throw new Exception("Trying to read a gzipped file, but only unzipped VCFs are accepted");
+			throw new Exception("Trying to read gzipped data which could not be decompressed");
 		}
 		if(tabTokens.length < 8)
 		{
 			throw new Exception("VCF line had too few entries: "
 					+ Arrays.toString(tabTokens));
 		}
+		initialize();
+	}
+	
+	/*
+	 * Builds an entry from columns which have already been split out, using the array as is
+	 */
+	public VcfEntry(String[] columns) throws Exception
+	{
+		tabTokens = columns;
+		if(tabTokens.length < 8)
+		{
+			throw new Exception("VCF line had too few entries: "
+					+ Arrays.toString(tabTokens));
+		}
+		initialize();
+	}
+	
+	/*
+	 * Setup which is the same no matter how the fields were split
+	 */
+	private void initialize()
+	{
 		oldId = getId();
 		
 		if(Settings.CHR_NAME_MAP != null)
@@ -63,6 +157,68 @@ public class VcfEntry {
 		}
 	}
 	
+	/*
+	 * Splits out the first eight columns of a line, storing the rest in unparsedTail
+	 * Trailing empty columns are dropped to give the same fields as String.split()
+	 */
+	private String[] splitFirstColumns(String line)
+	{
+		int end = line.length();
+		while(end > 0 && line.charAt(end - 1) == '\t')
+		{
+			end--;
+		}
+		String[] tokens = new String[8];
+		int count = 0;
+		int start = 0;
+		while(count < 8)
+		{
+			int tabIndex = line.indexOf('\t', start);
+			if(tabIndex == -1 || tabIndex >= end)
+			{
+				tokens[count++] = line.substring(start, end);
+				start = end;
+				break;
+			}
+			tokens[count++] = line.substring(start, tabIndex);
+			start = tabIndex + 1;
+		}
+		if(start < end)
+		{
+			unparsedTail = line.substring(start, end);
+		}
+		return count == 8 ? tokens : Arrays.copyOf(tokens, count);
+	}
+	
+	/*
+	 * Splits the FORMAT and sample columns into their own fields if they were left unparsed
+	 */
+	void expandTail()
+	{
+		if(formatKeys != null)
+		{
+			String[] allTokens = Arrays.copyOf(tabTokens, 9 + sampleFields.length);
+			allTokens[8] = String.join(":", formatKeys);
+			for(int i = 0; i<sampleFields.length; i++)
+			{
+				allTokens[9 + i] = String.join(":", sampleFields[i]);
+			}
+			tabTokens = allTokens;
+			formatKeys = null;
+			sampleFields = null;
+			return;
+		}
+		if(unparsedTail == null)
+		{
+			return;
+		}
+		String[] tailTokens = unparsedTail.split("\t");
+		String[] allTokens = Arrays.copyOf(tabTokens, tabTokens.length + tailTokens.length);
+		System.arraycopy(tailTokens, 0, allTokens, tabTokens.length, tailTokens.length);
+		tabTokens = allTokens;
+		unparsedTail = null;
+	}
+	
 	/*
 	 * Normalizes the type of the VCF entry
 	 */
@@ -129,6 +285,11 @@ public class VcfEntry {
 	 */
 	public String toString()
 	{
+		getInfoString();
+		if(formatKeys != null)
+		{
+			expandTail();
+		}
 		StringBuilder sb = new StringBuilder("");
 		for(int i = 0; i<tabTokens.length; i++)
 		{
@@ -138,6 +299,11 @@ public class VcfEntry {
 				sb.append("\t");
 			}
 		}
+		if(unparsedTail != null)
+		{
+			sb.append("\t");
+			sb.append(unparsedTail);
+		}
 		return sb.toString();
 	}
 	
@@ -155,6 +321,7 @@ public class VcfEntry {
 	public void setChromosome(String s)
 	{
 		tabTokens[0] = s;
+		clearDerivedFields();
 	}
 	
 	/*
@@ -183,6 +350,7 @@ public class VcfEntry {
 	public void setPos(long val)
 	{
 		tabTokens[1] = val+"";
+		clearDerivedFields();
 	}
 	
 	/*
@@ -215,6 +383,7 @@ public class VcfEntry {
 	public void setRef(String s)
 	{
 		tabTokens[3] = s;
+		clearDerivedFields();
 	}
 	
 	/*
@@ -231,6 +400,20 @@ public class VcfEntry {
 	public void setAlt(String s)
 	{
 		tabTokens[4] = s;
+		clearDerivedFields();
+	}
+	
+	/*
+	 * Forget all of the derived values so they are recomputed from the current fields
+	 */
+	void clearDerivedFields()
+	{
+		type = null;
+		normalizedType = null;
+		seq = null;
+		graphID = null;
+		length = null;
+		end = null;
 	}
 	
 	/*
@@ -238,42 +421,66 @@ public class VcfEntry {
 	 */
 	public int getLength() throws Exception
 	{
-		try {
-			String s = getInfo("SVLEN");
-			double val = Double.parseDouble(s);
-			if(val < 0)
+		if(length == null)
+		{
+			length = computeLength();
+		}
+		return length;
+	}
+	
+	private int computeLength() throws Exception
+	{
+		String s = getInfo("SVLEN");
+		
+		// Only try parsing SVLEN when it's there, since throwing and catching an exception for every entry without it is slow
+		if(s.length() > 0)
+		{
+			try {
+				double val = Double.parseDouble(s);
+				if(val < 0)
+				{
+					return (int)(val - .5);
+				}
+				else
+				{
+					return (int)(val + .5);
+				}
+			} catch(Exception e) {
+				// Fall back on the sequence and coordinates below
+			}
+		}
+		String seq = getSeq();
+		String type = getType();
+		if(seq.length() == 0)
+		{
+			if(type.equals("DEL"))
 			{
-				return (int)(val - .5);
+				int diff = (int)(getEnd() - getPos());
+				return -diff;
 			}
-			else
+			if(type.equals("DUP") || type.equals("INV"))
 			{
-				return (int)(val + .5);
+				int diff = (int)(getEnd() - getPos());
+				return diff;
 			}
-		} catch(Exception e) {
-            String seq = getSeq();
-            String type = getType();
-            if(seq.length() == 0)
-            {
-	            if(type.equals("DEL"))
-	            {
-	            	int diff = (int)(getEnd() - getPos());
-	            	return -diff;
-	            }
-	            if(type.equals("DUP") || type.equals("INV"))
-	            {
-	            	int diff = (int)(getEnd() - getPos());
-	            	return diff;
-	            }
-            }
-            if(type.equals("INS")) return seq.length();
-            else return -seq.length();
 		}
+		if(type.equals("INS")) return seq.length();
+		else return -seq.length();
 	}
 	
 	/*
 	 * The end position of a variant
 	 */
 	public long getEnd() throws Exception
+	{
+		if(end == null)
+		{
+			end = computeEnd();
+		}
+		return end;
+	}
+	
+	private long computeEnd() throws Exception
 	{
 		if(hasInfoField("END")) return Long.parseLong(getInfo("END"));
 		String type = getType();
@@ -303,6 +510,15 @@ public class VcfEntry {
 	 * Get the variant type
 	 */
 	public String getType() throws Exception
+	{
+		if(type == null)
+		{
+			type = computeType();
+		}
+		return type;
+	}
+	
+	private String computeType() throws Exception
 	{
 		String res = getInfo("SVTYPE");
 		if(res.length() == 0)
@@ -349,6 +565,15 @@ public class VcfEntry {
 	 * Get which graph the variant belongs in based on how the user wants them separated
 	 */
 	public String getGraphID() throws Exception
+	{
+		if(graphID == null)
+		{
+			graphID = computeGraphID();
+		}
+		return graphID;
+	}
+	
+	private String computeGraphID() throws Exception
 	{
 		if(getType().equals("TRA"))
 		{
@@ -422,6 +647,15 @@ public class VcfEntry {
 	 * The genomic sequence being affected/added/deleted by the variant
 	 */
 	public String getSeq() throws Exception
+	{
+		if(seq == null)
+		{
+			seq = computeSeq();
+		}
+		return seq;
+	}
+	
+	private String computeSeq() throws Exception
 	{
 		if(hasInfoField("SEQ"))
 		{
@@ -505,38 +739,253 @@ public class VcfEntry {
 	}
 	
 	/*
-	 * Set a particular VCF INFO field, adding the field if it doesn't already exist
+	 * Builds the index of INFO fields if it hasn't been built for the current INFO string
+	 * Tokens without an '=' are not included since they can't be looked up by key
 	 */
-	public void setInfo(String field, String val) throws Exception
+	void indexInfo()
 	{
-		String[] infoFields = tabTokens[7].split(";");
-		for(String semitoken : infoFields)
+		String info = tabTokens[7];
+		if(info == indexedInfo)
 		{
-			int equalIndex = semitoken.indexOf('=');
-			if(equalIndex == -1)
+			return;
+		}
+		if(infoIndex == null)
+		{
+			infoIndex = new int[3 * 16];
+		}
+		infoFieldCount = 0;
+		int tokenStart = 0;
+		int length = info.length();
+		while(tokenStart < length)
+		{
+			int tokenEnd = info.indexOf(';', tokenStart);
+			if(tokenEnd == -1)
 			{
-				continue;
+				tokenEnd = length;
 			}
-			String key = semitoken.substring(0, equalIndex);
-			if(key.equals(field))
+			int equalIndex = info.indexOf('=', tokenStart);
+			if(equalIndex != -1 && equalIndex < tokenEnd)
 			{
-				String updatedToken = key + "=" + val;
-				
-				// Special case if this is the first INFO field
-				if(tabTokens[7].startsWith(semitoken))
+				addIndexedField(tokenStart, equalIndex, tokenEnd);
+			}
+			tokenStart = tokenEnd + 1;
+		}
+		indexedInfo = info;
+	}
+	
+	/*
+	 * Adds a field to the end of the INFO index
+	 */
+	private void addIndexedField(int keyStart, int equalIndex, int valueEnd)
+	{
+		if(3 * infoFieldCount + 3 > infoIndex.length)
+		{
+			infoIndex = Arrays.copyOf(infoIndex, 2 * infoIndex.length);
+		}
+		infoIndex[3 * infoFieldCount] = keyStart;
+		infoIndex[3 * infoFieldCount + 1] = equalIndex;
+		infoIndex[3 * infoFieldCount + 2] = valueEnd;
+		infoFieldCount++;
+	}
+	
+	/*
+	 * Gets the position in the INFO index of the first field with a given key, or -1 if there is none
+	 */
+	int findInfoField(String field)
+	{
+		indexInfo();
+		int fieldLength = field.length();
+		for(int i = 0; i<infoFieldCount; i++)
+		{
+			int keyStart = infoIndex[3 * i];
+			if(infoIndex[3 * i + 1] - keyStart == fieldLength && indexedInfo.startsWith(field, keyStart))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/*
+	 * Switches the INFO column over to being stored as a list of fields, splitting every token on ';'
+	 * so that turning it back into a string gives exactly the same text
+	 */
+	private void listInfoFields()
+	{
+		String info = tabTokens[7];
+		int capacity = 16;
+		while(capacity < infoFieldCount + 8)
+		{
+			capacity *= 2;
+		}
+		infoKeys = new String[capacity];
+		infoValues = new String[capacity];
+		infoListSize = 0;
+		int tokenStart = 0;
+		while(true)
+		{
+			int tokenEnd = info.indexOf(';', tokenStart);
+			if(tokenEnd == -1)
+			{
+				tokenEnd = info.length();
+			}
+			int equalIndex = info.indexOf('=', tokenStart);
+			if(equalIndex != -1 && equalIndex < tokenEnd)
+			{
+				addListedField(info.substring(tokenStart, equalIndex), info.substring(equalIndex + 1, tokenEnd));
+			}
+			else
+			{
+				addListedField(info.substring(tokenStart, tokenEnd), null);
+			}
+			if(tokenEnd == info.length())
+			{
+				break;
+			}
+			tokenStart = tokenEnd + 1;
+		}
+		
+		// The string index is no longer used
+		infoIndex = null;
+		indexedInfo = null;
+		infoFieldCount = 0;
+	}
+	
+	/*
+	 * Adds a field to the end of the INFO field list
+	 */
+	private void addListedField(String key, String value)
+	{
+		if(infoListSize == infoKeys.length)
+		{
+			infoKeys = Arrays.copyOf(infoKeys, 2 * infoKeys.length);
+			infoValues = Arrays.copyOf(infoValues, 2 * infoValues.length);
+		}
+		infoKeys[infoListSize] = key;
+		infoValues[infoListSize] = value;
+		infoListSize++;
+	}
+	
+	/*
+	 * Gets the position in the INFO field list of the first key=value field with a given key, or -1 if there is none
+	 */
+	private int findListedField(String field)
+	{
+		for(int i = 0; i<infoListSize; i++)
+		{
+			if(infoValues[i] != null && infoKeys[i].equals(field))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/*
+	 * Gets the INFO column as a string, rebuilding it from the field list if any fields have been set since it was last built
+	 */
+	public String getInfoString()
+	{
+		if(infoChanged)
+		{
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; i<infoListSize; i++)
+			{
+				if(i > 0)
 				{
-					tabTokens[7] = tabTokens[7].replaceFirst(Pattern.quote(semitoken), Matcher.quoteReplacement(updatedToken));
+					sb.append(';');
 				}
-				else
+				sb.append(infoKeys[i]);
+				if(infoValues[i] != null)
 				{
-					tabTokens[7] = tabTokens[7].replace(";" + semitoken, ";" + updatedToken);
+					sb.append('=');
+					sb.append(infoValues[i]);
 				}
-				return;
 			}
+			tabTokens[7] = sb.toString();
+			infoChanged = false;
 		}
-		
-		// Field not found, so add it!
-		tabTokens[7] += ";" + field + "=" + val;
+		return tabTokens[7];
+	}
+	
+	/*
+	 * Replaces the whole INFO column
+	 */
+	public void setInfoString(String s)
+	{
+		tabTokens[7] = s;
+		infoKeys = null;
+		infoValues = null;
+		infoListSize = 0;
+		infoChanged = false;
+		clearDerivedFields();
+	}
+	
+	/*
+	 * Set a particular VCF INFO field, adding the field if it doesn't already exist
+	 */
+	public void setInfo(String field, String val) throws Exception
+	{
+		if(infoKeys == null)
+		{
+			listInfoFields();
+		}
+		int fieldIndex = findListedField(field);
+		if(fieldIndex != -1)
+		{
+			infoValues[fieldIndex] = val;
+		}
+		else
+		{
+			// Field not found, so add it!
+			addListedField(field, val);
+		}
+		infoChanged = true;
+		clearDerivedFields();
+	}
+	
+	/*
+	 * Whether the INFO column has a given flag (a field with no value) followed by at least one more field
+	 * A flag in the last position doesn't count, the same as searching the INFO string for "FLAG;"
+	 */
+	public boolean hasInfoFlag(String flag)
+	{
+		if(infoKeys == null)
+		{
+			String info = tabTokens[7];
+			return info.startsWith(flag + ";") || info.contains(";" + flag + ";");
+		}
+		for(int i = 0; i<infoListSize - 1; i++)
+		{
+			if(infoValues[i] == null && infoKeys[i].equals(flag))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/*
+	 * Renames every flag in the INFO column which is followed by at least one more field
+	 */
+	public void renameInfoFlag(String oldFlag, String newFlag)
+	{
+		if(!hasInfoFlag(oldFlag))
+		{
+			return;
+		}
+		if(infoKeys == null)
+		{
+			listInfoFields();
+		}
+		for(int i = 0; i<infoListSize - 1; i++)
+		{
+			if(infoValues[i] == null && infoKeys[i].equals(oldFlag))
+			{
+				infoKeys[i] = newFlag;
+			}
+		}
+		infoChanged = true;
 	}
 	
 	/*
@@ -565,19 +1014,24 @@ public class VcfEntry {
 		{
 			return getInfo("RNAMES").split(",");
 		}
-		String infoToken = tabTokens[7];
-		String[] semicolonSplit = infoToken.split(";");
-		for(String semitoken : semicolonSplit)
+		if(infoKeys != null)
 		{
-			int equalIndex = semitoken.indexOf('=');
-			if(equalIndex == -1)
+			for(int i = 0; i<infoListSize; i++)
 			{
-				continue;
+				if(infoValues[i] != null && infoKeys[i].toUpperCase().contains("RNAMES"))
+				{
+					return infoValues[i].split(",");
+				}
 			}
-			String key = semitoken.substring(0, equalIndex);
+			return new String[] {};
+		}
+		indexInfo();
+		for(int i = 0; i<infoFieldCount; i++)
+		{
+			String key = indexedInfo.substring(infoIndex[3 * i], infoIndex[3 * i + 1]);
 			if(key.toUpperCase().contains("RNAMES"))
 			{
-				return semitoken.substring(1 + equalIndex).split(",");
+				return indexedInfo.substring(infoIndex[3 * i + 1] + 1, infoIndex[3 * i + 2]).split(",");
 			}
 		}
 		return new String[] {};
@@ -588,22 +1042,17 @@ public class VcfEntry {
 	 */
 	public String getInfo(String field) throws Exception
 	{
-		String infoToken = tabTokens[7];
-		String[] semicolonSplit = infoToken.split(";");
-		for(String semitoken : semicolonSplit)
+		if(infoKeys != null)
 		{
-			int equalIndex = semitoken.indexOf('=');
-			if(equalIndex == -1)
-			{
-				continue;
-			}
-			String key = semitoken.substring(0, equalIndex);
-			if(key.equals(field))
-			{
-				return semitoken.substring(1 + equalIndex);
-			}
+			int listIndex = findListedField(field);
+			return listIndex == -1 ? "" : infoValues[listIndex];
 		}
-		return "";
+		int fieldIndex = findInfoField(field);
+		if(fieldIndex == -1)
+		{
+			return "";
+		}
+		return indexedInfo.substring(infoIndex[3 * fieldIndex + 1] + 1, infoIndex[3 * fieldIndex + 2]);
 	}
 	
 	/*
@@ -611,22 +1060,11 @@ public class VcfEntry {
 	 */
 	public boolean hasInfoField(String fieldName)
 	{
-		String infoToken = tabTokens[7];
-		String[] semicolonSplit = infoToken.split(";");
-		for(String semitoken : semicolonSplit)
+		if(infoKeys != null)
 		{
-			int equalIndex = semitoken.indexOf('=');
-			if(equalIndex == -1)
-			{
-				continue;
-			}
-			String key = semitoken.substring(0, equalIndex);
-			if(key.equals(fieldName))
-			{
-				return true;
-			}
+			return findListedField(fieldName) != -1;
 		}
-		return false;
+		return findInfoField(fieldName) != -1;
 	}
 	
 	/*
@@ -709,6 +1147,15 @@ public class VcfEntry {
 	 * Get one of five types: INS, DEL, DUP, INV, or TRA (or "" if none of them fit)
 	 */
 	public String getNormalizedType() throws Exception
+	{
+		if(normalizedType == null)
+		{
+			normalizedType = computeNormalizedType();
+		}
+		return normalizedType;
+	}
+	
+	private String computeNormalizedType() throws Exception
 	{
 		String type = getType();
 		if(type.equals("TRA") || type.equals("BND"))
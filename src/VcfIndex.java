@@ -0,0 +1,617 @@
+/*
+ * An index of a coordinate-sorted variant file, used to jump straight to the records in a region instead of reading the whole file
+ * Three kinds of index are supported:
+ *   - tabix (.tbi) indexes of bgzipped VCFs, which have a linear index giving an offset for every 16 kbp window
+ *   - CSI (.csi) indexes of bgzipped VCFs or BCFs, which only have an offset for each bin of their binning scheme
+ *   - Jasmine's own linear index of a plain text VCF, built the first time a region is read from the file and kept for
+ *     the rest of the run, and only saved next to it as <vcf>.jasmine.idx with --save_index
+ * Offsets into bgzipped files are BGZF virtual offsets, while offsets into plain text files are byte offsets.
+ *
+ * Records are only ever looked up by their POS, so the offset given for a position is one at or before the first
+ * record on the chromosome which starts there or later.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class VcfIndex
+{
+	// The suffix added to a VCF filename to get its Jasmine index
+	static String SUFFIX = ".jasmine.idx";
+	
+	// Written at the start of every Jasmine index, and changed whenever the layout changes
+	static String MAGIC = "JASMINE_LINEAR_INDEX";
+	static int VERSION = 1;
+	
+	// The log2 of the size of the windows in a linear index, which is 16 kbp as in tabix
+	static int LINEAR_SHIFT = 14;
+	
+	// The files whose index couldn't be saved, so the warning about it is only printed once
+	static Set<String> warnedFiles = Collections.synchronizedSet(new HashSet<String>());
+	
+	// The Jasmine indexes built or read so far in this run, so each file is only scanned once without saving its index
+	static ConcurrentHashMap<String, VcfIndex> linearIndexes = new ConcurrentHashMap<String, VcfIndex>();
+	
+	// For Jasmine indexes, the size and modification time of the file when it was indexed
+	long fileLength, fileModified;
+	
+	// Whether offsets are BGZF virtual offsets rather than byte offsets
+	boolean virtual;
+	
+	// The chromosomes in the order their records appear in the file
+	ArrayList<String> names;
+	
+	// For linear indexes, the offset to start from for each window of each chromosome, with -1 where it is not known
+	HashMap<String, long[]> linear;
+	
+	// For CSI indexes, the offset of the first record overlapping each bin of each chromosome
+	HashMap<String, HashMap<Integer, Long>> binOffsets;
+	int minShift, depth;
+	
+	// The offset of the first record of each chromosome, for when the rest of the index doesn't cover a position
+	HashMap<String, Long> firstOffset;
+	
+	private VcfIndex()
+	{
+		names = new ArrayList<String>();
+		firstOffset = new HashMap<String, Long>();
+	}
+	
+	/*
+	 * Gets the index to use for a file, or null if it can't be indexed and has to be read in full
+	 * A .tbi or .csi file next to it is used if there is one.  Otherwise, plain text VCFs get a Jasmine index, which
+	 * is read from next to the file if it was saved there and is up to date, and built otherwise.  A built index is only
+	 * written next to the file with --save_index, since input directories may be read-only or shared.
+	 * For BCF files, the contigs in the header are needed, since CSI indexes of BCFs refer to contigs by their number.
+	 */
+	static VcfIndex forFile(String filename, ArrayList<String> bcfContigs) throws IOException
+	{
+		if(new File(filename + ".csi").isFile())
+		{
+			return readCsi(filename + ".csi", bcfContigs);
+		}
+		if(bcfContigs == null && new File(filename + ".tbi").isFile())
+		{
+			return readTabix(filename + ".tbi");
+		}
+		if(bcfContigs == null && LineReader.isPlainFile(filename))
+		{
+			File vcf = new File(filename);
+			VcfIndex res = linearIndexes.get(filename);
+			if(res == null || res.fileLength != vcf.length() || res.fileModified != vcf.lastModified())
+			{
+				res = readLinear(filename);
+				if(res == null)
+				{
+					res = buildLinear(filename);
+					if(Settings.SAVE_INDEX)
+					{
+						res.saveLinear(filename);
+					}
+				}
+				linearIndexes.put(filename, res);
+			}
+			return res.linear == null ? null : res;
+		}
+		return null;
+	}
+	
+	/*
+	 * Gets the offset to start reading from to find every record on a chromosome whose POS is at least a given position
+	 * Returns -1 if there are no such records
+	 */
+	long offsetFor(String chrom, long pos)
+	{
+		long zeroBased = Math.max(pos - 1, 0);
+		if(!firstOffset.containsKey(chrom))
+		{
+			return -1;
+		}
+		if(binOffsets != null)
+		{
+			HashMap<Integer, Long> bins = binOffsets.get(chrom);
+			if(bins != null && zeroBased < (1L << (minShift + 3 * depth)))
+			{
+				// Start at the smallest bin containing the position, and move up to larger ones until one has records
+				int bin = (int)(((1L << (3 * depth)) - 1) / 7 + (zeroBased >> minShift));
+				while(true)
+				{
+					if(bins.containsKey(bin))
+					{
+						return bins.get(bin);
+					}
+					if(bin == 0)
+					{
+						break;
+					}
+					bin = (bin - 1) >> 3;
+				}
+			}
+			return firstOffset.get(chrom);
+		}
+		
+		long[] windows = linear.get(chrom);
+		long window = zeroBased >> LINEAR_SHIFT;
+		if(windows == null || window >= windows.length)
+		{
+			return -1;
+		}
+		
+		// Windows without an offset have no records overlapping them, so an earlier window's offset works just as well
+		for(int w = (int)window; w >= 0; w--)
+		{
+			if(windows[w] != -1)
+			{
+				return windows[w];
+			}
+		}
+		return firstOffset.get(chrom);
+	}
+	
+	/*
+	 * Reads a whole BGZF-compressed index file into a little-endian buffer
+	 */
+	private static ByteBuffer readCompressed(String filename) throws IOException
+	{
+		InputStream input = LineReader.decompress(new FileInputStream(filename));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] chunk = new byte[1 << 16];
+		int read;
+		while((read = input.read(chunk)) != -1)
+		{
+			bytes.write(chunk, 0, read);
+		}
+		input.close();
+		return ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/*
+	 * Checks the magic bytes at the start of an index
+	 */
+	private static void checkMagic(ByteBuffer buf, String magic, String filename) throws IOException
+	{
+		for(int i = 0; i<magic.length(); i++)
+		{
+			if(!buf.hasRemaining() || buf.get() != magic.charAt(i))
+			{
+				throw new IOException("Not a valid index: " + filename);
+			}
+		}
+	}
+	
+	/*
+	 * Reads the sequence names stored in a tabix index, or in the auxiliary data of a CSI index of a VCF
+	 * The buffer must be positioned at the start of the tabix configuration (format, column numbers, meta character, and skip)
+	 */
+	private static ArrayList<String> readTabixNames(ByteBuffer buf)
+	{
+		// The format, the three column numbers, the meta character, and the number of lines to skip
+		for(int i = 0; i<6; i++)
+		{
+			buf.getInt();
+		}
+		byte[] nameBytes = new byte[buf.getInt()];
+		buf.get(nameBytes);
+		ArrayList<String> res = new ArrayList<String>();
+		int start = 0;
+		for(int i = 0; i<nameBytes.length; i++)
+		{
+			if(nameBytes[i] == 0)
+			{
+				res.add(new String(nameBytes, start, i - start, StandardCharsets.UTF_8));
+				start = i + 1;
+			}
+		}
+		return res;
+	}
+	
+	/*
+	 * Reads a tabix index, keeping its linear index and the start of each sequence
+	 */
+	static VcfIndex readTabix(String filename) throws IOException
+	{
+		ByteBuffer buf = readCompressed(filename);
+		checkMagic(buf, "TBI\1", filename);
+		VcfIndex res = new VcfIndex();
+		res.virtual = true;
+		res.linear = new HashMap<String, long[]>();
+		int refCount = buf.getInt();
+		res.names = readTabixNames(buf);
+		
+		// The bin tabix uses to store metadata instead of chunks
+		int metaBin = 37450;
+		
+		for(int ref = 0; ref<refCount; ref++)
+		{
+			long first = Long.MAX_VALUE;
+			int binCount = buf.getInt();
+			for(int b = 0; b<binCount; b++)
+			{
+				int bin = buf.getInt();
+				int chunkCount = buf.getInt();
+				for(int c = 0; c<chunkCount; c++)
+				{
+					long chunkStart = buf.getLong();
+					buf.getLong();
+					if(bin != metaBin)
+					{
+						first = Math.min(first, chunkStart);
+					}
+				}
+			}
+			long[] windows = new long[buf.getInt()];
+			for(int w = 0; w<windows.length; w++)
+			{
+				long offset = buf.getLong();
+				windows[w] = offset == 0 ? -1 : offset;
+			}
+			
+			String name = res.names.get(ref);
+			res.linear.put(name, windows);
+			if(first != Long.MAX_VALUE)
+			{
+				res.firstOffset.put(name, first);
+			}
+		}
+		return res;
+	}
+	
+	/*
+	 * Reads a CSI index, keeping the offset of each bin and the start of each sequence
+	 * CSI indexes of VCFs have their sequence names in their auxiliary data, while those of BCFs use the header's contigs.
+	 */
+	static VcfIndex readCsi(String filename, ArrayList<String> bcfContigs) throws IOException
+	{
+		ByteBuffer buf = readCompressed(filename);
+		checkMagic(buf, "CSI\1", filename);
+		VcfIndex res = new VcfIndex();
+		res.virtual = true;
+		res.binOffsets = new HashMap<String, HashMap<Integer, Long>>();
+		res.minShift = buf.getInt();
+		res.depth = buf.getInt();
+		int auxLength = buf.getInt();
+		int auxEnd = buf.position() + auxLength;
+		if(bcfContigs != null)
+		{
+			res.names = bcfContigs;
+		}
+		else if(auxLength >= 28)
+		{
+			res.names = readTabixNames(buf);
+		}
+		else
+		{
+			throw new IOException("CSI index has no sequence names: " + filename);
+		}
+		buf.position(auxEnd);
+		
+		// The bin CSI uses to store metadata instead of chunks
+		int metaBin = (int)(((1L << (3 * (res.depth + 1))) - 1) / 7) + 1;
+		
+		int refCount = buf.getInt();
+		for(int ref = 0; ref<refCount; ref++)
+		{
+			HashMap<Integer, Long> bins = new HashMap<Integer, Long>();
+			long first = Long.MAX_VALUE;
+			int binCount = buf.getInt();
+			for(int b = 0; b<binCount; b++)
+			{
+				int bin = buf.getInt();
+				long binOffset = buf.getLong();
+				int chunkCount = buf.getInt();
+				for(int c = 0; c<chunkCount; c++)
+				{
+					long chunkStart = buf.getLong();
+					buf.getLong();
+					if(bin != metaBin)
+					{
+						first = Math.min(first, chunkStart);
+					}
+				}
+				if(bin != metaBin)
+				{
+					bins.put(bin, binOffset);
+				}
+			}
+			
+			if(ref < res.names.size() && res.names.get(ref) != null)
+			{
+				String name = res.names.get(ref);
+				res.binOffsets.put(name, bins);
+				if(first != Long.MAX_VALUE)
+				{
+					res.firstOffset.put(name, first);
+				}
+			}
+		}
+		return res;
+	}
+	
+	/*
+	 * Gets the name of the Jasmine index for a VCF file
+	 */
+	static String indexFile(String filename)
+	{
+		return filename + SUFFIX;
+	}
+	
+	/*
+	 * Builds a linear index of a plain text VCF by scanning it once
+	 * If the file turns out not to be sorted, the index records that so the file isn't scanned again, and has no linear part.
+	 */
+	static VcfIndex buildLinear(String filename) throws IOException
+	{
+		VcfIndex res = new VcfIndex();
+		res.virtual = false;
+		res.linear = new HashMap<String, long[]>();
+		File vcf = new File(filename);
+		res.fileLength = vcf.length();
+		res.fileModified = vcf.lastModified();
+		
+		HashSet<String> finished = new HashSet<String>();
+		String chrom = null;
+		long lastPos = 0;
+		long[] windows = new long[0];
+		int windowCount = 0;
+		
+		LineReader input = new LineReader(filename);
+		boolean sorted = true;
+		while(input.hasNext())
+		{
+			CharSequence line = input.nextLineView();
+			if(line.length() == 0 || line.charAt(0) == '#')
+			{
+				continue;
+			}
+			long offset = input.lineOffset();
+			int tab = indexOf(line, '\t', 0);
+			if(tab == -1)
+			{
+				continue;
+			}
+			if(chrom == null || !contentEquals(line, tab, chrom))
+			{
+				if(chrom != null)
+				{
+					res.linear.put(chrom, Arrays.copyOf(windows, windowCount));
+					finished.add(chrom);
+				}
+				chrom = line.subSequence(0, tab).toString();
+				if(finished.contains(chrom))
+				{
+					sorted = false;
+					break;
+				}
+				res.names.add(chrom);
+				res.firstOffset.put(chrom, offset);
+				lastPos = 0;
+				windowCount = 0;
+			}
+			
+			long pos = 0;
+			for(int i = tab + 1; i < line.length() && line.charAt(i) >= '0' && line.charAt(i) <= '9'; i++)
+			{
+				pos = pos * 10 + (line.charAt(i) - '0');
+			}
+			if(pos < lastPos)
+			{
+				sorted = false;
+				break;
+			}
+			lastPos = pos;
+			
+			// Every window up to this record's one which doesn't have an offset yet has this record as the first at or after it
+			long window = Math.max(pos - 1, 0) >> LINEAR_SHIFT;
+			while(windowCount <= window)
+			{
+				if(windowCount == windows.length)
+				{
+					windows = Arrays.copyOf(windows, Math.max(16, 2 * windows.length));
+				}
+				windows[windowCount++] = offset;
+			}
+		}
+		input.close();
+		
+		if(!sorted)
+		{
+			res.linear = null;
+		}
+		else if(chrom != null)
+		{
+			res.linear.put(chrom, Arrays.copyOf(windows, windowCount));
+		}
+		return res;
+	}
+	
+	/*
+	 * Finds a character in a line, or returns -1 if it's not there
+	 */
+	private static int indexOf(CharSequence line, char c, int from)
+	{
+		for(int i = from; i<line.length(); i++)
+		{
+			if(line.charAt(i) == c)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/*
+	 * Whether the first characters of a line, up to a given length, are exactly a given string
+	 */
+	private static boolean contentEquals(CharSequence line, int length, String s)
+	{
+		if(length != s.length())
+		{
+			return false;
+		}
+		for(int i = 0; i<length; i++)
+		{
+			if(line.charAt(i) != s.charAt(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * Saves a Jasmine index next to the file it indexes, along with the size and modification time the file had when it
+	 * was indexed
+	 * The index is written to a temporary file with a unique name and then moved into place in one step, so threads
+	 * saving the index of the same file at once never mix their writes.  If the index can't be saved, for example
+	 * because the directory isn't writable, a warning is printed the first time in the run.
+	 */
+	void saveLinear(String filename)
+	{
+		File vcf = new File(filename);
+		File index = new File(indexFile(filename)).getAbsoluteFile();
+		File tmp = null;
+		try
+		{
+			tmp = tempFileFor(index, vcf);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			try
+			{
+				out.writeUTF(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(fileLength);
+				out.writeLong(fileModified);
+				out.writeBoolean(linear != null);
+				if(linear != null)
+				{
+					out.writeInt(names.size());
+					for(String name : names)
+					{
+						long[] windows = linear.get(name);
+						out.writeUTF(name);
+						out.writeLong(firstOffset.get(name));
+						out.writeInt(windows.length);
+						for(long offset : windows)
+						{
+							out.writeLong(offset);
+						}
+					}
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+			Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException e)
+		{
+			if(tmp != null)
+			{
+				tmp.delete();
+			}
+			if(warnedFiles.add(filename))
+			{
+				System.err.println("Warning: Could not save index for " + filename + ": " + e.getMessage());
+			}
+		}
+	}
+	
+	/*
+	 * Makes a new, uniquely named temporary file in the same directory as a file it will be moved to
+	 * Temporary files are only readable by their owner to begin with, so this gives it the permissions of the file
+	 * its contents come from, where the file system has them.
+	 */
+	static File tempFileFor(File target, File source) throws IOException
+	{
+		File res = Files.createTempFile(target.getParentFile().toPath(), target.getName() + ".", ".tmp").toFile();
+		try
+		{
+			Files.setPosixFilePermissions(res.toPath(), Files.getPosixFilePermissions(source.toPath()));
+		}
+		catch(UnsupportedOperationException e)
+		{
+			// Not a POSIX file system, so the file already has the usual permissions
+		}
+		return res;
+	}
+	
+	/*
+	 * Reads the Jasmine index of a file
+	 * Returns null if there isn't one or if the file has changed since it was made, in which case it needs to be rebuilt
+	 */
+	static VcfIndex readLinear(String filename)
+	{
+		File vcf = new File(filename);
+		File index = new File(indexFile(filename));
+		if(!index.isFile())
+		{
+			return null;
+		}
+		try
+		{
+			DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(index), 1 << 16));
+			try
+			{
+				if(!MAGIC.equals(input.readUTF()) || input.readInt() != VERSION)
+				{
+					return null;
+				}
+				if(input.readLong() != vcf.length() || input.readLong() != vcf.lastModified())
+				{
+					return null;
+				}
+				VcfIndex res = new VcfIndex();
+				res.virtual = false;
+				res.fileLength = vcf.length();
+				res.fileModified = vcf.lastModified();
+				if(!input.readBoolean())
+				{
+					return res;
+				}
+				res.linear = new HashMap<String, long[]>();
+				int nameCount = input.readInt();
+				for(int i = 0; i<nameCount; i++)
+				{
+					String name = input.readUTF();
+					res.names.add(name);
+					res.firstOffset.put(name, input.readLong());
+					long[] windows = new long[input.readInt()];
+					for(int w = 0; w<windows.length; w++)
+					{
+						windows[w] = input.readLong();
+					}
+					res.linear.put(name, windows);
+				}
+				return res;
+			}
+			finally
+			{
+				input.close();
+			}
+		}
+		catch(IOException e)
+		{
+			return null;
+		}
+	}
+}
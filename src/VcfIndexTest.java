@@ -0,0 +1,140 @@
+/*
+ * Test to make sure that reading regions of a file through its index gives the same records as reading the whole file
+ * and keeping the records in the regions, for every kind of index: tabix, CSI of a VCF or a BCF, and Jasmine's own index
+ * of a plain VCF.  The regions include adjacent and overlapping BED intervals, a region with no end, and a chromosome
+ * which is not in the file.  Jasmine's index is only saved next to the file with --save_index, so a copy read without
+ * it must be left with no index file next to it.
+ * Output should be the number of region sets and files checked, followed by "All tests passed".
+ */
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class VcfIndexTest {
+public static void main(String[] args) throws Exception
+{
+	String dir = args.length > 0 ? args[0] : "test_data";
+	int failures = 0;
+	
+	// Adjacent and overlapping intervals are merged, so chromosome 1 has three intervals left
+	GenomicRegions bed = GenomicRegions.fromBed(dir + "/index_test.bed");
+	long[] expected = new long[] {100000, 300000, 1000000, 1000500};
+	if(!Arrays.equals(bed.intervalsOn("1"), expected))
+	{
+		System.out.println("BED intervals were not merged: " + Arrays.toString(bed.intervalsOn("1")));
+		failures++;
+	}
+	
+	// Copy each file next to only the index it should be read with, so that the plain VCF's index is built from scratch
+	File tmp = Files.createTempDirectory("jasmine_index_test").toFile();
+	String plain = copy(dir + "/index_test.vcf", tmp + "/plain.vcf");
+	String saved = copy(dir + "/index_test.vcf", tmp + "/saved.vcf");
+	String tabix = copy(dir + "/index_test.vcf.gz", tmp + "/tabix.vcf.gz");
+	copy(dir + "/index_test.vcf.gz.tbi", tabix + ".tbi");
+	String csi = copy(dir + "/index_test.vcf.gz", tmp + "/csi.vcf.gz");
+	copy(dir + "/index_test.vcf.gz.csi", csi + ".csi");
+	String bcf = copy(dir + "/index_test.bcf", tmp + "/csi.bcf");
+	copy(dir + "/index_test.bcf.csi", bcf + ".csi");
+	
+	// The plain VCFs are listed twice so that their index is used both right after being built and after being kept
+	// from earlier in the run or, for the one with a saved index, read back in
+	String[] files = new String[] {plain, plain, saved, saved, tabix, csi, bcf};
+	GenomicRegions[] regionSets = new GenomicRegions[] {
+			bed,
+			GenomicRegions.parse("1:150,000-420,000"),
+			GenomicRegions.parse("1:1400000"),
+			GenomicRegions.parse("2"),
+			GenomicRegions.parse("X"),
+			GenomicRegions.parse("1:1-1")
+	};
+	
+	ArrayList<String> all = readRecords(plain, null);
+	for(GenomicRegions regions : regionSets)
+	{
+		// Everything in the regions, found by reading the whole file
+		ArrayList<String> inRegions = new ArrayList<String>();
+		for(String record : all)
+		{
+			String[] tokens = record.split("\t");
+			if(regions.contains(tokens[0], Long.parseLong(tokens[1])))
+			{
+				inRegions.add(record);
+			}
+		}
+		
+		for(String file : files)
+		{
+			Settings.SAVE_INDEX = file.equals(saved);
+			if(file.equals(saved))
+			{
+				VcfIndex.linearIndexes.clear();
+			}
+			VcfRecordReader input = new VcfRecordReader(file, regions);
+			if(input.index == null)
+			{
+				System.out.println("No index was found for " + file);
+				failures++;
+			}
+			input.close();
+			
+			ArrayList<String> indexed = readRecords(file, regions);
+			if(!indexed.equals(inRegions))
+			{
+				System.out.println("Indexed read of " + file + " gave " + indexed.size() + " records instead of " + inRegions.size());
+				failures++;
+			}
+		}
+	}
+	System.out.println("Region sets checked: " + regionSets.length);
+	System.out.println("Files checked: " + files.length);
+	Settings.SAVE_INDEX = false;
+	
+	if(new File(VcfIndex.indexFile(plain)).exists())
+	{
+		System.out.println("An index was saved next to " + plain + " without --save_index");
+		failures++;
+	}
+	if(!new File(VcfIndex.indexFile(saved)).isFile())
+	{
+		System.out.println("No index was saved next to " + saved + " with --save_index");
+		failures++;
+	}
+	
+	for(File f : tmp.listFiles())
+	{
+		f.delete();
+	}
+	tmp.delete();
+	
+	System.out.println(failures == 0 ? "All tests passed" : (failures + " tests failed"));
+}
+
+/*
+ * Copies a file and returns the name of the copy
+ */
+static String copy(String from, String to) throws Exception
+{
+	Files.copy(new File(from).toPath(), new File(to).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	return to;
+}
+
+/*
+ * Every record in a file which is in a set of regions, or every record if the regions are null
+ */
+static ArrayList<String> readRecords(String filename, GenomicRegions regions) throws Exception
+{
+	ArrayList<String> res = new ArrayList<String>();
+	VcfRecordReader input = new VcfRecordReader(filename, regions);
+	while(input.advance())
+	{
+		if(!input.isHeader())
+		{
+			res.add(input.entry().toString());
+		}
+	}
+	input.close();
+	return res;
+}
+}
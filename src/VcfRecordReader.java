@@ -0,0 +1,368 @@
+/*
+ * Reads the header lines and records of a variant file which can be either text VCF (plain, gzipped, or bgzipped) or BCF
+ * Callers step through the file with advance(), and then either take the current header line or build an entry from the
+ * current record.  Records from BCF are decoded column by column into the strings an entry is built from, which skips
+ * building and splitting the text of the line but still turns each column into VCF text.
+ *
+ * Records can be restricted to a set of regions.  If the file has an index, the reader jumps straight to each region in
+ * turn, and otherwise every record is read and the ones outside of the regions are skipped.  Either way, the records
+ * handed out are the same and come in the same order, so every pass over a file numbers its records the same way.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+public class VcfRecordReader implements Closeable
+{
+	// Exactly one of these is set, depending on the type of file
+	LineReader lines;
+	BcfReader bcf;
+	
+	// The current line of a text file
+	CharSequence line;
+	
+	// For BCF, how many of the header lines have been handed out so far
+	int headerLinesRead;
+	
+	// Whether the current item is a header line rather than a record
+	boolean header;
+	
+	// The file being read, if the reader was opened on one
+	String filename;
+	
+	// The regions to restrict records to, or null to read every record
+	GenomicRegions regions;
+	
+	// The threads to decompress a BGZF file ahead of the reader on, or null to decompress it while reading
+	BgzfInputStream.DecompressionPool pool;
+	
+	// The index used to jump to each region, or null if every record has to be checked
+	VcfIndex index;
+	
+	// When jumping through an index, the region being read: its chromosome, which of the chromosomes with regions that is,
+	// which of that chromosome's intervals it is, and whether the first jump has happened yet
+	String regionChrom;
+	int regionChromIndex, regionInterval;
+	boolean jumped;
+	
+	/*
+	 * Opens a file, restricting it to the regions given on the command line if there are any
+	 */
+	VcfRecordReader(String filename) throws IOException
+	{
+		this(filename, Settings.REGIONS);
+	}
+	
+	/*
+	 * Opens a file, only handing out the records whose POS is in the given regions, or all of them if the regions are null
+	 */
+	VcfRecordReader(String filename, GenomicRegions regions) throws IOException
+	{
+		this(filename, regions, null);
+	}
+	
+	/*
+	 * Opens a file restricted to the given regions, decompressing it ahead of the reader on a pool owned by the caller
+	 */
+	VcfRecordReader(String filename, GenomicRegions regions, BgzfInputStream.DecompressionPool pool) throws IOException
+	{
+		this.filename = filename;
+		this.regions = regions;
+		this.pool = pool;
+		if(BcfReader.isBcf(filename))
+		{
+			bcf = new BcfReader(filename, pool);
+		}
+		else
+		{
+			lines = new LineReader(LineReader.openFile(filename, pool));
+		}
+		if(regions != null)
+		{
+			index = VcfIndex.forFile(filename, bcf == null ? null : bcf.contigs);
+		}
+	}
+	
+	/*
+	 * Reads the lines of a text VCF from an existing reader, such as one over a byte range of a file
+	 */
+	VcfRecordReader(LineReader lines)
+	{
+		this.lines = lines;
+	}
+	
+	/*
+	 * Moves to the next header line or record, skipping over empty lines and records outside of the regions
+	 * Returns false if there is nothing left
+	 */
+	boolean advance() throws IOException
+	{
+		while(true)
+		{
+			if(!advanceInFile())
+			{
+				// When jumping between regions, the end of the file just means the current region is done
+				if(index != null && jumped && nextRegion())
+				{
+					continue;
+				}
+				return false;
+			}
+			if(header || regions == null)
+			{
+				return true;
+			}
+			if(index == null)
+			{
+				if(regions.contains(recordChrom(), recordPos()))
+				{
+					return true;
+				}
+				continue;
+			}
+			
+			// The header is done, so jump to the first region, skipping the record which ended the header
+			if(!jumped)
+			{
+				jumped = true;
+				if(!nextRegion())
+				{
+					return false;
+				}
+				continue;
+			}
+			
+			long[] intervals = regions.intervalsOn(regionChrom);
+			long pos = recordPos();
+			if(!recordChrom().equals(regionChrom) || pos > intervals[2*regionInterval+1])
+			{
+				if(!nextRegion())
+				{
+					return false;
+				}
+				continue;
+			}
+			if(pos >= intervals[2*regionInterval])
+			{
+				return true;
+			}
+		}
+	}
+	
+	/*
+	 * Moves on to the next region, in the order the file's chromosomes are in, and jumps to where it starts in the file
+	 * Regions which the index says have no records are skipped over.  Returns false if there are no regions left.
+	 */
+	private boolean nextRegion() throws IOException
+	{
+		while(true)
+		{
+			if(regionChrom != null && 2 * (regionInterval + 1) < regions.intervalsOn(regionChrom).length)
+			{
+				regionInterval++;
+			}
+			else
+			{
+				// Move to the next chromosome in the index which has any regions on it
+				regionChrom = null;
+				while(regionChrom == null && regionChromIndex < index.names.size())
+				{
+					String chrom = index.names.get(regionChromIndex++);
+					if(chrom != null && regions.intervalsOn(chrom) != null)
+					{
+						regionChrom = chrom;
+						regionInterval = 0;
+					}
+				}
+				if(regionChrom == null)
+				{
+					return false;
+				}
+			}
+			
+			long offset = index.offsetFor(regionChrom, regions.intervalsOn(regionChrom)[2*regionInterval]);
+			if(offset != -1)
+			{
+				jumpTo(offset);
+				return true;
+			}
+		}
+	}
+	
+	/*
+	 * Starts reading records again from an offset given by the index
+	 */
+	private void jumpTo(long offset) throws IOException
+	{
+		if(bcf != null)
+		{
+			bcf.seek(filename, offset);
+			return;
+		}
+		lines.close();
+		if(index.virtual)
+		{
+			lines = new LineReader(Channels.newChannel(BgzfInputStream.openAt(filename, offset, pool)));
+		}
+		else
+		{
+			lines = new LineReader(filename, offset, new File(filename).length());
+		}
+	}
+	
+	/*
+	 * The chromosome of the current record, as it is written in the file
+	 */
+	private String recordChrom() throws IOException
+	{
+		if(bcf != null)
+		{
+			return bcf.recordContig();
+		}
+		StringBuilder chrom = new StringBuilder();
+		for(int i = 0; i < line.length() && line.charAt(i) != '\t'; i++)
+		{
+			chrom.append(line.charAt(i));
+		}
+		return chrom.toString();
+	}
+	
+	/*
+	 * The POS of the current record
+	 */
+	private long recordPos()
+	{
+		if(bcf != null)
+		{
+			return bcf.recordPos();
+		}
+		int i = 0;
+		while(i < line.length() && line.charAt(i) != '\t')
+		{
+			i++;
+		}
+		long pos = 0;
+		for(i++; i < line.length() && line.charAt(i) >= '0' && line.charAt(i) <= '9'; i++)
+		{
+			pos = pos * 10 + (line.charAt(i) - '0');
+		}
+		return pos;
+	}
+	
+	/*
+	 * Moves to the next header line or record in the file, skipping over empty lines
+	 * Returns false if there is nothing left
+	 */
+	private boolean advanceInFile() throws IOException
+	{
+		if(bcf != null)
+		{
+			if(headerLinesRead < bcf.headerLines.size())
+			{
+				header = true;
+				line = bcf.headerLines.get(headerLinesRead++);
+				return true;
+			}
+			header = false;
+			return bcf.nextRecord();
+		}
+		while(lines.hasNext())
+		{
+			// Look at the line in place first so that header lines are never copied unless they are needed
+			line = lines.nextLineView();
+			if(line.length() == 0)
+			{
+				continue;
+			}
+			header = line.charAt(0) == '#';
+			return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * Whether or not the current item is a header line
+	 */
+	boolean isHeader()
+	{
+		return header;
+	}
+	
+	/*
+	 * The current header line
+	 */
+	String headerLine()
+	{
+		return line.toString();
+	}
+	
+	/*
+	 * Parses the current record, only looking at CHROM through INFO, which is all that is needed for merging
+	 * For BCF, the FORMAT and sample block is never decoded at all
+	 */
+	VcfEntry siteEntry() throws Exception
+	{
+		if(bcf != null)
+		{
+			return VcfEntry.fromColumns(bcf.siteColumns());
+		}
+		return VcfEntry.fromLine(line.toString(), true);
+	}
+	
+	/*
+	 * Parses the current record the same way as VcfEntry.fromLine(), keeping the FORMAT and sample columns
+	 * unsplit until they are needed
+	 */
+	VcfEntry entry() throws Exception
+	{
+		if(bcf != null)
+		{
+			VcfEntry res = VcfEntry.fromColumns(bcf.siteColumns());
+			addSampleFields(res);
+			return res;
+		}
+		return VcfEntry.fromLine(line.toString(), true);
+	}
+	
+	/*
+	 * Parses the current record without any of the normalization that VcfEntry.fromLine() does
+	 */
+	VcfEntry rawEntry() throws Exception
+	{
+		if(bcf != null)
+		{
+			VcfEntry res = new VcfEntry(bcf.siteColumns());
+			addSampleFields(res);
+			return res;
+		}
+		return new VcfEntry(line.toString(), true);
+	}
+	
+	/*
+	 * Decodes the FORMAT values of the current BCF record into an entry
+	 */
+	private void addSampleFields(VcfEntry entry) throws Exception
+	{
+		if(bcf.formatCount == 0)
+		{
+			return;
+		}
+		String[][] sampleFields = new String[bcf.sampleCount][bcf.formatCount];
+		entry.formatKeys = bcf.formatKeys(sampleFields);
+		entry.sampleFields = sampleFields;
+	}
+	
+	public void close() throws IOException
+	{
+		if(bcf != null)
+		{
+			bcf.close();
+		}
+		else
+		{
+			lines.close();
+		}
+	}
+}